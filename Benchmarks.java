@@ -0,0 +1,1329 @@
+import java.io.DataInputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+// Benchmarks for the hot paths of the server! Needs the server and client classes, so all get compiled together:
+//   javac -d build SocketServer.java Client.java Benchmarks.java
+//   java -cp build Benchmarks [--json FILE] [GROUP...]
+// No JMH: the project is two source files without a build tool or dependencies, so this is a small harness of its own.
+// Every result gets printed and, with "--json", written as one JSON document to compare releases.
+public class Benchmarks {
+	private static final int WARMUP_MILLIS = 500;
+	private static final int MEASURE_MILLIS = 1000;
+
+	private static final List<String> results = new ArrayList<String>();	// JSON objects!
+
+
+	// One group of benchmarks, selected by its name on the command line!
+	private interface Group {
+		void Run() throws Exception;
+	}
+
+
+	public static void main(String[] args) throws Exception {
+		List<String> selected = new ArrayList<String>(Arrays.asList(args));
+		String jsonFile = null;
+
+		int json = selected.indexOf("--json");
+
+		if (json >= 0 && json + 1 < selected.size()) {
+			jsonFile = selected.get(json + 1);
+			selected.subList(json, json + 2).clear();
+		}
+
+		RunGroup(selected, "inventory", Benchmarks::InventoryContention);
+		RunGroup(selected, "catalog", Benchmarks::MenuCatalogReads);
+		RunGroup(selected, "dispatch", Benchmarks::RequestDispatch);
+		RunGroup(selected, "responses", Benchmarks::ResponseAllocations);
+		RunGroup(selected, "getmenu", Benchmarks::GetMenuContention);
+		RunGroup(selected, "timers", Benchmarks::InactivityTimers);
+		RunGroup(selected, "clock", Benchmarks::ClockReads);
+		RunGroup(selected, "logger", Benchmarks::LoggerThroughput);
+		RunGroup(selected, "journal", Benchmarks::JournalCommits);
+		RunGroup(selected, "metrics", Benchmarks::MetricsRecording);
+		RunGroup(selected, "loopback", Benchmarks::LoopbackRoundTrips);
+		RunGroup(selected, "reconnect", Benchmarks::ReconnectStorm);
+		RunGroup(selected, "admission", Benchmarks::AdmissionControl);
+		RunGroup(selected, "connect", Benchmarks::ConnectionBursts);
+		RunGroup(selected, "footprint", Benchmarks::IdleFootprint);
+
+		if (jsonFile != null) {
+			WriteJson(jsonFile);
+		}
+	}
+
+	private static void RunGroup(List<String> selected, String name, Group group) throws Exception {
+		if (selected.isEmpty() || selected.contains(name)) {
+			group.Run();
+		}
+	}
+
+
+	// Prints the result and keeps it for the JSON file! "params" tell runs of the same benchmark apart, e.g. "threads=4".
+	private static void Report(String name, String params, double value, String unit) {
+		System.out.println(String.format("%s%s: %.2f %s", name, params.isEmpty() ? "" : " (" + params + ")", value, unit));
+
+		results.add(String.format(java.util.Locale.ROOT, "{\"name\": \"%s\", \"params\": \"%s\", \"value\": %.3f, \"unit\": \"%s\"}", name, params, value, unit));
+	}
+
+	private static void WriteJson(String file) throws Exception {
+		StringBuilder json = new StringBuilder();
+
+		json.append("{\n");
+		json.append(String.format("  \"date\": \"%s\",\n", Instant.now()));
+		json.append(String.format("  \"java\": \"%s\",\n", System.getProperty("java.version")));
+		json.append(String.format("  \"cores\": %s,\n", Runtime.getRuntime().availableProcessors()));
+		json.append("  \"results\": [\n    ");
+		json.append(String.join(",\n    ", results));
+		json.append("\n  ]\n}\n");
+
+		Path path = Paths.get(file);
+
+		if (path.getParent() != null) {
+			Files.createDirectories(path.getParent());
+		}
+
+		Files.write(path, json.toString().getBytes(StandardCharsets.UTF_8));
+		System.out.println(String.format("Results written to %s", file));
+	}
+
+
+	// All threads order the same menu! Shows how the CAS inventory scales with the number of cores.
+	private static void InventoryContention() throws Exception {
+		int cores = Runtime.getRuntime().availableProcessors();
+
+		System.out.println(String.format("--- inventory contention, one hot menu (%s cores) ---", cores));
+
+		RunInventory(cores, WARMUP_MILLIS);
+
+		for (int threads = 1; threads <= cores * 2; threads *= 2) {
+			Report("inventory.reserve", "threads=" + threads, RunInventory(threads, MEASURE_MILLIS), "orders/s");
+		}
+
+		CheckNoOversell(Math.max(2, cores * 2));
+	}
+
+	private static double RunInventory(int threadCount, int millis) throws Exception {
+		SocketServer.Inventory inventory = new SocketServer.Inventory(1);
+		inventory.Set(0, Integer.MAX_VALUE);
+
+		AtomicLong orders = new AtomicLong(0);
+		CountDownLatch start = new CountDownLatch(1);
+		AtomicBoolean isStopped = new AtomicBoolean(false);
+		Thread[] threads = new Thread[threadCount];
+
+		for (int i = 0; i < threadCount; i++) {
+			threads[i] = new Thread(() -> {
+				long count = 0;
+
+				try {
+					start.await();
+				}
+				catch (InterruptedException e) {
+					return;
+				}
+
+				while (!isStopped.get()) {
+					if (inventory.TryReserve(0, 1) < 0) {
+						inventory.Set(0, Integer.MAX_VALUE);	// never happens in one run, just to be safe
+					}
+					count++;
+				}
+
+				orders.addAndGet(count);
+			});
+			threads[i].start();
+		}
+
+		long startNanos = System.nanoTime();
+		start.countDown();
+		Thread.sleep(millis);
+		isStopped.set(true);
+
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		double seconds = (System.nanoTime() - startNanos) / 1000000000.0;
+		return orders.get() / seconds;
+	}
+
+	// Sells a limited menu with many threads until it is sold out! The sold portions must add up exactly.
+	private static void CheckNoOversell(int threadCount) throws Exception {
+		int available = 1000000;
+
+		SocketServer.Inventory inventory = new SocketServer.Inventory(1);
+		inventory.Set(0, available);
+
+		AtomicLong sold = new AtomicLong(0);
+		Thread[] threads = new Thread[threadCount];
+
+		for (int i = 0; i < threadCount; i++) {
+			threads[i] = new Thread(() -> {
+				long count = 0;
+
+				while (true) {
+					int portions = ThreadLocalRandom.current().nextInt(1, 4);
+					int left = inventory.TryReserve(0, portions);
+
+					if (left >= 0) {
+						count += portions;
+					}
+					else if (inventory.Get(0) == 0) {
+						break;	// sold out!
+					}
+				}
+
+				sold.addAndGet(count);
+			});
+			threads[i].start();
+		}
+
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		Report("inventory.oversold", "threads=" + threadCount, sold.get() - available, "portions");
+	}
+
+
+	// A big catalog! Lookups by name and GETMENUS with and without an order in between.
+	private static void MenuCatalogReads() {
+		int size = 50000;
+		SocketServer.MenuCatalog catalog = new SocketServer.MenuCatalog(size);
+
+		for (int i = 0; i < size; i++) {
+			catalog.Add(String.format("Menu%s", i), 5.0f + (i % 20), Integer.MAX_VALUE);
+		}
+
+		System.out.println(String.format("--- menu catalog, %s menus ---", size));
+
+		String[] names = new String[1024];
+		for (int i = 0; i < names.length; i++) {
+			names[i] = String.format("MENU%s", ThreadLocalRandom.current().nextInt(size));
+		}
+
+		long found = 0;
+		long endNanos = System.nanoTime() + (WARMUP_MILLIS + MEASURE_MILLIS) * 1000000L;
+		long measureNanos = System.nanoTime() + WARMUP_MILLIS * 1000000L;
+		long lookups = 0;
+		long startNanos = 0;
+
+		for (int i = 0; System.nanoTime() < endNanos; i++) {
+			if (startNanos == 0 && System.nanoTime() >= measureNanos) {
+				startNanos = System.nanoTime();
+				lookups = 0;
+			}
+
+			if (catalog.Find(names[i & (names.length - 1)]) != null) {
+				found++;
+			}
+			lookups++;
+		}
+
+		double seconds = (System.nanoTime() - startNanos) / 1000000000.0;
+		Report("catalog.find", "menus=" + size + (found > 0 ? "" : ",found=none"), lookups / seconds, "lookups/s");
+
+		// Unchanged inventory: every call gets the same encoded frame!
+		long cachedStart = System.nanoTime();
+		int cachedCount = 10000;
+		long bytes = 0;
+		for (int i = 0; i < cachedCount; i++) {
+			bytes += catalog.GetMenusFrame().length;
+		}
+		double cachedMicros = (System.nanoTime() - cachedStart) / 1000.0 / cachedCount;
+
+		// An order before every call: every call encodes again!
+		long changedStart = System.nanoTime();
+		int changedCount = 50;
+		for (int i = 0; i < changedCount; i++) {
+			catalog.GetMenus()[i].TryOrder(1);
+			bytes += catalog.GetMenusFrame().length;
+		}
+		double changedMicros = (System.nanoTime() - changedStart) / 1000.0 / changedCount;
+
+		Report("catalog.getmenus", "cached", cachedMicros, "us");
+		Report("catalog.getmenus", "after an order", changedMicros, "us");
+		Report("catalog.frame", "text", catalog.GetMenusFrame().length / 1024.0, "KB");
+		Report("catalog.frame", "binary", catalog.GetFrame(SocketServer.MenuCatalog.Format.BINARY_MENUS).length / 1024.0, "KB");
+
+		// Compressed once per inventory version and shared by all compressing clients!
+		SocketServer.FrameCompressor compressor = new SocketServer.FrameCompressor(SocketServer.ClientHandler.COMPRESSION_DICTIONARY);
+		byte[] menusFrame = catalog.GetMenusFrame();
+		int compressCount = 20;
+		long compressStart = System.nanoTime();
+		int compressedLength = 0;
+		for (int i = 0; i < compressCount; i++) {
+			compressedLength = compressor.CompressFrame(menusFrame).length;
+		}
+		double compressMillis = (System.nanoTime() - compressStart) / 1000000.0 / compressCount;
+		compressor.End();
+
+		Report("catalog.frame", "compressed", compressedLength / 1024.0, "KB");
+		Report("catalog.compress", "", compressMillis, "ms");
+	}
+
+	// Splitting the stream into lines, the lines into words and finding the command! What "ClientHandler.run" does before a handler runs.
+	private static void RequestDispatch() throws Exception {
+		System.out.println("--- request parsing and dispatch ---");
+
+		String[] lines = { "GETMENU Wienerschnitzel 2", "getmenus", "HELP", "bogus request 1" };
+		StringBuilder stream = new StringBuilder();
+
+		for (int i = 0; stream.length() < 1024 * 1024; i++) {
+			stream.append(lines[i & 3]).append("\r\n");
+		}
+
+		byte[] bytes = stream.toString().getBytes(StandardCharsets.US_ASCII);
+		SocketServer.Request request = new SocketServer.Request();
+		long found = 0;
+
+		for (int round = 0; round < 2; round++) {	// the first round warms up the JIT
+			long count = 0;
+			long startNanos = System.nanoTime();
+			long endNanos = startNanos + (round == 0 ? WARMUP_MILLIS : MEASURE_MILLIS) * 1000000L;
+
+			while (System.nanoTime() < endNanos) {
+				SocketServer.RequestReader reader = new SocketServer.RequestReader(new java.io.ByteArrayInputStream(bytes));
+				int length;
+
+				while ((length = reader.ReadLine()) >= 0) {
+					request.Parse(reader.GetBuffer(), reader.GetLineStart(), length);
+
+					if (SocketServer.ClientHandler.FindCommand(request) >= 0) {
+						found++;
+					}
+					count++;
+				}
+			}
+
+			if (round == 1) {
+				Report("dispatch.line", found > 0 ? "" : "found=none", (System.nanoTime() - startNanos) / (double)count, "ns/request");
+			}
+		}
+	}
+
+	// Encoding the common replies must not allocate once the pool is warm! Uses the HotSpot counter of allocated bytes per thread.
+	private static void ResponseAllocations() {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		long threadId = Thread.currentThread().getId();
+
+		SocketServer.MenuCatalog catalog = new SocketServer.MenuCatalog(1);
+		SocketServer.MenuModel model = catalog.Add("Wienerschnitzel", 10.50f, Integer.MAX_VALUE);
+
+		System.out.println("--- response encoding ---");
+
+		int count = 1000000;
+		long bytes = 0;
+
+		for (int round = 0; round < 2; round++) {	// the first round warms up pool and JIT
+			long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+			long startNanos = System.nanoTime();
+
+			for (int i = 0; i < count; i++) {
+				SocketServer.ResponseWriter order = SocketServer.ResponseWriter.Acquire();
+				SocketServer.ClientHandler.WriteOrder(order, model, 1 + (i & 7), i & 1023);
+				bytes += order.Finish().limit();
+				order.Release();
+
+				SocketServer.ResponseWriter notFound = SocketServer.ResponseWriter.Acquire().Append("No menu found with name: ").Append("kaiserschmarn");
+				bytes += notFound.Finish().limit();
+				notFound.Release();
+
+				SocketServer.ResponseWriter help = SocketServer.ResponseWriter.Acquire().CopyFrame(SocketServer.ClientHandler.HELP_FRAME);
+				bytes += help.Finish().limit();
+				help.Release();
+			}
+
+			double nanos = (System.nanoTime() - startNanos) / (double)count;
+			double allocated = (threads.getThreadAllocatedBytes(threadId) - allocatedBefore) / (double)count;
+
+			if (round == 1) {
+				// GETMENU + not found + HELP, allocated bytes must stay below 1!
+				Report("responses.encode", "", nanos, "ns/round");
+				Report("responses.allocated", "", allocated, "bytes/round");
+			}
+		}
+	}
+
+	// The whole GETMENU path without the socket: parse, find the menu, order and encode the reply! All threads order the same few menus.
+	private static void GetMenuContention() throws Exception {
+		int cores = Runtime.getRuntime().availableProcessors();
+
+		System.out.println(String.format("--- GETMENU, 4 hot menus (%s cores) ---", cores));
+
+		SocketServer.MenuCatalog catalog = new SocketServer.MenuCatalog(4);
+		String[] names = { "Kaerntnernudel", "Wienerschnitzel", "Fitnessteller", "Kaiserschmarn" };
+
+		for (String name : names) {
+			catalog.Add(name, 9.0f, Integer.MAX_VALUE);
+		}
+
+		byte[][] lines = new byte[names.length][];
+
+		for (int i = 0; i < names.length; i++) {
+			lines[i] = String.format("GETMENU %s 1", names[i].toLowerCase()).getBytes(StandardCharsets.US_ASCII);
+		}
+
+		ThreadLocal<SocketServer.Request> requests = ThreadLocal.withInitial(SocketServer.Request::new);
+
+		Runnable order = () -> {
+			byte[] line = lines[ThreadLocalRandom.current().nextInt(lines.length)];
+			SocketServer.Request request = requests.get().Parse(line, 0, line.length);
+
+			SocketServer.MenuModel model = catalog.Find(request.GetBytes(), request.GetTokenStart(1), request.GetTokenLength(1));
+			int portions = request.ParseNumber(2);
+			int available = model.TryOrder(portions);
+
+			SocketServer.ResponseWriter response = SocketServer.ResponseWriter.Acquire();
+			SocketServer.ClientHandler.WriteOrder(response, model, portions, available);
+			response.Finish();
+			response.Release();
+		};
+
+		RunLoop(cores, WARMUP_MILLIS, order);
+
+		for (int threads = 1; threads <= cores * 2; threads *= 2) {
+			Report("getmenu.order", "threads=" + threads, RunLoop(threads, MEASURE_MILLIS, order), "orders/s");
+		}
+	}
+
+	// Inactivity checks of 1k, 10k and 100k clients in the timer wheel! Time runs simulated, two minutes in a few milliseconds.
+	private static void InactivityTimers() {
+		System.out.println("--- inactivity timers, 10 ms ticks, 2 minutes deadline ---");
+
+		for (int round = 0; round < 2; round++) {	// the first round warms up the JIT
+			for (int clients = 1000; clients <= 100000; clients *= 10) {
+				SocketServer.TimerWheel wheel = new SocketServer.TimerWheel(10);
+				long[] expired = new long[1];
+				Runnable task = () -> expired[0]++;
+
+				long scheduleStart = System.nanoTime();
+
+				for (int i = 0; i < clients; i++) {
+					wheel.Schedule(ThreadLocalRandom.current().nextInt(120 * 1000), task);
+				}
+
+				double scheduleNanos = (System.nanoTime() - scheduleStart) / (double)clients;
+
+				long nowNanos = System.nanoTime();
+				int ticks = 121 * 100;
+				long tickStart = System.nanoTime();
+
+				for (int i = 1; i <= ticks; i++) {
+					wheel.AdvanceTo(nowNanos + i * 10000000L);
+				}
+
+				double tickNanos = (System.nanoTime() - tickStart) / (double)ticks;
+
+				if (round == 1) {
+					Report("timers.schedule", "clients=" + clients, scheduleNanos, "ns");
+					Report("timers.tick", "clients=" + clients + (expired[0] == clients ? "" : ",expired=" + expired[0]), tickNanos, "ns");
+				}
+			}
+		}
+	}
+
+	// What every request and log line pays for the time! The old "Calendar" per request and formatting per line against the clock thread.
+	private static void ClockReads() {
+		System.out.println("--- clock ---");
+
+		java.time.format.DateTimeFormatter format = java.time.format.DateTimeFormatter.ofPattern("dd-MM-yyyy HH-mm-ss").withZone(java.time.ZoneId.systemDefault());
+
+		for (int round = 0; round < 2; round++) {	// the first round warms up the JIT
+			double calendarNanos = MeasureNanos(1000000, () -> java.util.Calendar.getInstance().getTime().getTime());
+			double nanoTimeNanos = MeasureNanos(10000000, () -> System.nanoTime());
+			double clockNanos = MeasureNanos(10000000, () -> SocketServer.Clock.Millis());
+			double formatNanos = MeasureNanos(1000000, () -> format.format(Instant.ofEpochMilli(System.currentTimeMillis())).length());
+			double timestampNanos = MeasureNanos(10000000, () -> SocketServer.Clock.FormatTimestamp(SocketServer.Clock.WallMillis()).length());
+
+			if (round == 1) {
+				Report("clock.activity", "Calendar", calendarNanos, "ns");
+				Report("clock.activity", "System.nanoTime", nanoTimeNanos, "ns");
+				Report("clock.activity", "Clock.Millis", clockNanos, "ns");
+				Report("clock.timestamp", "formatted", formatNanos, "ns");
+				Report("clock.timestamp", "cached", timestampNanos, "ns");
+			}
+		}
+	}
+
+	// Nanoseconds per call! The results get summed up, so the calls can't be left out.
+	private static double MeasureNanos(int count, java.util.function.LongSupplier operation) {
+		long sum = 0;
+		long startNanos = System.nanoTime();
+
+		for (int i = 0; i < count; i++) {
+			sum += operation.getAsLong();
+		}
+
+		double nanos = (System.nanoTime() - startNanos) / (double)count;
+
+		if (sum == 42) {
+			System.out.println("Unlikely!");
+		}
+
+		return nanos;
+	}
+
+	// Lines per second into the log ring, written to a log file! The console output of the writer is thrown away meanwhile.
+	private static void LoggerThroughput() throws Exception {
+		int cores = Runtime.getRuntime().availableProcessors();
+
+		System.out.println("--- logger ---");
+
+		Path folder = Files.createTempDirectory("logs");
+		SocketServer.Logger.SetFolder(folder.toString());
+
+		PrintStream out = System.out;
+		Runnable log = () -> SocketServer.Logger.LogInfo("Client 127.0.0.1 at 50000: GETMENU Wienerschnitzel 1");
+
+		double[] linesPerSecond = new double[cores * 2 + 1];
+
+		System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+		try {
+			RunLoop(cores, WARMUP_MILLIS, log);
+
+			for (int threads = 1; threads <= cores * 2; threads *= 2) {
+				linesPerSecond[threads] = RunLoop(threads, MEASURE_MILLIS, log);
+			}
+
+			Thread.sleep(500);	// the writer drains the ring!
+		}
+		finally {
+			System.setOut(out);
+		}
+
+		for (int threads = 1; threads <= cores * 2; threads *= 2) {
+			Report("logger.info", "threads=" + threads, linesPerSecond[threads], "lines/s");
+		}
+
+		DeleteFolder(folder);
+	}
+
+	// Every thread orders and waits until its order is on disk! One fsync per order against one per group commit.
+	private static void JournalCommits() throws Exception {
+		int threads = 32;
+
+		System.out.println(String.format("--- order journal, %s ordering threads ---", threads));
+
+		// With a cheap fsync (e.g. a disk cache) the window only adds waiting, it pays off once an fsync takes longer than the window!
+		Report("journal.commit", "fsync per order", RunJournal(threads, 0, SocketServer.OrderJournal.RECORD_SIZE), "orders/s");
+		Report("journal.commit", "group, no window", RunJournal(threads, 0, 64 * 1024), "orders/s");
+		Report("journal.commit", "group, 2 ms window", RunJournal(threads, 2, 64 * 1024), "orders/s");
+	}
+
+	private static double RunJournal(int threadCount, long commitMillis, int commitBytes) throws Exception {
+		Path folder = Files.createTempDirectory("journal");
+
+		SocketServer.MenuCatalog catalog = new SocketServer.MenuCatalog(1);
+		SocketServer.MenuModel model = catalog.Add("Wienerschnitzel", 10.50f, Integer.MAX_VALUE);
+
+		SocketServer.OrderJournal.Open(folder.toString(), catalog, commitMillis, commitBytes, 1000000);
+
+		AtomicLong orders = new AtomicLong(0);
+		AtomicBoolean isStopped = new AtomicBoolean(false);
+		Thread[] threads = new Thread[threadCount];
+
+		for (int i = 0; i < threadCount; i++) {
+			threads[i] = new Thread(() -> {
+				long count = 0;
+
+				while (!isStopped.get()) {
+					model.TryOrder(1);
+					long sequence = SocketServer.OrderJournal.Append(model.getSlot(), 1, null);
+
+					while (SocketServer.OrderJournal.GetDurableSequence() < sequence) {
+						LockSupport.parkNanos(50000);
+					}
+					count++;
+				}
+
+				orders.addAndGet(count);
+			});
+			threads[i].start();
+		}
+
+		long startNanos = System.nanoTime();
+		Thread.sleep(MEASURE_MILLIS);
+		isStopped.set(true);
+
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		double seconds = (System.nanoTime() - startNanos) / 1000000000.0;
+
+		SocketServer.OrderJournal.Close();
+		DeleteFolder(folder);
+
+		return orders.get() / seconds;
+	}
+
+
+	// What every request pays for its counter and latency histogram! One thread and all cores recording the same command.
+	private static void MetricsRecording() throws Exception {
+		int cores = Runtime.getRuntime().availableProcessors();
+
+		System.out.println("--- metrics recording ---");
+
+		RunMetrics(cores, WARMUP_MILLIS);
+
+		for (int threads = 1; threads <= cores * 2; threads *= 2) {
+			Report("metrics.record", "threads=" + threads, RunMetrics(threads, MEASURE_MILLIS), "ns");
+		}
+
+		CheckEvictions();
+	}
+
+	// Every way a client gets kicked has to show up in the metrics! Two server processes, one kicks for inactivity after a second.
+	// The other one gets console commands: a kick with and without a message, and broadcasts for a client which doesn't read.
+	private static void CheckEvictions() throws Exception {
+		Path folder = Files.createTempDirectory("evictions");
+		Path idleFolder = Files.createTempDirectory("evictions");
+		int port = GetFreePort();
+		int metricsPort = GetFreePort();
+		int idlePort = GetFreePort();
+		int idleMetricsPort = GetFreePort();
+		Process server = StartServer(folder, port, "--metrics-port", String.valueOf(metricsPort));
+		Process idleServer = StartServer(idleFolder, idlePort, "--metrics-port", String.valueOf(idleMetricsPort), "--max-inactivity", "1");
+
+		try {
+			PrintStream console = new PrintStream(server.getOutputStream(), true, StandardCharsets.UTF_8);
+
+			// Kicked with a message, then without one!
+			try (Socket socket = Connect(port)) {
+				SkipFrame(new DataInputStream(socket.getInputStream()));
+				console.println("KICKALL Closing time");
+				WaitForEviction(metricsPort, "OTHER", 1);
+			}
+
+			try (Socket socket = Connect(port)) {
+				SkipFrame(new DataInputStream(socket.getInputStream()));
+				console.println("KICKALL");
+				WaitForEviction(metricsPort, "OTHER", 2);
+			}
+
+			// Never reads! The broadcasts fill the socket, then the queue over the high-water mark.
+			try (Socket socket = new Socket()) {
+				socket.setReceiveBufferSize(4096);
+				socket.connect(new InetSocketAddress("127.0.0.1", port));
+
+				String broadcast = "BROADCAST Today " + "Kaiserschmarn ".repeat(2000);
+
+				for (int i = 0; i < 2000 && GetEvictions(metricsPort, "SLOW_CONSUMER") == 0; i += 100) {
+					for (int j = 0; j < 100; j++) {
+						console.println(broadcast);
+					}
+				}
+
+				WaitForEviction(metricsPort, "SLOW_CONSUMER", 1);
+			}
+
+			// Says nothing after the welcome!
+			try (Socket socket = Connect(idlePort)) {
+				SkipFrame(new DataInputStream(socket.getInputStream()));
+				WaitForEviction(idleMetricsPort, "INACTIVITY", 1);
+			}
+
+			String[] reasons = { "INACTIVITY", "SLOW_CONSUMER", "OTHER" };
+			long[] kicked = { 1, 1, 2 };
+
+			for (int i = 0; i < reasons.length; i++) {
+				long evictions = GetEvictions(metricsPort, reasons[i]) + GetEvictions(idleMetricsPort, reasons[i]);
+				Report("metrics.evictions", "reason=" + reasons[i], evictions, "clients");
+
+				if (evictions != kicked[i]) {
+					System.out.println(String.format("Evictions for %s: %s counted, but %s clients got kicked!", reasons[i], evictions, kicked[i]));
+				}
+			}
+		}
+		finally {
+			server.destroy();
+			idleServer.destroy();
+			server.waitFor();
+			idleServer.waitFor();
+			DeleteFolder(folder);
+			DeleteFolder(idleFolder);
+		}
+	}
+
+	// Up to 10 s, the kick happens on another thread of the server!
+	private static void WaitForEviction(int metricsPort, String reason, long count) throws Exception {
+		for (int attempt = 0; attempt < 100 && GetEvictions(metricsPort, reason) < count; attempt++) {
+			Thread.sleep(100);
+		}
+	}
+
+	// From the scrape endpoint: javasockets_evictions_total{reason="OTHER"} 2.0
+	private static long GetEvictions(int metricsPort, String reason) throws Exception {
+		String prefix = String.format("javasockets_evictions_total{reason=\"%s\"} ", reason);
+
+		for (int attempt = 0; ; attempt++) {
+			try (java.io.InputStream in = new java.net.URL(String.format("http://127.0.0.1:%s/metrics", metricsPort)).openStream()) {
+				for (String line : new String(in.readAllBytes(), StandardCharsets.UTF_8).split("\n")) {
+					if (line.startsWith(prefix)) {
+						return (long)Double.parseDouble(line.substring(prefix.length()).trim());
+					}
+				}
+				return 0;
+			}
+			catch (java.net.ConnectException e) {
+				if (attempt == 100) {
+					throw e;
+				}
+
+				Thread.sleep(100);	// not started yet
+			}
+		}
+	}
+
+	private static double RunMetrics(int threadCount, int millis) throws Exception {
+		AtomicLong records = new AtomicLong(0);
+		AtomicBoolean isStopped = new AtomicBoolean(false);
+		Thread[] threads = new Thread[threadCount];
+
+		for (int i = 0; i < threadCount; i++) {
+			threads[i] = new Thread(() -> {
+				long count = 0;
+
+				while (!isStopped.get()) {
+					SocketServer.Metrics.RecordRequest(SocketServer.Protocol.OP_GETMENU, 1000 + (count & 0xFFFF));
+					count++;
+				}
+
+				records.addAndGet(count);
+			});
+			threads[i].start();
+		}
+
+		long startNanos = System.nanoTime();
+		Thread.sleep(millis);
+		isStopped.set(true);
+
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		return (System.nanoTime() - startNanos) * (double)threadCount / records.get();
+	}
+
+
+	// Real round trips over the loopback! The server runs as its own process with the default mode, one blocking request per connection at a time.
+	private static void LoopbackRoundTrips() throws Exception {
+		int port = GetFreePort();
+
+		Path folder = Files.createTempDirectory("loopback");
+		Process server = StartServer(folder, port);
+
+		System.out.println(String.format("--- loopback round trips, GETMENUS, port %s ---", port));
+
+		try {
+			RunLoopback(port, 4, WARMUP_MILLIS);
+
+			for (int connections = 1; connections <= 64; connections *= 4) {
+				SocketServer.Histogram latencies = new SocketServer.Histogram();
+				double requestsPerSecond = RunLoopback(port, connections, MEASURE_MILLIS, latencies);
+				long[] counts = latencies.GetCounts();
+
+				Report("loopback.getmenus", "connections=" + connections, requestsPerSecond, "requests/s");
+				Report("loopback.getmenus.p50", "connections=" + connections, SocketServer.Histogram.GetQuantile(counts, 0.5) / 1000.0, "us");
+				Report("loopback.getmenus.p99", "connections=" + connections, SocketServer.Histogram.GetQuantile(counts, 0.99) / 1000.0, "us");
+			}
+		}
+		finally {
+			server.destroy();
+			server.waitFor();
+			DeleteFolder(folder);
+		}
+	}
+
+	private static int GetFreePort() throws Exception {
+		try (ServerSocket probe = new ServerSocket(0)) {
+			return probe.getLocalPort();
+		}
+	}
+
+	// The server writes its journal, sessions and logs into the working directory!
+	private static Process StartServer(Path folder, int port, String... options) throws Exception {
+		StringBuilder classPath = new StringBuilder();
+
+		for (String entry : System.getProperty("java.class.path").split(java.io.File.pathSeparator)) {
+			classPath.append(classPath.length() > 0 ? java.io.File.pathSeparator : "").append(Paths.get(entry).toAbsolutePath());
+		}
+
+		List<String> command = new ArrayList<String>(Arrays.asList(Paths.get(System.getProperty("java.home"), "bin", "java").toString(), "-cp", classPath.toString(), "SocketServer", "--port", String.valueOf(port)));
+		command.addAll(Arrays.asList(options));
+
+		return new ProcessBuilder(command)
+			.directory(folder.toFile())
+			.redirectErrorStream(true)
+			.redirectOutput(ProcessBuilder.Redirect.DISCARD)
+			.start();
+	}
+
+	private static double RunLoopback(int port, int connectionCount, int millis) throws Exception {
+		return RunLoopback(port, connectionCount, millis, new SocketServer.Histogram());
+	}
+
+	private static double RunLoopback(int port, int connectionCount, int millis, SocketServer.Histogram latencies) throws Exception {
+		Socket[] sockets = new Socket[connectionCount];
+
+		for (int i = 0; i < connectionCount; i++) {
+			sockets[i] = Connect(port);
+		}
+
+		byte[] request = "GETMENUS\r\n".getBytes(StandardCharsets.US_ASCII);
+		AtomicLong requests = new AtomicLong(0);
+		AtomicBoolean isStopped = new AtomicBoolean(false);
+		Thread[] threads = new Thread[connectionCount];
+
+		for (int i = 0; i < connectionCount; i++) {
+			Socket socket = sockets[i];
+
+			threads[i] = new Thread(() -> {
+				long count = 0;
+
+				try {
+					DataInputStream in = new DataInputStream(new java.io.BufferedInputStream(socket.getInputStream()));
+					OutputStream out = socket.getOutputStream();
+
+					SkipFrame(in);	// welcome!
+
+					while (!isStopped.get()) {
+						long startNanos = System.nanoTime();
+
+						out.write(request);
+						out.flush();
+						SkipFrame(in);
+
+						latencies.Record(System.nanoTime() - startNanos);
+						count++;
+					}
+				}
+				catch (Exception e) {
+					System.out.println(String.format("Loopback connection failed! %s", e.getMessage()));
+				}
+
+				requests.addAndGet(count);
+			});
+			threads[i].start();
+		}
+
+		long startNanos = System.nanoTime();
+		Thread.sleep(millis);
+		isStopped.set(true);
+
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		double seconds = (System.nanoTime() - startNanos) / 1000000000.0;
+
+		for (Socket socket : sockets) {
+			socket.close();
+		}
+
+		return requests.get() / seconds;
+	}
+
+	// The server process needs a moment to start!
+	private static Socket Connect(int port) throws Exception {
+		for (int attempt = 0; ; attempt++) {
+			try {
+				Socket socket = new Socket("127.0.0.1", port);
+				socket.setTcpNoDelay(true);
+				return socket;
+			}
+			catch (java.net.ConnectException e) {
+				if (attempt == 100) {
+					throw e;
+				}
+
+				Thread.sleep(100);
+			}
+		}
+	}
+
+	// Many clients lose the server at the same moment, it restarts right away! The old fixed 3 s countdown against backoff with jitter.
+	// Counts the connection attempts in the busiest 100 ms, how long the clients needed to come back and how many got their session back.
+	private static void ReconnectStorm() throws Exception {
+		int clients = 200;
+
+		System.out.println(String.format("--- reconnect storm, %s clients, server restarts ---", clients));
+
+		RunStorm(clients, "fixed 3 s", attempt -> 3000L);
+		RunStorm(clients, "backoff with jitter", Client::GetReconnectDelayMillis);
+	}
+
+	private interface ReconnectPolicy {
+		long GetDelayMillis(int attempt);
+	}
+
+	private static void RunStorm(int clientCount, String name, ReconnectPolicy policy) throws Exception {
+		int port = GetFreePort();
+
+		Path folder = Files.createTempDirectory("storm");
+		Process server = StartServer(folder, port);
+
+		AtomicLong[] attemptsPer100Millis = new AtomicLong[600];	// one minute
+		for (int i = 0; i < attemptsPer100Millis.length; i++) {
+			attemptsPer100Millis[i] = new AtomicLong(0);
+		}
+
+		AtomicLong attempts = new AtomicLong(0);
+		AtomicLong failed = new AtomicLong(0);
+		AtomicLong resumed = new AtomicLong(0);
+		SocketServer.Histogram backNanos = new SocketServer.Histogram();
+		CountDownLatch connected = new CountDownLatch(clientCount);
+		long[] lostNanos = new long[1];
+		Thread[] threads = new Thread[clientCount];
+
+		for (int i = 0; i < clientCount; i++) {
+			threads[i] = new Thread(() -> {
+				try {
+					Socket socket = Connect(port);
+					DataInputStream in = new DataInputStream(socket.getInputStream());
+					String session = GetSession(ReadText(in));
+
+					connected.countDown();
+
+					while (in.read() >= 0) {
+						// Until the server is gone!
+					}
+					socket.close();
+
+					for (int attempt = 0; ; attempt++) {
+						Thread.sleep(policy.GetDelayMillis(attempt));
+
+						long now = System.nanoTime();
+						attempts.incrementAndGet();
+						attemptsPer100Millis[(int)Math.min(attemptsPer100Millis.length - 1, (now - lostNanos[0]) / 100000000L)].incrementAndGet();
+
+						try (Socket again = new Socket()) {
+							again.connect(new java.net.InetSocketAddress("127.0.0.1", port), 1000);
+							again.setSoTimeout(5000);
+
+							DataInputStream input = new DataInputStream(again.getInputStream());
+							ReadText(input);	// welcome
+
+							again.getOutputStream().write(String.format("RESUME %s 0 0\n", session).getBytes(StandardCharsets.US_ASCII));
+
+							if (ReadText(input).startsWith("Resumed!")) {
+								resumed.incrementAndGet();
+							}
+
+							backNanos.Record(System.nanoTime() - lostNanos[0]);
+							return;
+						}
+						catch (java.io.IOException e) {
+							failed.incrementAndGet();
+						}
+					}
+				}
+				catch (Exception e) {
+					System.out.println(String.format("Storm client failed! %s", e.getMessage()));
+				}
+			});
+			threads[i].start();
+		}
+
+		connected.await();
+
+		// Gone and back at once, like a restart!
+		lostNanos[0] = System.nanoTime();
+		server.destroy();
+		server.waitFor();
+		server = StartServer(folder, port);
+
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		server.destroy();
+		server.waitFor();
+		DeleteFolder(folder);
+
+		long peak = 0;
+
+		for (AtomicLong count : attemptsPer100Millis) {
+			peak = Math.max(peak, count.get());
+		}
+
+		long[] counts = backNanos.GetCounts();
+
+		Report("reconnect.peak", name, peak, "attempts/100ms");
+		Report("reconnect.attempts", name, attempts.get(), "attempts");
+		Report("reconnect.failed", name, failed.get(), "attempts");
+		Report("reconnect.back.p50", name, SocketServer.Histogram.GetQuantile(counts, 0.5) / 1e9, "s");
+		Report("reconnect.back.max", name, SocketServer.Histogram.GetQuantile(counts, 1.0) / 1e9, "s");
+		Report("reconnect.resumed", name, resumed.get(), "clients");
+	}
+
+	// How cheap a "no" is! New connections to a full server against welcomed ones, requests over the rate limit against served ones.
+	private static void AdmissionControl() throws Exception {
+		System.out.println("--- admission control ---");
+
+		SocketServer.TokenBucket bucket = new SocketServer.TokenBucket(1000, 2000);
+		long now = System.nanoTime();
+		long taken = 0;
+		int count = 100000000;
+
+		long startNanos = System.nanoTime();
+		for (int i = 0; i < count; i++) {
+			now += 100;		// ten times the rate, most requests get shed
+			taken += bucket.TryTake(now) ? 1 : 0;
+		}
+		Report("admission.token_bucket", "-", (System.nanoTime() - startNanos) / (double)count, "ns");
+
+		if (taken == 0) {
+			System.out.println("Token bucket never let a request through!");
+		}
+
+		Path folder = Files.createTempDirectory("admission");
+		Path fullFolder = Files.createTempDirectory("admission");
+		int port = GetFreePort();
+		int fullPort = GetFreePort();
+		Process server = StartServer(folder, port);
+		Process fullServer = StartServer(fullFolder, fullPort, "--max-connections", "1", "--rate-limit", "1", "1");
+
+		// The only connection the full server lets in!
+		try (Socket socket = Connect(port); Socket holder = Connect(fullPort)) {
+			RunConnects(port, WARMUP_MILLIS);
+			RunConnects(fullPort, WARMUP_MILLIS);
+
+			Report("admission.connect", "welcomed", RunConnects(port, MEASURE_MILLIS), "connections/s");
+			Report("admission.connect", "server busy", RunConnects(fullPort, MEASURE_MILLIS), "connections/s");
+
+			SkipFrame(new DataInputStream(socket.getInputStream()));	// welcome!
+			SkipFrame(new DataInputStream(holder.getInputStream()));
+
+			RunPipelined(socket, 10000);
+			Report("admission.pipelined", "served", RunPipelined(socket, 100000), "requests/s");
+			Report("admission.pipelined", "rate limited", RunPipelined(holder, 100000), "requests/s");
+		}
+		finally {
+			server.destroy();
+			fullServer.destroy();
+			server.waitFor();
+			fullServer.waitFor();
+			DeleteFolder(folder);
+			DeleteFolder(fullFolder);
+		}
+	}
+
+	// Thousands of clients connect at the same moment! Counts from the connect until the welcome arrived, with one and with four acceptors.
+	private static void ConnectionBursts() throws Exception {
+		int[] bursts = { 1000, 2000, 5000, 10000 };
+
+		System.out.println(String.format("--- connection bursts, %s cores ---", Runtime.getRuntime().availableProcessors()));
+
+		for (int acceptors : new int[] { 1, 4 }) {
+			Path folder = Files.createTempDirectory("connect");
+			int port = GetFreePort();
+			Process server = StartServer(folder, port, "--acceptors", String.valueOf(acceptors), "--max-connections", "20000");
+
+			try {
+				Connect(port).close();	// up!
+				RunBurst(port, 1000, new SocketServer.Histogram());
+
+				for (int burst : bursts) {
+					SocketServer.Histogram welcomeNanos = new SocketServer.Histogram();
+					String params = String.format("acceptors=%s burst=%s", acceptors, burst);
+					double connectionsPerSecond = RunBurst(port, burst, welcomeNanos);
+					long[] counts = welcomeNanos.GetCounts();
+
+					Report("connect.burst", params, connectionsPerSecond, "connections/s");
+					Report("connect.welcome.p50", params, SocketServer.Histogram.GetQuantile(counts, 0.5) / 1e6, "ms");
+					Report("connect.welcome.p99", params, SocketServer.Histogram.GetQuantile(counts, 0.99) / 1e6, "ms");
+					Report("connect.welcome.max", params, SocketServer.Histogram.GetQuantile(counts, 1.0) / 1e6, "ms");
+				}
+			}
+			finally {
+				server.destroy();
+				server.waitFor();
+				DeleteFolder(folder);
+			}
+		}
+	}
+
+	// All connects start non-blocking at once, one selector waits for the welcomes! Returns the connections per second of the whole burst.
+	private static double RunBurst(int port, int count, SocketServer.Histogram welcomeNanos) throws Exception {
+		SocketChannel[] channels = new SocketChannel[count];
+		ByteBuffer[] welcomes = new ByteBuffer[count];
+		long[] startNanos = new long[count];
+		int done = 0;
+
+		try (Selector selector = Selector.open()) {
+			long burstNanos = System.nanoTime();
+
+			for (int i = 0; i < count; i++) {
+				channels[i] = SocketChannel.open();
+				channels[i].configureBlocking(false);
+				startNanos[i] = System.nanoTime();
+
+				int ops = channels[i].connect(new InetSocketAddress("127.0.0.1", port)) ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT;
+				channels[i].register(selector, ops, i);
+			}
+
+			while (done < count) {
+				if (selector.select(10000) == 0) {
+					throw new java.io.IOException(String.format("Only %s of %s clients got their welcome!", done, count));
+				}
+
+				for (SelectionKey key : selector.selectedKeys()) {
+					int i = (Integer)key.attachment();
+
+					if (key.isConnectable()) {
+						channels[i].finishConnect();
+						key.interestOps(SelectionKey.OP_READ);
+						continue;
+					}
+
+					if (welcomes[i] == null) {
+						welcomes[i] = ByteBuffer.allocate(4);
+					}
+
+					if (channels[i].read(welcomes[i]) < 0) {
+						throw new java.io.IOException("Server closed a connection before the welcome!");
+					}
+
+					if (!welcomes[i].hasRemaining() && welcomes[i].capacity() == 4) {
+						// The length is there, now the frame!
+						welcomes[i] = ByteBuffer.allocate(4 + (welcomes[i].getInt(0) & 0x7FFFFFFF)).put(welcomes[i].flip());
+						channels[i].read(welcomes[i]);
+					}
+
+					if (!welcomes[i].hasRemaining()) {
+						welcomeNanos.Record(System.nanoTime() - startNanos[i]);
+						key.cancel();
+						done++;
+					}
+				}
+				selector.selectedKeys().clear();
+			}
+
+			return count / ((System.nanoTime() - burstNanos) / 1e9);
+		}
+		finally {
+			for (SocketChannel channel : channels) {
+				if (channel != null) {
+					channel.close();
+				}
+			}
+
+			Thread.sleep(500);	// the server notices and lets them go
+		}
+	}
+
+	// Heap of the server for every idle connection! Live objects from the class histogram of "jcmd", before and after the connections.
+	// Up to 100k connections, as many as the file descriptor limit allows. More than one loopback address, one has too few ports.
+	private static void IdleFootprint() throws Exception {
+		int count = 100000;
+
+		if (ManagementFactory.getOperatingSystemMXBean() instanceof com.sun.management.UnixOperatingSystemMXBean system) {
+			count = (int)Math.min(count, system.getMaxFileDescriptorCount() - 1000);
+		}
+
+		Path folder = Files.createTempDirectory("footprint");
+		int port = GetFreePort();
+		Process server = StartServer(folder, port, "--max-connections", String.valueOf(count + 1000));
+		SocketChannel[] channels = new SocketChannel[count];
+
+		System.out.println(String.format("--- idle footprint, %s connections ---", count));
+
+		try {
+			Connect(port).close();	// up!
+			Thread.sleep(1000);		// the closed one is gone
+
+			java.util.Map<String, long[]> before = GetHistogram(server.pid());
+
+			for (int i = 0; i < count; i++) {
+				channels[i] = SocketChannel.open(new InetSocketAddress("127.0.0." + (1 + i / 25000), port));
+			}
+
+			// Every connection got accepted and welcomed!
+			for (int attempt = 0; attempt < 30 && GetHistogram(server.pid()).getOrDefault("SocketServer$ClientHandler", new long[2])[0] < count; attempt++) {
+				Thread.sleep(1000);
+			}
+
+			java.util.Map<String, long[]> after = GetHistogram(server.pid());
+			List<String> classes = new ArrayList<String>(after.keySet());
+			long totalBytes = 0;
+
+			for (String name : classes) {
+				totalBytes += GetGrowth(before, after, name)[1];
+			}
+
+			classes.sort(Comparator.comparingLong(name -> -GetGrowth(before, after, name)[1]));
+
+			Report("footprint.idle", "connections=" + count, totalBytes / (double)count, "bytes/connection");
+
+			for (String name : classes.subList(0, Math.min(12, classes.size()))) {
+				long[] growth = GetGrowth(before, after, name);
+				System.out.println(String.format("  %6.1f B  %5.2f objects  %s", growth[1] / (double)count, growth[0] / (double)count, name));
+			}
+		}
+		finally {
+			for (SocketChannel channel : channels) {
+				if (channel != null) {
+					channel.close();
+				}
+			}
+
+			server.destroy();
+			server.waitFor();
+			DeleteFolder(folder);
+		}
+	}
+
+	// Class name -> { instances, bytes }! "GC.class_histogram" only counts live objects, it runs a full collection first.
+	private static java.util.Map<String, long[]> GetHistogram(long pid) throws Exception {
+		Process jcmd = new ProcessBuilder(Paths.get(System.getProperty("java.home"), "bin", "jcmd").toString(), String.valueOf(pid), "GC.class_histogram")
+			.redirectErrorStream(true)
+			.start();
+
+		java.util.Map<String, long[]> histogram = new java.util.HashMap<String, long[]>();
+
+		// "   1:         12345        6789012  [B (java.base@21)"
+		for (String line : new String(jcmd.getInputStream().readAllBytes(), StandardCharsets.UTF_8).split("\n")) {
+			String[] columns = line.trim().split("\\s+");
+
+			if (columns.length >= 4 && columns[0].endsWith(":")) {
+				histogram.put(columns[3], new long[] { Long.parseLong(columns[1]), Long.parseLong(columns[2]) });
+			}
+		}
+
+		jcmd.waitFor();
+		return histogram;
+	}
+
+	private static long[] GetGrowth(java.util.Map<String, long[]> before, java.util.Map<String, long[]> after, String name) {
+		long[] start = before.getOrDefault(name, new long[2]);
+		long[] end = after.get(name);
+		return new long[] { end[0] - start[0], end[1] - start[1] };
+	}
+
+	// Connect, read the first frame, close! One after the other.
+	private static double RunConnects(int port, int millis) throws Exception {
+		long count = 0;
+		long startNanos = System.nanoTime();
+		long endNanos = startNanos + millis * 1000000L;
+
+		while (System.nanoTime() < endNanos) {
+			try (Socket socket = Connect(port)) {
+				SkipFrame(new DataInputStream(socket.getInputStream()));
+			}
+			count++;
+		}
+
+		return count / ((System.nanoTime() - startNanos) / 1000000000.0);
+	}
+
+	// "GETMENUS" as fast as the server answers! The requests get written by another thread, so both sides never wait for each other.
+	// The welcome has to be read already! Every run reads exactly its replies, nothing stays in the buffer.
+	private static double RunPipelined(Socket socket, int count) throws Exception {
+		DataInputStream in = new DataInputStream(new java.io.BufferedInputStream(socket.getInputStream()));
+		OutputStream out = new java.io.BufferedOutputStream(socket.getOutputStream());
+		byte[] request = "GETMENUS\n".getBytes(StandardCharsets.US_ASCII);
+
+		long startNanos = System.nanoTime();
+
+		Thread writer = new Thread(() -> {
+			try {
+				for (int i = 0; i < count; i++) {
+					out.write(request);
+				}
+				out.flush();
+			}
+			catch (Exception e) {
+				System.out.println(String.format("Pipelined writer failed! %s", e.getMessage()));
+			}
+		});
+		writer.start();
+
+		for (int i = 0; i < count; i++) {
+			SkipFrame(in);
+		}
+
+		writer.join();
+		return count / ((System.nanoTime() - startNanos) / 1000000000.0);
+	}
+
+	private static String ReadText(DataInputStream in) throws Exception {
+		byte[] text = new byte[in.readInt() & 0x7FFFFFFF];
+		in.readFully(text);
+		return new String(text, StandardCharsets.UTF_8);
+	}
+
+	// "Welcome Client! ID: Client-0;Session: TOKEN" -> "TOKEN"
+	private static String GetSession(String welcome) {
+		return welcome.substring(welcome.indexOf("Session: ") + "Session: ".length());
+	}
+
+	private static void SkipFrame(DataInputStream in) throws Exception {
+		int length = in.readInt() & 0x7FFFFFFF;
+		in.skipNBytes(length);
+	}
+
+
+	// Runs the operation in a loop on every thread! Returns the operations per second of all threads.
+	private static double RunLoop(int threadCount, int millis, Runnable operation) throws Exception {
+		AtomicLong operations = new AtomicLong(0);
+		AtomicBoolean isStopped = new AtomicBoolean(false);
+		Thread[] threads = new Thread[threadCount];
+
+		for (int i = 0; i < threadCount; i++) {
+			threads[i] = new Thread(() -> {
+				long count = 0;
+
+				while (!isStopped.get()) {
+					operation.run();
+					count++;
+				}
+
+				operations.addAndGet(count);
+			});
+			threads[i].start();
+		}
+
+		long startNanos = System.nanoTime();
+		Thread.sleep(millis);
+		isStopped.set(true);
+
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		return operations.get() / ((System.nanoTime() - startNanos) / 1000000000.0);
+	}
+
+	private static void DeleteFolder(Path folder) throws Exception {
+		try (java.util.stream.Stream<Path> files = Files.walk(folder)) {
+			files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		}
+	}
+}
@@ -4,15 +4,84 @@ import java.net.Socket;
 import java.util.Scanner;
 import java.nio.charset.StandardCharsets;
 import java.io.DataInputStream;
+import java.io.BufferedOutputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.io.ByteArrayOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.CRC32;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
 
 
 public class Client {
+	// Binary protocol, the same numbers as in the server!
+	private static final int HANDSHAKE = 0x80;
+	private static final int FEATURE_BINARY = 0x01;
+	private static final int FEATURE_COMPRESSION = 0x02;
+	private static final int COMPRESSED_FLAG = 0x80000000;	// in the length of a frame
+
+	private static final int OP_GETMENUS = 1;
+	private static final int OP_GETMENU = 2;
+	private static final int OP_EXIT = 3;
+	private static final int OP_HELP = 4;
+	private static final int OP_CATALOG = 5;
+
+	private static final int TYPE_ERROR = 0;
+	private static final int TYPE_MENUS = 1;
+	private static final int TYPE_ORDER = 2;
+	private static final int TYPE_GOODBYE = 3;
+	private static final int TYPE_HELP = 4;
+	private static final int TYPE_CATALOG = 5;
+	private static final int TYPE_BROADCAST = 6;
+	private static final int TYPE_KICK = 7;
+
+	private static final long RECONNECT_BASE_MILLIS = 250;
+	private static final long RECONNECT_MAX_MILLIS = 30 * 1000;
+
+	private static final String[] STATUS = { "Ok!", "Bad Request!", "Wrong usage! -> Usage: GETMENU NAME PORTIONS", "No menu found!", "Sold out!", "The node of this menu isn't reachable, please try again later!", "Too many requests! Please slow down.", "The order couldn't be saved, please try again later!" };
+	private static final String SERVER_BUSY = "Server busy!";	// instead of the welcome, the server is full
+
+	private SocketChannel channel;
 	private Socket socket;
 	private PrintWriter out = null;
 	private DataInputStream in = null;
 
 	private String ip;
 	private int port;
+
+	private boolean isBinary = false;
+	private volatile String[] menuNames = new String[0];		// by id, from the catalog
+	private Map<String, Integer> menuIds = new ConcurrentHashMap<>();	// upper case name -> id, read by every sending thread
+	private int position = 0;								// while decoding a frame
+
+	private Inflater inflater = null;						// reused for every compressed frame!
+	private byte[] dictionary = null;						// preset dictionary, from the handshake
+	private boolean isQuiet = false;						// load connections don't print what they negotiate
+	private String session = null;							// token from the welcome, resumes the session after a reconnect
+	private String welcome = null;							// first frame of the connection, read while connecting
+	private volatile boolean isKicked = false;				// kicked clients don't come back on their own
 	
 	
 	private Client(String ip, int port) {
@@ -21,12 +90,80 @@ public class Client {
 	}
 	
 	
+	// java Client.java [--host HOST] [--port PORT] [--binary] [--compress] [--pipeline DEPTH [COUNT] [REQUEST] | --load CONNECTIONS RATE SECONDS [MIX]]
 	public static void main(String[] args) {
 		System.out.println("Client started!");
-		
-		Client client = new Client("127.0.0.1", 5733);
-		client.ConnectToServer();
-		client.Communicate();
+
+		List<String> options = new ArrayList<String>(Arrays.asList(args));
+		String ip = TakeOption(options, "--host", "127.0.0.1");
+		int port = Integer.parseInt(TakeOption(options, "--port", "5733"));
+
+		args = options.toArray(new String[0]);
+
+		int features = 0;
+
+		if (Arrays.asList(args).contains("--binary")) {
+			features |= FEATURE_BINARY;
+		}
+
+		if (Arrays.asList(args).contains("--compress")) {
+			features |= FEATURE_COMPRESSION;
+		}
+
+		args = Arrays.stream(args).filter(arg -> !arg.equals("--binary") && !arg.equals("--compress")).toArray(String[]::new);
+
+		int load = Arrays.asList(args).indexOf("--load");
+
+		if (load >= 0) {
+			int connections = args.length > load + 1 ? Integer.parseInt(args[load + 1]) : 16;
+			int rate = args.length > load + 2 ? Integer.parseInt(args[load + 2]) : 1000;
+			int seconds = args.length > load + 3 ? Integer.parseInt(args[load + 3]) : 10;
+			String mix = args.length > load + 4 ? args[load + 4] : "GETMENUS:70,GETMENU:20,HELP:10";
+
+			RunLoad(ip, port, features, connections, rate, seconds, mix);
+			return;
+		}
+
+		Client client = new Client(ip, port);
+		client.ConnectToServer(false);
+
+		if (!client.Start(features)) {
+			client.CloseConnection();
+			return;
+		}
+
+		int pipeline = Arrays.asList(args).indexOf("--pipeline");
+
+		if (pipeline >= 0) {
+			int depth = args.length > pipeline + 1 ? Integer.parseInt(args[pipeline + 1]) : 16;
+			int count = args.length > pipeline + 2 ? Integer.parseInt(args[pipeline + 2]) : 100000;
+			String request = args.length > pipeline + 3 ? String.join(" ", Arrays.copyOfRange(args, pipeline + 3, args.length)) : "GETMENUS";
+
+			client.RunPipeline(depth, count, request);
+		}
+		else {
+			client.Communicate(features);
+		}
+	}
+
+
+	// Removes "NAME VALUE" from the options! The default if it isn't there.
+	private static String TakeOption(List<String> options, String name, String defaultValue) {
+		int index = options.indexOf(name);
+
+		if (index < 0 || index + 1 >= options.size()) {
+			return defaultValue;
+		}
+
+		String value = options.get(index + 1);
+		options.subList(index, index + 2).clear();
+		return value;
+	}
+
+	private void Info(String text) {
+		if (!isQuiet) {
+			System.out.println(text);
+		}
 	}
 
 
@@ -76,117 +213,1205 @@ public class Client {
 
 
 	private String GetMessageFromServer() throws IOException {
+		byte[] message = ReadFrame();
+
+		if (message == null) {
+			return null;
+		}
+
+		if (isBinary) {
+			return Decode(message);
+		}
+
+		return FormatString(new String(message, StandardCharsets.UTF_8));
+	}
+
+	private byte[] ReadFrame() throws IOException {
 		int length = in.readInt();
-		byte[] message = new byte[length];
+		boolean isCompressed = (length & COMPRESSED_FLAG) != 0;
 
-		if (length <= 0) {
+		length &= ~COMPRESSED_FLAG;
+
+		if (length <= 0 || (isCompressed && inflater == null)) {
 			System.err.println("Error: Wrong format!");
 
 			return null;
-		} else {
-			in.readFully(message, 0, message.length);
+		}
+
+		byte[] message = new byte[length];
+		in.readFully(message, 0, message.length);
+
+		return isCompressed ? Inflate(message) : message;
+	}
+
+	// Original length (4 bytes) + raw deflate data with the preset dictionary!
+	private byte[] Inflate(byte[] payload) throws IOException {
+		int length = ((payload[0] & 0xFF) << 24) | ((payload[1] & 0xFF) << 16) | ((payload[2] & 0xFF) << 8) | (payload[3] & 0xFF);
+		byte[] message = new byte[length];
+
+		inflater.reset();
+
+		if (dictionary.length > 0) {
+			inflater.setDictionary(dictionary);
+		}
+
+		inflater.setInput(payload, 4, payload.length - 4);
+
+		try {
+			int inflated = 0;
+
+			while (inflated < length && !inflater.finished()) {
+				int count = inflater.inflate(message, inflated, length - inflated);
+
+				if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				inflated += count;
+			}
+
+			if (inflated != length) {
+				throw new IOException("Compressed frame is broken!");
+			}
+		}
+		catch (java.util.zip.DataFormatException e) {
+			throw new IOException("Compressed frame is broken!", e);
+		}
+
+		return message;
+	}
+
+
+	// Right after connecting! Shows the welcome, then resumes the last session if there is one, else negotiates the features.
+	private boolean Start(int features) {
+		try {
+			Info(FormatString(welcome));
+
+			String lastSession = session;
+			session = GetField(welcome, "Session: ");
+
+			if (lastSession != null && Resume(lastSession, features)) {
+				return true;
+			}
+
+			isBinary = false;
+			return features == 0 || Negotiate(features);
+		}
+		catch (Exception e) {
+			System.err.println("\nWarning: Server disconnected or error happend!");
+			return false;
+		}
+	}
+
+	// "RESUME TOKEN FEATURES DICTIONARY": the old id and the features in one round trip, no handshake and no catalog!
+	// The server only switches compression on if the dictionary didn't change. Returns false if the session is gone.
+	private boolean Resume(String token, int features) throws IOException {
+		long crc = 0;
+
+		if (dictionary != null) {
+			CRC32 checksum = new CRC32();
+			checksum.update(dictionary, 0, dictionary.length);
+			crc = checksum.getValue();
+		}
+
+		out.print(String.format("RESUME %s %s %s\n", token, features, Long.toHexString(crc)));
+		out.flush();
+
+		String reply = new String(ReadFrame(), StandardCharsets.UTF_8);
+		Info(FormatString(reply));
+
+		if (!reply.startsWith("Resumed!")) {
+			return false;	// still connected, as a new client
+		}
+
+		int granted = Integer.parseInt(GetField(reply, "Features: "));
+
+		session = GetField(reply, "Session: ");
+		isBinary = (granted & FEATURE_BINARY) != 0;
+		inflater = (granted & FEATURE_COMPRESSION) != 0 ? new Inflater(true) : null;
+		return true;
+	}
+
+	// "Welcome Client! ID: Client-0;Session: TOKEN" -> "TOKEN"
+	private static String GetField(String text, String name) {
+		int start = text.indexOf(name);
+
+		if (start < 0) {
+			return null;
+		}
 
-			return FormatString(new String(message, StandardCharsets.UTF_8));
+		start += name.length();
+		int end = text.indexOf(';', start);
+		return text.substring(start, end < 0 ? text.length() : end).trim();
+	}
+
+	// Exponential backoff with full jitter! Clients which lost the server at the same moment don't all come back at the same moment.
+	public static long GetReconnectDelayMillis(int attempt) {
+		long ceiling = Math.min(RECONNECT_MAX_MILLIS, RECONNECT_BASE_MILLIS << Math.min(attempt, 20));
+		return ThreadLocalRandom.current().nextLong(ceiling + 1);
+	}
+
+
+	// Handshake right after the welcome! With the binary protocol the names of the menus come next, binary requests only use their ids.
+	private boolean Negotiate(int features) {
+		try {
+			socket.getOutputStream().write(HANDSHAKE | features);
+			socket.getOutputStream().flush();
+
+			byte[] ack = ReadFrame();
+
+			if (ack == null || (ack[0] & 0xC0) != HANDSHAKE || (ack[0] & features) != features) {
+				System.err.println("Error: Server doesn't support the requested features!");
+				return false;
+			}
+
+			if ((features & FEATURE_COMPRESSION) != 0) {
+				dictionary = Arrays.copyOfRange(ack, 1, ack.length);
+				inflater = new Inflater(true);
+
+				Info(String.format("Using compression! (%s bytes dictionary)", dictionary.length));
+			}
+
+			if ((features & FEATURE_BINARY) != 0) {
+				isBinary = true;
+
+				socket.getOutputStream().write(OP_CATALOG);
+				socket.getOutputStream().flush();
+
+				Info(GetMessageFromServer());
+				Info("Using the binary protocol!\n");
+			}
+			return true;
+		}
+		catch (Exception e) {
+			System.err.println("\nWarning: Server disconnected or error happend!");
+			return false;
 		}
 	}
 
-	
-	private void Communicate() {
-		Scanner scanner = new Scanner(System.in);
-		
-		new Thread(new Runnable() {
-			@Override
-			public void run() {
-				try {
-					while(true) {
-						if (socket.getInputStream().available() > 0) {
-							String input = GetMessageFromServer();
-							if (input != null) {
-								System.out.println();
-								System.out.println(input);
-								System.out.println("\n");
-
-								System.out.print("-> Please enter request: ");
-							}
-						}
+	// A typed request from the text command! "null" if it can't be one.
+	private byte[] Encode(String command) {
+		String[] tokens = command.trim().split("\\s+");
+		ByteArrayOutputStream request = new ByteArrayOutputStream();
 
-						Thread.sleep(20);
-					}
+		switch (tokens[0].toUpperCase()) {
+			case "GETMENUS":
+				request.write(OP_GETMENUS);
+				break;
+
+			case "GETMENU":
+				Integer id = tokens.length == 3 ? menuIds.get(tokens[1].toUpperCase()) : null;
+
+				if (id == null || !tokens[2].matches("[0-9]{1,9}")) {
+					System.err.println(id == null && tokens.length == 3 ? "Error: No menu found with name: " + tokens[1] : "Error: Usage: GETMENU NAME PORTIONS");
+					return null;
 				}
-				catch (Exception e) {
-					// disconnected or error happend
-					System.out.println("Socket closed!");
+
+				request.write(OP_GETMENU);
+				WriteVarint(request, id);
+				WriteVarint(request, Integer.parseInt(tokens[2]));
+				break;
+
+			case "EXIT":
+				request.write(OP_EXIT);
+				break;
+
+			case "HELP":
+				request.write(OP_HELP);
+				break;
+
+			case "CATALOG":
+				request.write(OP_CATALOG);
+				break;
+
+			default:
+				System.err.println("Error: Unknown command!");
+				return null;
+		}
+
+		return request.toByteArray();
+	}
+
+	private static void WriteVarint(ByteArrayOutputStream stream, int value) {
+		while ((value & ~0x7F) != 0) {
+			stream.write((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		stream.write(value);
+	}
+
+	// Readable text from a typed response!
+	private String Decode(byte[] frame) {
+		position = 1;
+
+		switch (frame[0]) {
+			case TYPE_ERROR:
+				return GetStatus(frame[position]);
+
+			case TYPE_MENUS: {
+				int count = ReadVarint(frame);
+				StringBuilder text = new StringBuilder("Menu name\t\tPrice\t\tPortions");
+
+				for (int i = 0; i < count; i++) {
+					int id = ReadVarint(frame);
+					int cents = ReadVarint(frame);
+					int portions = ReadVarint(frame);
+
+					text.append(String.format("\n%s\t\t%s\t\t%s", GetMenuName(id), FormatPrice(cents), portions));
 				}
+				return text.toString();
 			}
-		}).start();
 
-		try {
-			while (true) {
-				System.out.print("-> Please enter request: ");
-				String scan = scanner.nextLine();
+			case TYPE_ORDER: {
+				int status = frame[position++];
 
-				out.println(scan);
-				out.flush();
+				if (status != 0) {
+					return GetStatus(status);
+				}
 
-				String input = GetMessageFromServer();
+				int id = ReadVarint(frame);
+				int ordered = ReadVarint(frame);
+				int left = ReadVarint(frame);
+				int cents = ReadVarint(frame);
 
-				if (input != null) {
-					System.out.println();
-					System.out.println(input);
-					System.out.println("\n");
+				return String.format("Selected menu:\t\t%s\nOrdered portions:\t%s\nPortions left:\t\t%s\nTotal price:\t\t%s", GetMenuName(id), ordered, left, FormatPrice(cents));
+			}
+
+			case TYPE_GOODBYE:
+				return "Goodbye Client!";
+
+			case TYPE_HELP:
+				return FormatString(ReadText(frame));
+
+			case TYPE_CATALOG: {
+				int count = ReadVarint(frame);
+				String[] names = new String[count];
+				StringBuilder text = new StringBuilder(String.format("Catalog: %s menus", count));
+
+				menuIds.clear();
+
+				for (int i = 0; i < count; i++) {
+					int id = ReadVarint(frame);
+					String name = ReadText(frame);
+					int cents = ReadVarint(frame);
+
+					if (id < count) {
+						names[id] = name;
+					}
+					menuIds.put(name.toUpperCase(), id);
+					text.append(String.format("\n%s\t%s\t\t%s", id, name, FormatPrice(cents)));
 				}
+
+				menuNames = names;
+				return text.toString();
 			}
-		} catch (Exception e) {
-			System.err.println("\nWarning: Server disconnected or error happend!");
+
+			case TYPE_BROADCAST:
+				return ReadText(frame);
+
+			case TYPE_KICK:
+				position++;	// reason
+				return ReadText(frame);
+
+			default:
+				return "Error: Unknown response!";
 		}
-		finally {
-			scanner.close();
-			CloseConnection();
+	}
+
+	private int ReadVarint(byte[] frame) {
+		int value = 0;
+
+		for (int shift = 0; ; shift += 7) {
+			int b = frame[position++] & 0xFF;
+			value |= (b & 0x7F) << shift;
+
+			if ((b & 0x80) == 0) {
+				return value;
+			}
 		}
 	}
-	
-	
-	private void CloseConnection() {
-		System.out.println("Closing open connection!");
 
+	private String ReadText(byte[] frame) {
+		int length = ReadVarint(frame);
+		String text = new String(frame, position, length, StandardCharsets.UTF_8);
+		position += length;
+		return text;
+	}
+
+	private String GetStatus(int status) {
+		return (status >= 0 && status < STATUS.length) ? STATUS[status] : "Error: Unknown status!";
+	}
+
+	private String GetMenuName(int id) {
+		return (id >= 0 && id < menuNames.length) ? menuNames[id] : "#" + id;
+	}
+
+	private static String FormatPrice(int cents) {
+		return String.format("%d.%02d,-", cents / 100, cents % 100);
+	}
+
+
+	// Keeps up to "depth" requests on the way! The server answers in order, so every reply belongs to the oldest open request.
+	private void RunPipeline(int depth, int count, String request) {
 		try {
-			in.close();
-			out.close();
-			socket.close();
+			Semaphore window = new Semaphore(depth);
+			byte[] line = isBinary ? Encode(request) : (request + "\n").getBytes(StandardCharsets.UTF_8);
+
+			if (line == null) {
+				return;
+			}
+
+			OutputStream stream = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+
+			Thread writer = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						for (int i = 0; i < count; i++) {
+							if (!window.tryAcquire()) {
+								// Window is full! Everything written so far goes out, then we wait for replies.
+								stream.flush();
+								window.acquire();
+							}
+
+							stream.write(line);
+						}
+
+						stream.flush();
+					}
+					catch (Exception e) {
+						System.err.println("\nError: Couldn't send the requests!");
+					}
+				}
+			});
+
+			long startNanos = System.nanoTime();
+			writer.start();
+
+			for (int i = 0; i < count; i++) {
+				ReadFrame();
+				window.release();
+			}
+
+			double seconds = (System.nanoTime() - startNanos) / 1000000000.0;
+
+			System.out.println(String.format("%s x \"%s\" with pipeline depth %s: %.2f s -> %.0f requests/s", count, request, depth, seconds, count / seconds));
 		}
 		catch (Exception e) {
-			System.err.println("Error: Couldn't close the connection!");
+			System.err.println("\nWarning: Server disconnected or error happend!");
+		}
+		finally {
+			CloseConnection();
 		}
 	}
-	
-	
-	private void ConnectToServer() {
-		boolean connected = false;
 
-		while (!connected) {
-			try {
-				socket = new Socket(ip, port);
 
-				out = new PrintWriter(socket.getOutputStream(), true);
-				in = new DataInputStream(socket.getInputStream());
+	// Open loop! Every connection sends on a fixed schedule, no matter how long the replies take. Replies come in order, so each one
+	// belongs to the oldest open request. Latencies count from the time a request should have been sent, so a stalled server
+	// can't hide its delay by holding back the requests which would have measured it (coordinated omission).
+	private static void RunLoad(String ip, int port, int features, int connectionCount, int rate, int seconds, String mix) {
+		Client[] clients = new Client[connectionCount];
 
-				connected = true;
+		for (int i = 0; i < connectionCount; i++) {
+			clients[i] = new Client(ip, port);
+			clients[i].isQuiet = true;
+			clients[i].ConnectToServer(false);
 
-				System.out.println("Connected to Server!\n");
+			if (!clients[i].Start(features)) {
+				System.err.println("Error: Couldn't open the connections!");
+				return;
 			}
-			catch (Exception e) {
-				System.err.println("\nError: Couln't connect to Server!");
+		}
+
+		List<byte[]> requests = new ArrayList<byte[]>();
+		List<String> names = new ArrayList<String>();
+
+		if (!clients[0].BuildMix(mix, requests, names)) {
+			for (Client client : clients) {
+				client.CloseConnection();
+			}
+			return;
+		}
+
+		System.out.println(String.format("Load: %s connections, %s requests/s, %s s, mix %s", connectionCount, rate, seconds, mix));
+
+		LatencyHistogram corrected = new LatencyHistogram();
+		LatencyHistogram uncorrected = new LatencyHistogram();
+		AtomicLong sent = new AtomicLong(0);
+		AtomicLong received = new AtomicLong(0);
+		AtomicLong errors = new AtomicLong(0);
+
+		long intervalNanos = Math.max(1, connectionCount * 1000000000L / Math.max(1, rate));
+		long startNanos = System.nanoTime() + 100000000L;	// everyone is ready!
+		long endNanos = startNanos + seconds * 1000000000L;
+		Thread[] threads = new Thread[connectionCount * 2];
+
+		for (int i = 0; i < connectionCount; i++) {
+			Client client = clients[i];
+			ConcurrentLinkedQueue<long[]> open = new ConcurrentLinkedQueue<long[]>();	// intended and actual send time
+			long firstNanos = startNanos + intervalNanos * i / connectionCount;		// spread over the interval!
+			AtomicBoolean isDone = new AtomicBoolean(false);	// set together with the last request, so the reader never waits for nothing
+
+			threads[i * 2] = new Thread(() -> {
+				try {
+					OutputStream stream = client.socket.getOutputStream();
+					long count = 0;
+
+					for (long intendedNanos = firstNanos; intendedNanos < endNanos; intendedNanos += intervalNanos) {
+						long now;
+
+						while ((now = System.nanoTime()) < intendedNanos) {
+							LockSupport.parkNanos(intendedNanos - now);
+						}
 
+						open.add(new long[] { intendedNanos, System.nanoTime() });
+
+						if (intendedNanos + intervalNanos >= endNanos) {
+							isDone.set(true);
+						}
+
+						stream.write(requests.get(ThreadLocalRandom.current().nextInt(requests.size())));
+						stream.flush();
+						count++;
+					}
+
+					sent.addAndGet(count);
+				}
+				catch (Exception e) {
+					errors.incrementAndGet();
+				}
+				finally {
+					isDone.set(true);
+				}
+			});
+
+			threads[i * 2 + 1] = new Thread(() -> {
 				try {
-					System.out.println("-> Trying to reconnect in 3s!");
-					Thread.sleep(1000);
-					System.out.println("-> Trying to reconnect in 2s!");
-					Thread.sleep(1000);
-					System.out.println("-> Trying to reconnect in 1s!");
-					Thread.sleep(1000);
-				} catch (Exception exc) {
-					exc.printStackTrace();
+					client.socket.setSoTimeout(10000);	// a reply which takes longer counts as an error
+
+					while (!isDone.get() || !open.isEmpty()) {
+						byte[] frame = client.ReadFrame();
+						long now = System.nanoTime();
+
+						if (frame == null) {
+							errors.incrementAndGet();
+							break;
+						}
+
+						if (client.IsPush(frame)) {
+							continue;	// broadcast, no reply!
+						}
+
+						long[] request = open.poll();
+
+						if (request == null) {
+							errors.incrementAndGet();
+							break;
+						}
+
+						corrected.Record(now - request[0]);
+						uncorrected.Record(now - request[1]);
+						received.incrementAndGet();
+					}
 				}
+				catch (Exception e) {
+					errors.incrementAndGet();
+				}
+			});
+		}
+
+		for (Thread thread : threads) {
+			thread.start();
+		}
+
+		for (Thread thread : threads) {
+			try {
+				thread.join();
+			}
+			catch (InterruptedException e) {
+				break;
+			}
+		}
+
+		double elapsed = (System.nanoTime() - startNanos) / 1000000000.0;
+
+		for (Client client : clients) {
+			client.CloseConnection();
+		}
+
+		System.out.println(String.format("Sent %s, received %s, errors %s in %.2f s -> %.0f requests/s", sent.get(), received.get(), errors.get(), elapsed, received.get() / elapsed));
+		System.out.println(String.format("Latency from the scheduled send (corrected): %s", corrected.Summary()));
+		System.out.println(String.format("Latency from the actual send (uncorrected):  %s", uncorrected.Summary()));
+	}
+
+	// "GETMENUS:70,GETMENU:20,HELP:10" -> encoded requests, each one as often as its weight! GETMENU orders one portion of a random menu.
+	private boolean BuildMix(String mix, List<byte[]> requests, List<String> names) {
+		try {
+			for (String part : mix.split(",")) {
+				String[] entry = part.split(":");
+				String command = entry[0].trim().toUpperCase();
+				int weight = entry.length > 1 ? Integer.parseInt(entry[1].trim()) : 1;
+
+				List<String> lines = new ArrayList<String>();
+
+				if (command.equals("GETMENU")) {
+					for (String name : GetMenuNames(names)) {
+						lines.add(String.format("GETMENU %s 1", name));
+					}
+				}
+				else {
+					lines.add(command);
+				}
+
+				for (int i = 0; i < weight; i++) {
+					String line = lines.get(i % lines.size());
+					byte[] request = isBinary ? Encode(line) : (line + "\n").getBytes(StandardCharsets.UTF_8);
+
+					if (request == null || command.equals("EXIT")) {
+						System.err.println(String.format("Error: \"%s\" can't be part of the mix!", command));
+						return false;
+					}
+					requests.add(request);
+				}
+			}
+			return !requests.isEmpty();
+		}
+		catch (Exception e) {
+			System.err.println("Error: Usage: --load CONNECTIONS RATE SECONDS COMMAND:WEIGHT,...");
+			return false;
+		}
+	}
+
+	// The binary catalog already came with the handshake, the text protocol asks for the menus!
+	private List<String> GetMenuNames(List<String> names) throws IOException {
+		if (!names.isEmpty()) {
+			return names;
+		}
+
+		if (isBinary) {
+			names.addAll(menuIds.keySet());
+		}
+		else {
+			out.println("GETMENUS");
+			out.flush();
+
+			String[] rows = new String(ReadFrame(), StandardCharsets.UTF_8).split(";");
+
+			for (int i = 1; i < rows.length; i++) {
+				names.add(rows[i].split("#")[0]);
+			}
+		}
+
+		if (names.isEmpty()) {
+			throw new IOException("No menus!");
+		}
+		return names;
+	}
+
+	// Broadcasts and kicks can come in between the replies!
+	private boolean IsPush(byte[] frame) {
+		if (isBinary) {
+			return frame[0] == TYPE_BROADCAST || frame[0] == TYPE_KICK;
+		}
+
+		return new String(frame, 0, Math.min(frame.length, 32), StandardCharsets.UTF_8).startsWith("Broadcast from server:") || IsKick(frame);
+	}
+
+	private boolean IsKick(byte[] frame) {
+		if (isBinary) {
+			return frame[0] == TYPE_KICK;
+		}
+
+		return new String(frame, 0, Math.min(frame.length, 32), StandardCharsets.UTF_8).startsWith("You got kicked");
+	}
+
+
+	// Log-linear buckets, 16 for every power of two! Lock-free, shared by all reading threads.
+	private static class LatencyHistogram {
+		private static final int SUB_BITS = 4;
+		private static final int SUB_COUNT = 1 << SUB_BITS;
+		private static final int BUCKET_COUNT = (64 - SUB_BITS) * SUB_COUNT;
+
+		private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+		private final AtomicLong max = new AtomicLong(0);
+		private final AtomicLong total = new AtomicLong(0);
+
+
+		public void Record(long nanos) {
+			nanos = Math.max(0, nanos);
+
+			counts.incrementAndGet(Index(nanos));
+			total.incrementAndGet();
+			max.accumulateAndGet(nanos, Math::max);
+		}
+
+		private static int Index(long value) {
+			if (value < SUB_COUNT) {
+				return (int)value;
+			}
+
+			int magnitude = 63 - Long.numberOfLeadingZeros(value);
+			return (magnitude - SUB_BITS + 1) * SUB_COUNT + (int)((value >>> (magnitude - SUB_BITS)) & (SUB_COUNT - 1));
+		}
+
+		private static long UpperBound(int index) {
+			if (index < SUB_COUNT) {
+				return index;
+			}
+
+			int magnitude = index / SUB_COUNT + SUB_BITS - 1;
+			return ((long)(SUB_COUNT + index % SUB_COUNT + 1) << (magnitude - SUB_BITS)) - 1;
+		}
+
+		public long GetQuantile(double quantile) {
+			long rank = Math.max(1, (long)Math.ceil(total.get() * quantile));
+			long seen = 0;
+
+			for (int i = 0; i < BUCKET_COUNT; i++) {
+				seen += counts.get(i);
+
+				if (seen >= rank) {
+					return Math.min(UpperBound(i), max.get());
+				}
+			}
+			return max.get();
+		}
+
+		public String Summary() {
+			if (total.get() == 0) {
+				return "no replies!";
+			}
+
+			return String.format("p50 %.3f ms, p99 %.3f ms, p99.9 %.3f ms, max %.3f ms", GetQuantile(0.5) / 1e6, GetQuantile(0.99) / 1e6, GetQuantile(0.999) / 1e6, max.get() / 1e6);
+		}
+	}
+
+
+
+	// The REPL runs on the asynchronous connection! Replies complete the request, broadcasts and kicks get printed whenever they come.
+	private void Communicate(int features) {
+		Scanner scanner = new Scanner(System.in);
+
+		Consumer<Response> pushListener = push -> {
+			if (push.IsKick()) {
+				isKicked = true;
+			}
+
+			System.out.println();
+			System.out.println(push.GetText());
+			System.out.println("\n");
+			System.out.print("-> Please enter request: ");
+		};
+
+		Connection connection = new Connection(this, pushListener);
+
+		isQuiet = true;	// the selector thread closes the connection when the server does, the REPL says so when it is done
+
+		try {
+			while (true) {
+				System.out.print("-> Please enter request: ");
+				String scan = scanner.nextLine();
+
+				if (!connection.IsOpen()) {
+					if (isKicked) {
+						break;
+					}
+
+					// Lost the server! Back with the same id once it is there again.
+					System.out.println("\nConnection lost!");
+
+					isQuiet = false;
+					CloseConnection();
+					ConnectToServer(true);
+
+					if (!Start(features)) {
+						break;
+					}
+
+					isQuiet = true;
+					connection = new Connection(this, pushListener);
+				}
+
+				try {
+					Response response = connection.Send(scan).get();
+
+					System.out.println();
+					System.out.println(response.GetText());
+					System.out.println("\n");
+
+					if (scan.trim().equalsIgnoreCase("EXIT")) {
+						break;	// the server closes the connection!
+					}
+				}
+				catch (ExecutionException e) {
+					if (e.getCause() instanceof IOException) {
+						// Not sent again on its own, it might have been an order which went through!
+						System.err.println("\nWarning: Server disconnected! Please enter the request again.");
+					}
+					// Not a request! The reason got printed already.
+				}
+			}
+		}
+		catch (Exception e) {
+			System.err.println("\nWarning: Server disconnected or error happend!");
+		}
+		finally {
+			scanner.close();
+			connection.close();
+
+			System.out.println("Closing open connection!");
+		}
+	}
+
+
+	// *****************************
+	// *                           *
+	// *  Asynchronous client API! *
+	// *                           *
+	// *****************************
+
+	// One reply or push of the server! The frame is already decompressed.
+	public static class Response {
+		private final byte[] frame;
+		private final String text;
+		private final boolean isPush;
+		private final boolean isKick;
+
+
+		private Response(byte[] frame, String text, boolean isPush, boolean isKick) {
+			this.frame = frame;
+			this.text = text;
+			this.isPush = isPush;
+			this.isKick = isKick;
+		}
+
+
+		public byte[] GetFrame() {
+			return frame;
+		}
+
+		// Readable, like the REPL prints it!
+		public String GetText() {
+			return text;
+		}
+
+		// Broadcasts, kicks and the welcome! Not the answer to a request.
+		public boolean IsPush() {
+			return isPush;
+		}
+
+		// The server closes the connection right after it!
+		public boolean IsKick() {
+			return isKick;
+		}
+	}
+
+
+	// Thread safe! Every "Send" gets a future for its reply. The server answers in order, so replies complete the oldest open request.
+	// All connections share one selector thread which does the reading and writing, callers never block on the socket.
+	//   Client.Connection connection = Client.Connection.Open("127.0.0.1", 5733, 0, push -> ...);
+	//   connection.Send("GETMENU Wienerschnitzel 1").thenAccept(response -> ...);
+	public static class Connection implements AutoCloseable {
+		private final Client client;
+		private final Consumer<Response> pushListener;
+		private final ArrayDeque<CompletableFuture<Response>> pending = new ArrayDeque<CompletableFuture<Response>>();	// guarded by "this"
+		private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<ByteBuffer>();								// guarded by "this"
+		private final AtomicInteger openRequests = new AtomicInteger(0);
+
+		private ByteBuffer readBuffer = ByteBuffer.allocate(64 * 1024);	// selector thread only!
+		private volatile boolean isOpen = true;
+		private SelectionKey key = null;
+
+
+		// Features: "0" for the text protocol, else FEATURE_BINARY and/or FEATURE_COMPRESSION. Pushes go to the listener (can be "null").
+		public static Connection Open(String ip, int port, int features, Consumer<Response> pushListener) throws IOException {
+			Client client = new Client(ip, port);
+			client.isQuiet = true;
+			client.Open();
+
+			if (!client.ReadWelcome()) {
+				client.CloseConnection();
+				throw new IOException(client.welcome);
+			}
+
+			if (!client.Start(features)) {
+				client.CloseConnection();
+				throw new IOException("Server doesn't support the requested features!");
+			}
+
+			return new Connection(client, pushListener);
+		}
+
+		// The welcome is already read!
+		private Connection(Client client, Consumer<Response> pushListener) {
+			this.client = client;
+			this.pushListener = pushListener;
+
+			IoLoop.Register(this);
+		}
+
+
+		// Fails with an "IllegalArgumentException" if the command can't be a request, with an "IOException" once the connection is gone.
+		public CompletableFuture<Response> Send(String command) {
+			CompletableFuture<Response> future = new CompletableFuture<Response>();
+			byte[] request = client.isBinary ? client.Encode(command) : (command + "\n").getBytes(StandardCharsets.UTF_8);
+
+			if (request == null) {
+				future.completeExceptionally(new IllegalArgumentException(String.format("Not a request: %s", command)));
+				return future;
+			}
+
+			synchronized (this) {
+				if (!isOpen) {
+					future.completeExceptionally(new IOException("Connection is closed!"));
+					return future;
+				}
+
+				// Same order on the wire and in the queue!
+				pending.add(future);
+				outbound.add(ByteBuffer.wrap(request));
+				openRequests.incrementAndGet();
+			}
+
+			IoLoop.Flush(this);
+			return future;
+		}
+
+		public boolean IsOpen() {
+			return isOpen;
+		}
+
+		// Requests sent, but not answered yet!
+		public int GetOpenRequests() {
+			return openRequests.get();
+		}
+
+		@Override
+		public void close() {
+			Fail(new IOException("Connection is closed!"));
+		}
+
+
+		// Selector thread! Cuts the frames out of the read bytes.
+		private void OnReadable() throws IOException {
+			int read = client.channel.read(readBuffer);
+
+			if (read < 0) {
+				throw new IOException("Server closed the connection!");
+			}
+
+			readBuffer.flip();
+
+			while (readBuffer.remaining() >= 4) {
+				int header = readBuffer.getInt(readBuffer.position());
+				int length = header & ~COMPRESSED_FLAG;
+
+				if (length <= 0) {
+					throw new IOException("Wrong format!");
+				}
+
+				if (readBuffer.remaining() < 4 + length) {
+					if (4 + length > readBuffer.capacity()) {
+						readBuffer = ByteBuffer.allocate(4 + length).put(readBuffer);	// a big frame!
+						readBuffer.flip();
+					}
+					break;
+				}
+
+				byte[] frame = new byte[length];
+				readBuffer.position(readBuffer.position() + 4);
+				readBuffer.get(frame);
+
+				OnFrame((header & COMPRESSED_FLAG) != 0 ? client.Inflate(frame) : frame);
+			}
+
+			readBuffer.compact();
+		}
+
+		private void OnFrame(byte[] frame) {
+			String text = client.isBinary ? client.Decode(frame) : client.FormatString(new String(frame, StandardCharsets.UTF_8));
+
+			if (client.IsPush(frame)) {
+				if (pushListener != null) {
+					pushListener.accept(new Response(frame, text, true, client.IsKick(frame)));
+				}
+				return;
+			}
+
+			CompletableFuture<Response> future;
+
+			synchronized (this) {
+				future = pending.poll();
+			}
+
+			if (future != null) {
+				openRequests.decrementAndGet();
+				future.complete(new Response(frame, text, false, false));
+			}
+		}
+
+		// Selector thread! Writes what it can, the rest waits until the socket takes more.
+		private void OnWritable() throws IOException {
+			synchronized (this) {
+				while (!outbound.isEmpty()) {
+					ByteBuffer buffer = outbound.peek();
+					client.channel.write(buffer);
+
+					if (buffer.hasRemaining()) {
+						break;
+					}
+					outbound.poll();
+				}
+
+				key.interestOps(outbound.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			}
+		}
+
+		// Every open request fails with the reason!
+		private void Fail(IOException reason) {
+			ArrayDeque<CompletableFuture<Response>> failed;
+
+			synchronized (this) {
+				if (!isOpen) {
+					return;
+				}
+
+				isOpen = false;
+				failed = new ArrayDeque<CompletableFuture<Response>>(pending);
+				pending.clear();
+				outbound.clear();
+			}
+
+			if (key != null) {
+				key.cancel();
+			}
+			client.CloseConnection();
+
+			for (CompletableFuture<Response> future : failed) {
+				openRequests.decrementAndGet();
+				future.completeExceptionally(reason);
+			}
+		}
+	}
+
+
+	// Spreads the requests over a few connections, each one goes to the connection with the fewest open requests!
+	public static class Pool implements AutoCloseable {
+		private final Connection[] connections;
+		private final AtomicInteger next = new AtomicInteger(0);
+
+
+		public Pool(String ip, int port, int features, int size, Consumer<Response> pushListener) throws IOException {
+			connections = new Connection[Math.max(1, size)];
+
+			try {
+				for (int i = 0; i < connections.length; i++) {
+					connections[i] = Connection.Open(ip, port, features, pushListener);
+				}
+			}
+			catch (IOException e) {
+				close();
+				throw e;
+			}
+		}
+
+
+		public CompletableFuture<Response> Send(String command) {
+			Connection best = null;
+			int start = next.getAndIncrement();	// ties go round robin!
+
+			for (int i = 0; i < connections.length; i++) {
+				Connection connection = connections[Math.floorMod(start + i, connections.length)];
+
+				if (connection.IsOpen() && (best == null || connection.GetOpenRequests() < best.GetOpenRequests())) {
+					best = connection;
+				}
+			}
+
+			if (best == null) {
+				CompletableFuture<Response> future = new CompletableFuture<Response>();
+				future.completeExceptionally(new IOException("No open connection!"));
+				return future;
+			}
+
+			return best.Send(command);
+		}
+
+		@Override
+		public void close() {
+			for (Connection connection : connections) {
+				if (connection != null) {
+					connection.close();
+				}
+			}
+		}
+	}
+
+
+	// The one selector thread of all connections! Started with the first connection, a daemon so it never keeps a program alive.
+	private static class IoLoop {
+		private static Selector selector = null;
+		private static final ConcurrentLinkedQueue<Connection> registrations = new ConcurrentLinkedQueue<Connection>();
+		private static final ConcurrentLinkedQueue<Connection> flushes = new ConcurrentLinkedQueue<Connection>();
+
+
+		public static synchronized void Register(Connection connection) {
+			try {
+				if (selector == null) {
+					selector = Selector.open();
+
+					Thread thread = new Thread(IoLoop::Run, "Client-IO");
+					thread.setDaemon(true);
+					thread.start();
+				}
+
+				connection.client.channel.configureBlocking(false);
+			}
+			catch (IOException e) {
+				connection.Fail(e);
+				return;
+			}
+
+			registrations.add(connection);
+			selector.wakeup();
+		}
+
+		public static void Flush(Connection connection) {
+			flushes.add(connection);
+			selector.wakeup();
+		}
+
+		private static void Run() {
+			while (true) {
+				try {
+					selector.select();
+				}
+				catch (IOException e) {
+					System.err.println("Error: Client selector failed!");
+					return;
+				}
+
+				Connection connection;
+
+				while ((connection = registrations.poll()) != null) {
+					try {
+						connection.key = connection.client.channel.register(selector, SelectionKey.OP_READ, connection);
+					}
+					catch (IOException e) {
+						connection.Fail(e);
+					}
+
+					Handle(connection, SelectionKey.OP_WRITE);	// requests which were sent before it got registered!
+				}
+
+				while ((connection = flushes.poll()) != null) {
+					Handle(connection, SelectionKey.OP_WRITE);
+				}
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+
+					if (key.isValid()) {
+						Handle((Connection)key.attachment(), key.readyOps());
+					}
+				}
+			}
+		}
+
+		private static void Handle(Connection connection, int ops) {
+			if (!connection.isOpen || connection.key == null) {
+				return;
+			}
+
+			try {
+				if ((ops & SelectionKey.OP_READ) != 0) {
+					connection.OnReadable();
+				}
+
+				if ((ops & SelectionKey.OP_WRITE) != 0) {
+					connection.OnWritable();
+				}
+			}
+			catch (Exception e) {
+				connection.Fail(e instanceof IOException ? (IOException)e : new IOException(e));
+			}
+		}
+	}
+
+
+	private void CloseConnection() {
+		Info("Closing open connection!");
+
+		try {
+			in.close();
+			out.close();
+			socket.close();
+
+			if (inflater != null) {
+				inflater.end();
+				inflater = null;
+			}
+		}
+		catch (Exception e) {
+			System.err.println("Error: Couldn't close the connection!");
+		}
+	}
+	
+	
+	// Blocking until "Connection" switches the channel to non-blocking!
+	private void Open() throws IOException {
+		channel = SocketChannel.open(new InetSocketAddress(ip, port));
+		socket = channel.socket();
+
+		out = new PrintWriter(socket.getOutputStream(), true);
+		in = new DataInputStream(socket.getInputStream());
+	}
+
+	// The first frame of the connection! Returns false if it is the rejection of a full server instead of the welcome.
+	private boolean ReadWelcome() throws IOException {
+		byte[] first = ReadFrame();
+
+		if (first == null) {
+			throw new IOException("No welcome!");
+		}
+
+		welcome = new String(first, StandardCharsets.UTF_8);
+		return !welcome.startsWith(SERVER_BUSY);
+	}
+
+	// Waits with backoff and jitter between the attempts! A reconnect also waits before its first attempt, the server just went away.
+	private void ConnectToServer(boolean isReconnect) {
+		for (int attempt = 0; ; attempt++) {
+			if (attempt > 0 || isReconnect) {
+				long delay = GetReconnectDelayMillis(attempt);
+
+				System.out.println(String.format("-> Trying to reconnect in %.1fs!", delay / 1000.0));
+
+				try {
+					Thread.sleep(delay);
+				}
+				catch (InterruptedException e) {
+					return;
+				}
+			}
+
+			try {
+				Open();
+
+				if (!ReadWelcome()) {
+					// Full! Counts like a refused connection, the next attempt waits longer.
+					System.err.println(String.format("\nError: %s", welcome));
+					CloseConnection();
+					continue;
+				}
+
+				Info("Connected to Server!\n");
+				return;
+			}
+			catch (Exception e) {
+				System.err.println("\nError: Couln't connect to Server!");
 			}
 		}
 	}
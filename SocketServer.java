@@ -1,56 +1,226 @@
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.Vector;
 import java.nio.charset.StandardCharsets;
 import java.io.DataOutputStream;
-import java.io.FileWriter;
-import java.io.File;
+import java.io.BufferedOutputStream;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.nio.file.Path;
-import java.util.Date;
-import java.util.Calendar;
-import java.text.SimpleDateFormat;
-import java.util.Scanner;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.nio.MappedByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Arrays;
+import java.util.Iterator;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.lang.reflect.Method;
+import java.util.zip.Deflater;
+import java.util.zip.CRC32;
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.Condition;
+import java.nio.file.StandardCopyOption;
+import java.io.DataInputStream;
+import java.io.BufferedInputStream;
+import java.util.function.IntConsumer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.lang.management.ManagementFactory;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import com.sun.net.httpserver.HttpServer;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
 
 
 public class SocketServer {
 	public static void main(String[] args) {
+		if (args.length > 0 && args[0].equals("--read-events")) {
+			// Offline! Decodes the binary event log, no server gets started.
+			EventLogReader.Run(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
+
+		Logger.SetOverflowPolicy(Logger.OverflowPolicy.BLOCK);
+		Logger.SetFlushThresholds(64 * 1024, 50);	// bytes, milliseconds
 		Logger.StartLog("Server started!");
 
 		SocketServer.SetPort(5733);
+
+		int portOption = Arrays.asList(args).indexOf("--port");
+
+		if (portOption >= 0 && portOption + 1 < args.length) {
+			SocketServer.SetPort(Integer.parseInt(args[portOption + 1]));
+		}
+
+		int cluster = Arrays.asList(args).indexOf("--cluster");
+		int node = Arrays.asList(args).indexOf("--node");
+
+		if (cluster >= 0 && cluster + 1 < args.length) {
+			// Every node gets the same port list, its own port is the one at "--node"!
+			int[] ports = Arrays.stream(args[cluster + 1].split(",")).mapToInt(Integer::parseInt).toArray();
+			int self = -1;
+
+			try {
+				self = (node >= 0 && node + 1 < args.length) ? Integer.parseInt(args[node + 1]) : -1;
+			}
+			catch (NumberFormatException e) {
+				// not a number, same as missing
+			}
+
+			if (ports.length < 2 || self < 0 || self >= ports.length) {
+				// No default! Every node started without it would be node 0 on the same port.
+				System.err.println(String.format("Error: \"--node\" has to be the index of the own port in \"--cluster\", 0 to %s!", ports.length - 1));
+				System.err.println("Usage: --cluster PORT,PORT[,PORT...] --node INDEX");
+				System.exit(1);
+			}
+
+			Cluster.Configure("127.0.0.1", ports, self);
+			SocketServer.SetPort(ports[self]);
+		}
+		SocketServer.SetServerMode(ServerMode.REACTOR);
+		SocketServer.SetEventLoopCount(Runtime.getRuntime().availableProcessors());
 		SocketServer.SetMaxInactivityTime(60 * 2);	// seconds
+		SocketServer.SetSlowConsumerPolicy(ClientHandler.SlowConsumerPolicy.DISCONNECT);
+		SocketServer.SetOutboundHighWaterMark(256 * 1024);	// bytes
+		SocketServer.SetCompressionThreshold(512);	// bytes, smaller replies don't get compressed
+		SocketServer.SetMaxConnections(10000);	// more get "Server busy!" right after the accept
+		SocketServer.SetAcceptBacklog(1024);	// connections the OS queues until they get accepted
+		SocketServer.SetAcceptorCount(2);	// threads which accept, on Linux every one has its own listener
+
+		int maxInactivity = Arrays.asList(args).indexOf("--max-inactivity");
+
+		if (maxInactivity >= 0 && maxInactivity + 1 < args.length) {
+			SocketServer.SetMaxInactivityTime(Integer.parseInt(args[maxInactivity + 1]));
+		}
+
+		int acceptors = Arrays.asList(args).indexOf("--acceptors");
+
+		if (acceptors >= 0 && acceptors + 1 < args.length) {
+			SocketServer.SetAcceptorCount(Integer.parseInt(args[acceptors + 1]));
+		}
+
+		int maxConnections = Arrays.asList(args).indexOf("--max-connections");
+
+		if (maxConnections >= 0 && maxConnections + 1 < args.length) {
+			SocketServer.SetMaxConnections(Integer.parseInt(args[maxConnections + 1]));
+		}
+
+		int rateLimit = Arrays.asList(args).indexOf("--rate-limit");
+
+		if (rateLimit >= 0 && rateLimit + 1 < args.length) {
+			// Requests per second of every client, the burst is twice as many if not given! Off by default, the benchmarks pipeline as fast as they can.
+			int rate = Integer.parseInt(args[rateLimit + 1]);
+			int burst = (rateLimit + 2 < args.length && !args[rateLimit + 2].startsWith("--")) ? Integer.parseInt(args[rateLimit + 2]) : 2 * rate;
+
+			SocketServer.SetRequestRateLimit(rate, burst);
+		}
+
+		// Sold portions survive a restart! Replies to orders wait until their record is on disk.
+		OrderJournal.Open(Cluster.IsEnabled() ? "Data/Journal-" + port : "Data/Journal", ClientHandler.GetCatalog(), 1, 64 * 1024, 100000);	// commit milliseconds, commit bytes, records per snapshot
+
+		// Tokens stay valid across restarts, a client which comes back takes its id again!
+		Sessions.Open(Cluster.IsEnabled() ? "Data/Sessions-" + port : "Data/Sessions", 60 * 60);	// token lifetime in seconds
+
+		// The links to the other nodes connect in the background, the nodes can start in any order!
+		Cluster.Start(ClientHandler.GetCatalog());
+
+		// JMX always, the plain text endpoint only if asked for!
+		Metrics.RegisterMBean();
+
+		int metricsPort = Arrays.asList(args).indexOf("--metrics-port");
+
+		if (metricsPort >= 0 && metricsPort + 1 < args.length) {
+			Metrics.StartScrapeEndpoint(Integer.parseInt(args[metricsPort + 1]));
+		}
+
+		if (Arrays.asList(args).contains("--event-log")) {
+			// Requests get logged as binary records instead of text lines!
+			EventLog.Open("Logs/Events", 64 * 1024 * 1024, 60 * 60 * 1000, 24);	// segment bytes, rotation milliseconds, kept segments
+		}
 
 		SocketServer.Start();
 	}
 
 
+	public enum ServerMode {
+		THREAD_PER_CLIENT,	// one blocking thread for every client
+		REACTOR,			// non-blocking selector loops shared by all clients
+		VIRTUAL_THREADS,	// one blocking virtual thread for every client (Java 21+)
+	}
+
+
 	private static final int DEFAULT_PORT = 9999;
 
 	private static SocketServer socketServer = null;
 
-	private static ServerSocket serverSocket = null;
+	private static volatile ServerSocket[] serverSockets = new ServerSocket[0];
+	private static volatile ServerSocketChannel[] serverChannels = new ServerSocketChannel[0];
 	private static int port;
 	private static boolean isStoppingServer = false;
+	private static ServerMode serverMode = ServerMode.THREAD_PER_CLIENT;
+	private static int eventLoopCount = 1;
+	private static int acceptBacklog = 50;	// the default of "ServerSocket", per listener
+	private static int acceptorCount = 1;
+
 
+	// One console command! Returns false if the server should stop.
+	private interface ConsoleCommand {
+		boolean Run(Request request);
+	}
 
-	private static final Command[] Commands = new Command[] {
-		new Command("EXIT", "\t\tStops the server and closes all open connections!"),
-		new Command("HELP", "\t\tShows all available commands!"),
-		new Command("BROADCAST", "\tUsage: BROADCAST MESSAGE -> Sends a broadcast message to all clients!"),
-		new Command("KICKALL", "\tKicks all connected clients!"),
-		new Command("KICKID", "\t\tUsage: KICKID ID -> Kicks the client with a specific id!"),
-		new Command("LIST", "\t\tLists all currently connected clients!"),
-	};
+	private static final CommandRegistry<ConsoleCommand> Commands = new CommandRegistry<ConsoleCommand>()
+		.Register(new Command("EXIT", "\t\tStops the server and closes all open connections!"), SocketServer::ConsoleExit)
+		.Register(new Command("HELP", "\t\tShows all available commands!"), SocketServer::ConsoleHelp)
+		.Register(new Command("BROADCAST", "\tUsage: BROADCAST MESSAGE -> Sends a broadcast message to all clients!"), SocketServer::ConsoleBroadcast)
+		.Register(new Command("KICKALL", "\tKicks all connected clients!"), SocketServer::ConsoleKickAll)
+		.Register(new Command("KICKID", "\t\tUsage: KICKID ID -> Kicks the client with a specific id!"), SocketServer::ConsoleKickId)
+		.Register(new Command("LIST", "\t\tLists all currently connected clients!"), SocketServer::ConsoleList)
+		.Register(new Command("STATS", "\t\tShows request counts, latencies, traffic and connections!"), SocketServer::ConsoleStats);
 
 
 
 	private SocketServer(int port) {
-		this.port = port;
+		SocketServer.port = port;
 	}
 
 
@@ -63,62 +233,172 @@ public class SocketServer {
 	}
 
 
-	private static int GetCommandCount() {
-		return Commands.length;
+	public static void Start() {
+		try {
+			StartBackgroundService();
+
+			if (serverMode == ServerMode.REACTOR) {
+				StartReactor();
+			}
+			else {
+				StartThreadPerClient();
+			}
+		} catch (IOException e) {
+			ClientService.SetIsError(true);
+
+			// Port in use!
+			e.printStackTrace();
+		}
 	}
 
-	private static String GetCommandAt(int i) {
-		if (i < 0 || i >= GetCommandCount()) {
-			return null;
+	private static void StartThreadPerClient() throws IOException {
+		ServerSocket[] listeners = new ServerSocket[GetListenerCount()];
+
+		for (int i = 0; i < listeners.length; i++) {
+			listeners[i] = new ServerSocket();
+			listeners[i].setReuseAddress(true);
+
+			if (listeners.length > 1) {
+				listeners[i].setOption(StandardSocketOptions.SO_REUSEPORT, true);
+			}
+
+			listeners[i].bind(new InetSocketAddress(port), acceptBacklog);
 		}
 
-		return Commands[i].getCommand().toLowerCase();
+		serverSockets = listeners;
+
+		if (serverMode == ServerMode.VIRTUAL_THREADS) {
+			ClientService.SetClientExecutor(ThreadUtils.NewVirtualThreadExecutor());
+		}
+
+		ClientService.StartService();
+
+		RunAcceptors(index -> AcceptClients(listeners[index % listeners.length]));
 	}
 
-	private static Command GetCommand(int i) {
-		if (i < 0 || i >= GetCommandCount()) {
-			return null;
+	private static void AcceptClients(ServerSocket listener) {
+		while (!ClientService.GetIsError() && !isStoppingServer) {
+			Socket client = null;
+			
+			try {
+				client = listener.accept();
+			}
+			catch (Exception e) {
+				System.out.println("Socket got closed!");
+				break;
+			}
+
+			if (!ClientService.TryAdmit()) {
+				RejectBusy(client);
+				continue;
+			}
+
+			// The thread of the client registers it and sends the welcome message!
+			ClientService.AddClient(client);
 		}
+	}
+
+	private static void StartReactor() throws IOException {
+		ServerSocketChannel[] listeners = new ServerSocketChannel[GetListenerCount()];
+
+		for (int i = 0; i < listeners.length; i++) {
+			listeners[i] = ServerSocketChannel.open();
+			listeners[i].setOption(StandardSocketOptions.SO_REUSEADDR, true);
+
+			if (listeners.length > 1) {
+				listeners[i].setOption(StandardSocketOptions.SO_REUSEPORT, true);
+			}
+
+			listeners[i].bind(new InetSocketAddress(port), acceptBacklog);
+		}
+
+		serverChannels = listeners;
 
-		return Commands[i];
+		ClientService.StartService();
+		ReactorLoop.StartLoops(eventLoopCount);
+
+		RunAcceptors(index -> AcceptChannels(listeners[index % listeners.length]));
 	}
 
+	private static void AcceptChannels(ServerSocketChannel listener) {
+		while (!ClientService.GetIsError() && !isStoppingServer) {
+			SocketChannel client = null;
 
-	public static void Start() {
-		try {
-			StartBackgroundService();
+			try {
+				client = listener.accept();
+			}
+			catch (Exception e) {
+				System.out.println("Socket got closed!");
+				break;
+			}
 
-			serverSocket = new ServerSocket(port);
-			serverSocket.setReuseAddress(true);
+			if (!ClientService.TryAdmit()) {
+				RejectBusy(client.socket());	// still blocking, the event loop never sees it
+				continue;
+			}
 
-			ClientService.StartService();
+			// The event loop registers the client and sends the welcome message!
+			ReactorLoop.Next().Register(client);
+		}
+	}
 
-			while (!ClientService.GetIsError() && !isStoppingServer) {
-				Socket client = null;
-				
-				try {
-					client = serverSocket.accept();
-				}
-				catch (Exception e) {
-					System.out.println("Socket got closed!");
-					break;
-				}
+	// Linux spreads new connections over all listeners bound with SO_REUSEPORT, every acceptor gets its own accept queue!
+	// Elsewhere the acceptors share one listener. With one acceptor there is one plain listener, a second server on the port still fails.
+	private static int GetListenerCount() throws IOException {
+		boolean isLinux = System.getProperty("os.name", "").toLowerCase().startsWith("linux");
+
+		if (acceptorCount == 1 || !isLinux) {
+			return 1;
+		}
+
+		// SO_REUSEPORT would let a second server share the port! A plain bind still fails if somebody listens there already.
+		try (ServerSocket probe = new ServerSocket()) {
+			probe.setReuseAddress(true);
+			probe.bind(new InetSocketAddress(port));
+		}
+
+		return acceptorCount;
+	}
+
+	// Blocks until every acceptor stopped! Accepting and the busy rejection is all they do, so the next "accept()" comes right away.
+	private static void RunAcceptors(IntConsumer acceptor) {
+		Thread[] threads = new Thread[acceptorCount];
 
-				// Adding client to service!
-				ClientHandler model = ClientService.AddClient(client);
+		for (int i = 0; i < threads.length; i++) {
+			int index = i;
 
-				// Send welcome message!
-				model.SendToClient(String.format("Welcome Client! ID: %s", model.GetClient().GetClientIdentifier()), false);
+			threads[i] = new Thread(() -> acceptor.accept(index), String.format("Acceptor-%s", i));
+			threads[i].start();
+		}
 
-				// Client connected!
-				Logger.LogInfo(String.format("New client connected: %s, ID: %s", model.GetClient().GetConnectionString(), model.GetClient().GetClientIdentifier()));
+		for (Thread thread : threads) {
+			try {
+				thread.join();
 			}
-		} catch (IOException e) {
-			ClientService.SetIsUsingList(false);
-			ClientService.SetIsError(true);
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
 
-			// Port in use!
-			e.printStackTrace();
+
+	// Full! Turned away before it gets a handler, an id or a thread. The frame fits into the empty send buffer, so the write never blocks.
+	private static void RejectBusy(Socket client) {
+		Metrics.ConnectionRejected();
+
+		try {
+			client.getOutputStream().write(ClientHandler.SERVER_BUSY_FRAME);
+		}
+		catch (Exception e) {
+			// allready gone!
+		}
+
+		try {
+			client.close();
+		}
+		catch (Exception e) {
+			// allready closed!
 		}
 	}
 
@@ -128,7 +408,17 @@ public class SocketServer {
 			System.out.println("Closing connections!");
 
 			ClientService.StopService();
-			serverSocket.close();
+
+			for (ServerSocket listener : serverSockets) listener.close();
+			for (ServerSocketChannel listener : serverChannels) listener.close();
+
+			ReactorLoop.StopLoops();
+
+			Cluster.Stop();
+			Metrics.StopScrapeEndpoint();
+
+			// Last, no more orders can come in!
+			OrderJournal.Close();
 		}
 		catch (Exception e) {
 			e.printStackTrace();
@@ -140,101 +430,34 @@ public class SocketServer {
 		new Thread(new Runnable() {
 			@Override
 			public void run() {
-				Scanner sc = new Scanner(System.in);
+				RequestReader reader = new RequestReader(System.in);
+				Request request = new Request();
 				
 				try {
-					String input = null;
-					
 					while (!ClientService.GetIsError() && !isStoppingServer)
 					{
 						try {
-							String command = sc.nextLine();
+							int length = reader.ReadLine();
 
-							String[] subcommand = command.split(" ");
-							subcommand[0] = subcommand[0].toLowerCase();
-							
-							if (command == null || subcommand == null) {
-								throw new Exception("Not a command!");
+							if (length < 0) {
+								// No console, e.g. started in the background! The server keeps running without it.
+								Logger.LogWarning("Server: Console input closed! Console commands aren't available anymore.");
+								return;
 							}
 
+							request.Parse(reader.GetBuffer(), reader.GetLineStart(), length);
 
-							// ************************
-							// *					  *
-							// *  Checking commands!  *
-							// *					  *
-							// ************************
-
-							if (subcommand.length == 1 && subcommand[0].equals(GetCommandAt(0))) {			// stops the server!
-								break;
-							}
-							else if (subcommand.length == 1 && subcommand[0].equals(GetCommandAt(1))) {		// help
-								System.out.println("--- all commands ---");
-								for (int i = 0; i < GetCommandCount(); i++) {
-									System.out.println(GetCommand(i).toString());
-								}
-							}
-							else if (subcommand[0].equals(GetCommandAt(2))) {								// sends a broadcast to all clients!
-								if (subcommand.length > 2) {
-									ClientService.Broadcast(ArrayUtils.JoinFromIndex(subcommand, " ", 1));
-								}
-								else {
-									// wrong usage!
-									System.out.println(String.format("Wrong usage! -> Usage: %s TEXT", GetCommandAt(2).toUpperCase()));
-									continue;
-								}
+							int index = -1;
+							if (request.GetTokenCount() > 0) {
+								index = Commands.Find(request.GetBytes(), request.GetTokenStart(0), request.GetTokenLength(0));
 							}
-							else if (subcommand[0].equals(GetCommandAt(3))) {								// kicks all clients
-								if (subcommand.length == 1) {
-									ClientService.KickAllClients();
-								}
-								else {
-									ClientService.KickAllClients(ArrayUtils.JoinFromIndex(subcommand, " ", 1));
-								}
-							}
-							else if (subcommand[0].equals(GetCommandAt(4))) {								// kicks a specific client
-								if (subcommand.length == 2) {
-									int id = 0;
-									boolean wrongRequest = false;
-
-									try {
-										id = Integer.parseInt(subcommand[1]);
-									} catch (Exception e) {
-										// Error: Not a number!
-										wrongRequest = true;
-									}
-
-									if (wrongRequest) {
-										System.out.println(String.format("Not a number! -> Usage: %s ID", GetCommandAt(4).toUpperCase()));
-										continue;
-									}
-
-									ClientService.KickClientWithId(id, ArrayUtils.JoinFromIndex(subcommand, " ", 1));
-								}
-								else {
-									// wrong usage!
-									System.out.println(String.format("Wrong usage! -> Usage: %s ID", GetCommandAt(4).toUpperCase()));
-									continue;
-								}
-							}
-							else if (subcommand.length == 1 && subcommand[0].equals(GetCommandAt(5))) {		// lists all clients
-								if (ClientService.GetClientCount() > 0) {
-									System.out.println("--- all clients ---");
-									ClientService.PrintAllClients();
-								}
-								else {
-									System.out.println("No clients connected!");
-								}
+
+							if (index < 0) {
+								NotACommand(request);
 							}
-							else {
-								System.out.println(String.format("Server: \"%s\" is not a command!", command));
+							else if (!Commands.GetHandler(index).Run(request)) {
+								break;
 							}
-
-
-							// ****************************
-							// *					      *
-							// *  End checking commands!  *
-							// *					      *
-							// ****************************
 						}
 						catch (Exception e) {
 							Logger.LogError(e.getMessage());
@@ -249,936 +472,6703 @@ public class SocketServer {
 					e.printStackTrace();
 				}
 				finally {
-					sc.close();
-					CloseConnections();
+					if (isStoppingServer) {
+						CloseConnections();
 
-					System.out.println("Stopping Server!");
+						System.out.println("Stopping Server!");
+					}
 				}
 			}
 		}).start();
 	}
 
 
-	public static void SetMaxInactivityTime(int seconds) {
-		ClientService.SetInactivityTime(seconds);
-	}
+	// ************************
+	// *                      *
+	// *   Console commands!  *
+	// *                      *
+	// ************************
 
-	public static void SetPort(int _port) {
-		if (_port <= 0) {
-			return;
+	private static boolean ConsoleExit(Request request) {
+		if (request.GetTokenCount() != 1) {
+			return NotACommand(request);
 		}
 
-		port = _port;
-	}
-
-	public static int GetPort() {
-		return port;
-	}
-}
-
-
-class ClientService implements Runnable {
-	private static ClientService clientService = null;
-	private static Vector<ClientHandler> allAvailableClients = null;
-	private static boolean isError;
-	private static boolean isUsingList;
-	private static boolean isRunning;
-	private static boolean isStopped;
-	private static int maxInactivityTime;	// in seconds... if "0", then there is no auto kicking!
-
-
-	private ClientService() {
-		this.allAvailableClients = new Vector<ClientHandler>();
-		this.isError = false;
-		this.isRunning = true;
-		this.isStopped = false;
-		this.isUsingList = false;
+		return false;	// stops the server!
 	}
 
+	private static boolean ConsoleHelp(Request request) {
+		if (request.GetTokenCount() != 1) {
+			return NotACommand(request);
+		}
 
-	public static ClientService Instance() {
-		if (clientService == null) {
-			clientService = new ClientService();
+		System.out.println("--- all commands ---");
+		for (int i = 0; i < Commands.GetCount(); i++) {
+			System.out.println(Commands.GetCommand(i).toString());
 		}
-		return clientService;
+		return true;
 	}
 
-	public static void StartService(int maxInactivityTime) {
-		if (!GetIsRunning()) {
-			SetIsStopped(false);
-			SetInactivityTime(maxInactivityTime);
-
-			new Thread(Instance()).start();
+	// Sends a broadcast to all clients!
+	private static boolean ConsoleBroadcast(Request request) {
+		if (request.GetTokenCount() > 2) {
+			ClientService.Broadcast(request.GetRest(1));
 		}
+		else {
+			// wrong usage!
+			System.out.println(String.format("Wrong usage! -> Usage: %s TEXT", request.GetToken(0).toUpperCase()));
+		}
+		return true;
 	}
 
-	public static void StartService() {
-		if (!GetIsRunning()) {
-			SetIsStopped(false);
-
-			new Thread(Instance()).start();
+	private static boolean ConsoleKickAll(Request request) {
+		if (request.GetTokenCount() == 1) {
+			ClientService.KickAllClients();
+		}
+		else {
+			ClientService.KickAllClients(request.GetRest(1));
 		}
+		return true;
 	}
 
-	public static void StopService() {
-		SetIsStopped(true);
-
-		SetIsUsingList(true);
-
-		for (int i = 0; i < allAvailableClients.size(); i++) {
-			allAvailableClients.get(i).StopClient();
+	// Kicks a specific client!
+	private static boolean ConsoleKickId(Request request) {
+		if (request.GetTokenCount() != 2) {
+			// wrong usage!
+			System.out.println(String.format("Wrong usage! -> Usage: %s ID", request.GetToken(0).toUpperCase()));
+			return true;
 		}
 
-		SetIsUsingList(false);
-	}
-
-	public static ClientHandler AddClient(Socket client) {
-		ClientHandler clientHandler = new ClientHandler(client);
+		int id = request.ParseNumber(1);
 
-		Instance().AddNewClient(clientHandler);
+		if (id < 0) {
+			System.out.println(String.format("Not a number! -> Usage: %s ID", request.GetToken(0).toUpperCase()));
+			return true;
+		}
 
-		new Thread(clientHandler).start();
-		
-		return clientHandler;
+		ClientService.KickClientWithId(id, request.GetRest(1));
+		return true;
 	}
 
-
-	@Override
-	public void run() {
-		try {
-			while(!isError && !isStopped) {
-				if (!isUsingList) {
-					CheckClients();
-				}
-				
-				// Delay this thread to resource limit this thread! Better for low cpu usage!
-				Thread.sleep(500);
-			}
+	private static boolean ConsoleList(Request request) {
+		if (request.GetTokenCount() != 1) {
+			return NotACommand(request);
 		}
-		catch (Exception e) {
-			isRunning = false;
-			isError = true;
-			isStopped = true;
 
-			e.printStackTrace();
+		if (ClientService.GetClientCount() > 0) {
+			System.out.println("--- all clients ---");
+			ClientService.PrintAllClients();
 		}
+		else {
+			System.out.println("No clients connected!");
+		}
+		return true;
 	}
 
-
-	public static void Broadcast(String message) {
-		int count = GetClientCount();
-
-		if (count == 0) {
-			Logger.LogInfo("Server-Broadcast: No clients connected!");
-			return;
+	private static boolean ConsoleStats(Request request) {
+		if (request.GetTokenCount() != 1) {
+			return NotACommand(request);
 		}
 
-		String newMessage = String.format("Broadcast from server: %s", message);
+		System.out.print(Metrics.Render());
+		return true;
+	}
 
-		SetIsUsingList(true);
-		
-		for (int i = 0; i < count; i++) {
-			allAvailableClients.get(i).SendToClient(newMessage, true);
-		}
+	private static boolean NotACommand(Request request) {
+		System.out.println(String.format("Server: \"%s\" is not a command!", request.GetText()));
+		return true;
+	}
 
-		SetIsUsingList(false);
 
-		Logger.LogInfo(String.format("Server-Broadcast: Sending \"%s\" to %s clients!", message, count));
+	public static void SetMaxInactivityTime(int seconds) {
+		ClientService.SetInactivityTime(seconds);
 	}
 
+	public static void SetSlowConsumerPolicy(ClientHandler.SlowConsumerPolicy policy) {
+		ClientService.SetSlowConsumerPolicy(policy);
+	}
 
-	private void CheckClients() {
-		for (int i = GetClientCount() - 1; i >= 0; i--) {
-			ClientHandler ch = allAvailableClients.get(i);
+	public static void SetOutboundHighWaterMark(int bytes) {
+		ClientService.SetOutboundHighWaterMark(bytes);
+	}
 
-			boolean isDisconnected = CheckClientsIfDisconnected(ch);
-			boolean isInActive = CheckClientsForInactivity(ch, maxInactivityTime);
+	public static void SetCompressionThreshold(int bytes) {
+		FrameCompressor.SetThreshold(bytes);
+	}
 
-			if (isDisconnected || isInActive) {
-				// remove this client from the list!
-				allAvailableClients.remove(i);
+	public static void SetMaxConnections(int count) {
+		ClientService.SetMaxConnections(count);
+	}
 
-				Logger.LogInfo(String.format("Server: Client \"%s\" with id: \"%s\" got removed from the list!", ch.GetClient().GetConnectionString(), ch.GetClient().GetClientIdentifier()));
-			}
-		}
+	public static void SetRequestRateLimit(int requestsPerSecond, int burst) {
+		ClientService.SetRequestRateLimit(requestsPerSecond, burst);
 	}
 
-	private boolean CheckClientsIfDisconnected(ClientHandler ch) {
-		if (!ch.GetConnectionState()) {
-			return true;
+	public static void SetAcceptorCount(int _acceptorCount) {
+		if (_acceptorCount <= 0) {
+			return;
 		}
 
-		return false; 	// Still connected!
+		acceptorCount = _acceptorCount;
+	}
+
+	public static int GetAcceptorCount() {
+		return acceptorCount;
 	}
 
-	private boolean CheckClientsForInactivity(ClientHandler ch, int inactivityTime) {
-		if (inactivityTime <= 0) {
-			return false;	// No kicking!
+	public static void SetAcceptBacklog(int _acceptBacklog) {
+		if (_acceptBacklog <= 0) {
+			return;
 		}
 
-		Calendar previous = Calendar.getInstance();
-		previous.setTime(ch.GetLastActionToServerTime());
-		
-		Calendar now = Calendar.getInstance();
-		long diff = now.getTimeInMillis() - previous.getTimeInMillis();
+		acceptBacklog = _acceptBacklog;
+	}
 
-		if(diff >= inactivityTime * 1000)	// seconds
-		{
-			ch.DisconnectClient(ClientHandler.KickingReasons.INACTIVITY);
-			return true;
+	public static void SetServerMode(ServerMode _serverMode) {
+		if (_serverMode == null) {
+			return;
 		}
 
-		return false; 	// Still active!
+		serverMode = _serverMode;
 	}
 
+	public static ServerMode GetServerMode() {
+		return serverMode;
+	}
 
-	private static void AddNewClient(ClientHandler clientHandler) {
-		if (clientHandler == null) {
+	public static void SetEventLoopCount(int _eventLoopCount) {
+		if (_eventLoopCount <= 0) {
 			return;
 		}
 
-		SetIsUsingList(true);
+		eventLoopCount = _eventLoopCount;
+	}
+
+	public static int GetEventLoopCount() {
+		return eventLoopCount;
+	}
 
-		allAvailableClients.add(clientHandler);
+	public static void SetPort(int _port) {
+		if (_port <= 0) {
+			return;
+		}
 
-		SetIsUsingList(false);
+		port = _port;
 	}
 
-	public static void KickClientWithId(int id, String message) {
-		if (!CheckForKick()) return;
+	public static int GetPort() {
+		return port;
+	}
 
-		SetIsUsingList(true);
 
-		for (int i = 0; i < GetClientCount(); i++) {
-			ClientHandler handler = allAvailableClients.get(i);
+	static class ClientService implements Runnable {
+		private static ClientService clientService = null;
+		private static ConcurrentHashMap<Integer, ClientHandler> allAvailableClients = null;	// by client id! Never blocks, iteration is weakly consistent.
+		private static ExecutorService clientExecutor = null;	// if "null", every client gets a new thread!
+		private static TimerWheel timerWheel = null;
+		private static ExecutorService fanOutExecutor = null;	// writes the queued broadcasts of blocking clients!
+		private static ClientHandler.SlowConsumerPolicy slowConsumerPolicy = ClientHandler.SlowConsumerPolicy.DROP;
+		private static int outboundHighWaterMark = 64 * 1024;	// queued bytes per client until it counts as slow
+		private static boolean isError;
+		private static boolean isRunning;
+		private static boolean isStopped;
+		private static int maxInactivityTime;	// in seconds... if "0", then there is no auto kicking!
+		private static int maxConnections = 0;	// if "0", there is no limit!
+		private static final AtomicInteger openConnections = new AtomicInteger(0);	// admitted and not closed yet, also the ones the event loop didn't register yet
+		private static int requestsPerSecond = 0;	// per client... if "0", there is no rate limit!
+		private static int requestBurst = 0;
+
+		private static final int TIMER_TICK_MILLIS = 10;
+
+
+		private ClientService() {
+			ClientService.allAvailableClients = new ConcurrentHashMap<Integer, ClientHandler>();
+			ClientService.timerWheel = new TimerWheel(TIMER_TICK_MILLIS);
+			ClientService.isError = false;
+			ClientService.isRunning = true;
+			ClientService.isStopped = false;
+		}
 
-			if (handler.GetClient().GetId() == id) {
-				// Found client!
-				handler.DisconnectClient(message);
 
-				Logger.LogInfo(String.format("Kicked client with id: %s!", id));
-				return;
+		public static ClientService Instance() {
+			if (clientService == null) {
+				clientService = new ClientService();
 			}
+			return clientService;
 		}
 
-		SetIsUsingList(false);
+		public static void StartService(int maxInactivityTime) {
+			if (!GetIsRunning()) {
+				SetIsStopped(false);
+				SetInactivityTime(maxInactivityTime);
 
-		// Didn't found client!
-		Logger.LogWarning(String.format("Couln't find a client with id: %s!", id));
-	}
+				new Thread(Instance()).start();
+			}
+		}
 
-	public static void KickAllClients() {
-		if (!CheckForKick()) return;
+		public static void StartService() {
+			if (!GetIsRunning()) {
+				SetIsStopped(false);
 
-		int count = GetClientCount();
+				new Thread(Instance()).start();
+			}
+		}
 
-		SetIsUsingList(true);
-		
-		for (int i = 0; i < count; i++)
-			allAvailableClients.get(i).DisconnectClient(ClientHandler.KickingReasons.OTHER);
+		public static void StopService() {
+			SetIsStopped(true);
 
-		SetIsUsingList(false);
+			for (ClientHandler ch : allAvailableClients.values()) {
+				ch.StopClient();
+			}
 
-		Logger.LogInfo(String.format("Kicked %s clients!", count));
-	}
+			if (clientExecutor != null) {
+				clientExecutor.shutdown();
+			}
 
-	public static void KickAllClients(String message) {
-		if (!CheckForKick()) return;
+			if (fanOutExecutor != null) {
+				fanOutExecutor.shutdown();
+			}
+		}
 
-		int count = GetClientCount();
+		// Called by every acceptor thread at once, the CAS loop keeps the count under the limit! Every admitted connection calls "Release" once it is closed.
+		public static boolean TryAdmit() {
+			while (true) {
+				int count = openConnections.get();
 
-		SetIsUsingList(true);
+				if (maxConnections > 0 && count >= maxConnections) {
+					return false;
+				}
 
-		for (int i = 0; i < count; i++)
-			allAvailableClients.get(i).DisconnectClient(message);
+				if (openConnections.compareAndSet(count, count + 1)) {
+					return true;
+				}
+			}
+		}
 
-		SetIsUsingList(false);
-		
-		Logger.LogInfo(String.format("Kicked %s clients!", count));
-	}
+		public static void Release() {
+			openConnections.decrementAndGet();
+		}
 
-	private static boolean CheckForKick() {
-		if (GetClientCount() == 0) {
-			Logger.LogInfo("Server-KickAll: No clients there to kick!");
-			return false;
+		// "null" if there is no rate limit! Every client gets its own bucket.
+		public static TokenBucket NewRateLimit() {
+			return requestsPerSecond > 0 ? new TokenBucket(requestsPerSecond, requestBurst) : null;
 		}
-		return true;
-	}
 
-	public static void PrintAllClients() {
-		SetIsUsingList(true);
+		// Only hands the socket over! Handler, id, registration and welcome happen on the thread of the client, the acceptor doesn't wait for them.
+		public static void AddClient(Socket client) {
+			Runnable start = () -> {
+				ClientHandler clientHandler = new ClientHandler(client);
 
-		for (ClientHandler ch : allAvailableClients) {
-			System.out.println(String.format("%s", ch.GetClient().toString()));
+				Instance();		// the client list exists from here on!
+				AddNewClient(clientHandler);
+				clientHandler.run();
+			};
+
+			if (clientExecutor != null) {
+				clientExecutor.execute(start);
+			}
+			else {
+				new Thread(start).start();
+			}
 		}
 
-		SetIsUsingList(false);
-	}
+		public static ClientHandler AddClient(ReactorConnection connection) {
+			ClientHandler clientHandler = new ClientHandler(connection);
 
-	public static int GetClientCount() {
-		return allAvailableClients.size();
-	}
+			// No own thread! The event loop of the connection drives this client.
+			Instance();
+			AddNewClient(clientHandler);
 
-	public static void SetIsError(boolean _isError) {
-		isError = _isError;
-	}
-	
-	public static boolean GetIsError() {
-		return isError;
-	}
+			return clientHandler;
+		}
 
-	public static void SetIsUsingList(boolean _isUsingList) {
-		isUsingList = _isUsingList;
-	}
 
-	public static boolean GetIsUsingList() {
-		return isUsingList;
+		@Override
+		public void run() {
+			try {
+				while(!isError && !isStopped) {
+					// Runs every timeout which is over! Costs nothing for clients which aren't due.
+					timerWheel.AdvanceTo(System.nanoTime());
+				
+					// Delay this thread to resource limit this thread! Better for low cpu usage!
+					Thread.sleep(TIMER_TICK_MILLIS);
+				}
+			}
+			catch (Exception e) {
+				isRunning = false;
+				isError = true;
+				isStopped = true;
+
+				e.printStackTrace();
+			}
+		}
+
+
+		public static void Broadcast(String message) {
+			int count = GetClientCount();
+
+			if (count == 0) {
+				Logger.LogInfo("Server-Broadcast: No clients connected!");
+				return;
+			}
+
+			// Encoded once! Every client queues the same bytes and writes them on its own time.
+			BroadcastFrame broadcast = new BroadcastFrame(message, String.format("Broadcast from server: %s", message));
+
+			count = 0;
+
+			for (ClientHandler ch : allAvailableClients.values()) {
+				ch.SendBroadcast(broadcast);
+				count++;
+			}
+
+			broadcast.Done();	// the share of the sender!
+
+			Logger.LogInfo(String.format("Server-Broadcast: Sending \"%s\" to %s clients!", message, count));
+		}
+
+		public static ExecutorService GetFanOutExecutor() {
+			if (fanOutExecutor == null) {
+				fanOutExecutor = ThreadUtils.NewVirtualThreadExecutor();
+			}
+
+			return fanOutExecutor;
+		}
+
+
+		public static TimerWheel.Timeout Schedule(long delayMillis, Runnable task) {
+			return timerWheel.Schedule(delayMillis, task);
+		}
+
+
+		private static void ScheduleInactivityCheck(ClientHandler ch, long delayMillis) {
+			if (maxInactivityTime <= 0) {
+				return;		// No kicking!
+			}
+
+			ch.SetInactivityTimeout(Schedule(delayMillis, () -> CheckClientForInactivity(ch)));
+		}
+
+		// Runs on the timer thread when the deadline of the client is over!
+		private static void CheckClientForInactivity(ClientHandler ch) {
+			if (!ch.GetConnectionState()) {
+				return;		// Allready gone!
+			}
+
+			long inactivityTime = maxInactivityTime * 1000L;
+
+			if (ch.IsPeer()) {
+				// Links of other nodes stay, they are quiet while nobody orders!
+				ScheduleInactivityCheck(ch, inactivityTime);
+				return;
+			}
+			long idleTime = Clock.Millis() - ch.GetLastActivityMillis();
+
+			if (idleTime >= inactivityTime) {
+				ch.DisconnectClient(ClientHandler.KickingReasons.INACTIVITY);
+				return;
+			}
+
+			// The client was active in the meantime! Check again when the new deadline is over.
+			ScheduleInactivityCheck(ch, inactivityTime - idleTime);
+		}
+
+
+		private static void AddNewClient(ClientHandler clientHandler) {
+			if (clientHandler == null) {
+				return;
+			}
+
+			allAvailableClients.put(clientHandler.GetClient().GetId(), clientHandler);
+			Metrics.ConnectionAccepted();
+
+			ScheduleInactivityCheck(clientHandler, maxInactivityTime * 1000L);
+		}
+
+		public static void RemoveClient(ClientHandler clientHandler) {
+			if (allAvailableClients.remove(clientHandler.GetClient().GetId(), clientHandler)) {
+				Logger.LogInfo(String.format("Server: Client \"%s\" with id: \"%s\" got removed from the list!", clientHandler.GetClient().GetConnectionString(), clientHandler.GetClient().GetClientIdentifier()));
+			}
+		}
+
+		// The token proved the id! A connection which still holds it is a leftover of the same client, which didn't notice it is gone.
+		public static void Reclaim(ClientHandler handler, int id) {
+			int oldId = handler.GetClient().GetId();
+
+			if (oldId == id) {
+				return;
+			}
+
+			ClientHandler leftover = allAvailableClients.get(id);
+
+			if (leftover != null && leftover != handler) {
+				allAvailableClients.remove(id, leftover);
+				leftover.DisconnectClient("Session resumed on another connection!");
+			}
+
+			allAvailableClients.remove(oldId, handler);
+			handler.GetClient().Reclaim(id);
+			allAvailableClients.put(id, handler);
+		}
+
+		public static void KickClientWithId(int id, String message) {
+			if (!CheckForKick()) return;
+
+			ClientHandler handler = allAvailableClients.get(id);
+
+			if (handler != null) {
+				// Found client!
+				handler.DisconnectClient(message);
+
+				Logger.LogInfo(String.format("Kicked client with id: %s!", id));
+				return;
+			}
+
+			// Didn't found client!
+			Logger.LogWarning(String.format("Couln't find a client with id: %s!", id));
+		}
+
+		public static void KickAllClients() {
+			if (!CheckForKick()) return;
+
+			int count = 0;
+
+			for (ClientHandler ch : allAvailableClients.values()) {
+				ch.DisconnectClient(ClientHandler.KickingReasons.OTHER);
+				count++;
+			}
+
+			Logger.LogInfo(String.format("Kicked %s clients!", count));
+		}
+
+		public static void KickAllClients(String message) {
+			if (!CheckForKick()) return;
+
+			int count = 0;
+
+			for (ClientHandler ch : allAvailableClients.values()) {
+				ch.DisconnectClient(message);
+				count++;
+			}
+		
+			Logger.LogInfo(String.format("Kicked %s clients!", count));
+		}
+
+		private static boolean CheckForKick() {
+			if (GetClientCount() == 0) {
+				Logger.LogInfo("Server-KickAll: No clients there to kick!");
+				return false;
+			}
+			return true;
+		}
+
+		public static void PrintAllClients() {
+			for (ClientHandler ch : allAvailableClients.values()) {
+				System.out.println(String.format("%s", ch.GetClient().toString()));
+			}
+		}
+
+		public static int GetClientCount() {
+			return allAvailableClients == null ? 0 : allAvailableClients.size();	// metrics may ask before the service started!
+		}
+
+		public static void SetIsError(boolean _isError) {
+			isError = _isError;
+		}
+	
+		public static boolean GetIsError() {
+			return isError;
+		}
+
+		public static void SetSlowConsumerPolicy(ClientHandler.SlowConsumerPolicy _slowConsumerPolicy) {
+			if (_slowConsumerPolicy == null) {
+				return;
+			}
+
+			slowConsumerPolicy = _slowConsumerPolicy;
+		}
+
+		public static ClientHandler.SlowConsumerPolicy GetSlowConsumerPolicy() {
+			return slowConsumerPolicy;
+		}
+
+		public static void SetOutboundHighWaterMark(int _outboundHighWaterMark) {
+			if (_outboundHighWaterMark <= 0) {
+				return;
+			}
+
+			outboundHighWaterMark = _outboundHighWaterMark;
+		}
+
+		public static int GetOutboundHighWaterMark() {
+			return outboundHighWaterMark;
+		}
+
+		public static void SetClientExecutor(ExecutorService _clientExecutor) {
+			clientExecutor = _clientExecutor;
+		}
+
+		public static boolean GetIsRunning() {
+			return isRunning;
+		}
+
+		public static void SetIsRunning(boolean _isRunning) {
+			isRunning = _isRunning;
+		}
+
+		public static boolean GetIsStopped() {
+			return isStopped;
+		}
+
+		public static void SetIsStopped(boolean _isStopped) {
+			isStopped = _isStopped;
+		}
+
+		public static void SetMaxConnections(int _maxConnections) {
+			if (_maxConnections < 0) {
+				return;
+			}
+
+			maxConnections = _maxConnections;
+		}
+
+		public static int GetMaxConnections() {
+			return maxConnections;
+		}
+
+		public static void SetRequestRateLimit(int _requestsPerSecond, int _requestBurst) {
+			if (_requestsPerSecond < 0) {
+				return;
+			}
+
+			requestsPerSecond = _requestsPerSecond;
+			requestBurst = Math.max(1, _requestBurst);
+		}
+
+		public static void SetInactivityTime(int _maxInactivityTime) {
+			maxInactivityTime = _maxInactivityTime;
+		}
+
+		public static int GetInactivityTime() {
+			return maxInactivityTime;
+		}
+	}
+
+
+	public static class ClientHandler implements Runnable {
+		public enum KickingReasons {
+			INACTIVITY,
+			SLOW_CONSUMER,
+			OTHER,
+		}
+
+		// What happens with a broadcast for a client which has more than the high-water mark queued!
+		public enum SlowConsumerPolicy {
+			DROP,			// the new broadcast gets dropped for this client
+			DISCONNECT,		// the client gets disconnected
+			COALESCE,		// older queued broadcasts get dropped, only the newest one stays
+		}
+
+		private static final String BAD_REQUEST_STRING = "Bad Request!";
+		private static final int WRITE_BUFFER_SIZE = 16 * 1024;
+		private static final int CLOSE_TIMEOUT_MILLIS = 1000;	// for a write which still holds the write lock
+
+
+		private static final MenuCatalog tickets = InitMenus();	// shared by all clients!
+
+		private ClientModel clientModel;
+		private ReactorConnection reactorConnection = null;	// only set in reactor mode!
+
+		private DataOutputStream out = null;
+		private RequestReader in = null;
+		private Thread readerThread = null;		// its writes only get flushed once no more requests are buffered!
+		// One of each per thread, reused for every request! A request is handled start to end on one thread, idle clients don't hold any.
+		private static final ThreadLocal<Request> requests = ThreadLocal.withInitial(Request::new);
+		private static final ThreadLocal<BinaryRequest> binaryRequests = ThreadLocal.withInitial(BinaryRequest::new);
+		private boolean isExiting = false;
+		private boolean isProtocolChosen = false;	// by the first byte of the client!
+		private volatile boolean isBinary = false;
+		private volatile FrameCompressor compressor = null;	// only if the client asked for compression!
+		private volatile boolean isPeer = false;				// link of another cluster node, never forwards anything
+		private TokenBucket rateLimit = ClientService.NewRateLimit();	// "null" if there is none! Only the thread which handles the input uses it.
+
+		// Replies which wait for the order journal! Once one waits, all later ones wait behind it, so the order of the replies stays.
+		private static class HeldReply {
+			private ResponseWriter response;	// "null" while another node works on it
+			private final long sequence;		// "0" if it only waits for the replies in front of it
+			private boolean isDropped = false;	// the connection is gone
+
+			private HeldReply(ResponseWriter response, long sequence) {
+				this.response = response;
+				this.sequence = sequence;
+			}
+		}
+
+		private final ArrayDeque<HeldReply> heldReplies = new ArrayDeque<HeldReply>(1);	// mostly empty, grows if needed
+		private final ReentrantLock heldLock = new ReentrantLock();
+		private final Condition heldDrained = heldLock.newCondition();
+		private volatile int heldCount = 0;			// checked without the lock, only the client's own requests make it grow
+		private boolean isCloseHeld = false;		// reactor: close once the held replies are out
+
+		private volatile boolean gotDisconnected = false;
+		private volatile boolean isConnected = true;
+		private long connectionMillis;				// wall clock
+		private volatile long lastActivityMillis;	// monotonic, from the clock! Used for the inactivity kick.
+		private TimerWheel.Timeout inactivityTimeout = null;
+		private volatile TimerWheel.Timeout closeTimeout = null;	// blocking clients: closes the socket if the kick doesn't get out
+		private String disconnectReason = "";
+		private volatile boolean isStopped = false;
+		private ReentrantLock writeLock = null;	// blocking clients only! Broadcasts and responses come from different threads.
+		private OutboundQueue outbound = new OutboundQueue();	// queued broadcasts! Reactor clients queue everything here.
+
+
+		// One command of the protocol! Sends the reply and returns the result for the event log.
+		private interface RequestHandler {
+			EventLog.Message Handle(ClientHandler client, Request request);
+		}
+
+		// Registration order is the opcode in the event log!
+		private static final CommandRegistry<RequestHandler> AvailableCommands = new CommandRegistry<RequestHandler>()
+			.Register(new Command("GETMENUS", "#Returns all menus!"), ClientHandler::HandleGetMenus)
+			.Register(new Command("GETMENU", 	"#Usage: GETMENU \'Menu Titel\' \'Count\' -> Without the \"\'\".;##Returns the new Menu-Count of the selected Menu and the calculated price!"), ClientHandler::HandleGetMenu)
+			.Register(new Command("EXIT", 	"##Closes the connection to the server!"), ClientHandler::HandleExit)
+			.Register(new Command("HELP", 	"##Shows this info page!"), ClientHandler::HandleHelp);
+
+		// Replies which never change! Encoded once, every request just copies the bytes.
+		static final byte[] BAD_REQUEST_FRAME = ResponseWriter.EncodeFrame(BAD_REQUEST_STRING);
+		static final byte[] GOODBYE_FRAME = ResponseWriter.EncodeFrame("Goodbye Client!");
+		static final byte[] SOLD_OUT_FRAME = ResponseWriter.EncodeFrame("SOLD OUT!");
+		static final byte[] HELP_FRAME = ResponseWriter.EncodeFrame(BuildHelp());
+		static final byte[] WRONG_USAGE_FRAME = ResponseWriter.EncodeFrame(String.format("Wrong usage! -> Usage: %s NAME COUNT", AvailableCommands.GetCommand(1).getCommand()));
+		static final byte[] NOT_A_NUMBER_FRAME = ResponseWriter.EncodeFrame(String.format("Not a number! -> Usage: %s NAME COUNT", AvailableCommands.GetCommand(1).getCommand()));
+		private static final byte[][] KICK_FRAMES = BuildKickFrames(false);
+
+		// The same for clients which use the binary protocol!
+		static final byte[] BINARY_BAD_REQUEST_FRAME = Protocol.EncodeStatus(Protocol.TYPE_ERROR, EventLog.Message.BAD_REQUEST);
+		static final byte[] BINARY_WRONG_USAGE_FRAME = Protocol.EncodeStatus(Protocol.TYPE_ORDER, EventLog.Message.WRONG_USAGE);
+		static final byte[] BINARY_NOT_FOUND_FRAME = Protocol.EncodeStatus(Protocol.TYPE_ORDER, EventLog.Message.NOT_FOUND);
+		static final byte[] BINARY_SOLD_OUT_FRAME = Protocol.EncodeStatus(Protocol.TYPE_ORDER, EventLog.Message.SOLD_OUT);
+		static final byte[] BINARY_GOODBYE_FRAME = Protocol.EncodeType(Protocol.TYPE_GOODBYE);
+		static final byte[] BINARY_HELP_FRAME = Protocol.EncodeText(Protocol.TYPE_HELP, BuildHelp());
+		private static final byte[][] BINARY_KICK_FRAMES = BuildKickFrames(true);
+
+		// Cluster: the owner of the menu didn't answer!
+		private static final byte[] UNREACHABLE_FRAME = ResponseWriter.EncodeFrame("The node of this menu isn't reachable, please try again later!");
+		private static final byte[] BINARY_UNREACHABLE_FRAME = Protocol.EncodeStatus(Protocol.TYPE_ORDER, EventLog.Message.UNREACHABLE);
+
+		// The journal couldn't write the order, it didn't happen!
+		private static final byte[] NOT_SAVED_FRAME = ResponseWriter.EncodeFrame("The order couldn't be saved, please try again later!");
+		private static final byte[] BINARY_NOT_SAVED_FRAME = Protocol.EncodeStatus(Protocol.TYPE_ORDER, EventLog.Message.NOT_SAVED);
+
+		// Preset dictionary for compressed frames, the words the replies are made of! Sent to the client with the handshake.
+		static final byte[] COMPRESSION_DICTIONARY = BuildDictionary();
+		static final long DICTIONARY_CRC = GetCrc(COMPRESSION_DICTIONARY);	// a resuming client shows it still has the same one
+
+		private static final byte[] RESUME_PREFIX = "RESUME ".getBytes(StandardCharsets.US_ASCII);
+		private static final int RESUME_UNDECIDED = -2;
+		private static final int MAX_RESUME_LENGTH = 256;
+		static final byte[] SESSION_EXPIRED_FRAME = ResponseWriter.EncodeFrame("Session expired!");
+
+		// Admission control! Sent instead of the welcome if the server is full, the other one instead of a reply over the rate limit.
+		static final byte[] SERVER_BUSY_FRAME = ResponseWriter.EncodeFrame("Server busy! Please try again later.");
+		static final byte[] RATE_LIMITED_FRAME = ResponseWriter.EncodeFrame("Too many requests! Please slow down.");
+		static final byte[] BINARY_RATE_LIMITED_FRAME = Protocol.EncodeStatus(Protocol.TYPE_ERROR, EventLog.Message.RATE_LIMITED);
+
+
+
+		public ClientHandler(Socket socket) {
+			this(socket, null);
+		}
+
+		public ClientHandler(ReactorConnection connection) {
+			this(connection.GetChannel().socket(), connection);
+		}
+
+		private ClientHandler(Socket socket, ReactorConnection connection) {
+			clientModel = new ClientModel(socket);
+			reactorConnection = connection;
+
+			if (reactorConnection == null) {
+				try {
+					out = new DataOutputStream(new LeasedOutputStream(clientModel.GetSocket().getOutputStream(), WRITE_BUFFER_SIZE));
+					in = new RequestReader(clientModel.GetSocket().getInputStream());
+					writeLock = new ReentrantLock();
+				}
+				catch (Exception e) {
+					// error while initializing streams!
+					e.printStackTrace();
+				}
+			}
+
+			if (reactorConnection != null) {
+				reactorConnection.SetOutbound(outbound);
+			}
+
+			connectionMillis = Clock.WallMillis();
+			lastActivityMillis = Clock.Millis();
+		}
+
+
+
+		public static MenuCatalog GetCatalog() {
+			return tickets;
+		}
+
+		private static MenuCatalog InitMenus() {
+			MenuCatalog catalog = new MenuCatalog(4);
+			catalog.Add("Kaerntnernudel", 	9.00f,	23);
+			catalog.Add("Wienerschnitzel",	10.00f,	25);
+			catalog.Add("Fitnessteller", 	8.50f,	4);
+			catalog.Add("Kaiserschmarn", 	7.00f,	6);
+			return catalog;
+		}
+
+
+		private static String BuildHelp() {
+			String help = "";
+
+			for (int i = 0; i < AvailableCommands.GetCount(); i++) {
+				help += AvailableCommands.GetCommand(i).toString() + ";";
+			}
+			return help;
+		}
+
+		private static long GetCrc(byte[] bytes) {
+			CRC32 crc = new CRC32();
+			crc.update(bytes, 0, bytes.length);
+			return crc.getValue();
+		}
+
+		// Deflate finds matches closer to the end cheaper, so the most common words go last!
+		private static byte[] BuildDictionary() {
+			StringBuilder dictionary = new StringBuilder();
+
+			dictionary.append(BuildHelp());
+			dictionary.append("Selected menu:##;;Available portions:#;Ordered portions:#;_;New portions:##;;Total price:##").append(Constants.PriceTag);
+			dictionary.append(tickets.GetVocabulary());
+
+			byte[] bytes = dictionary.toString().getBytes(StandardCharsets.UTF_8);
+			return bytes.length > FrameCompressor.MAX_DICTIONARY_SIZE ? Arrays.copyOfRange(bytes, bytes.length - FrameCompressor.MAX_DICTIONARY_SIZE, bytes.length) : bytes;
+		}
+
+		private static byte[][] BuildKickFrames(boolean isBinary) {
+			KickingReasons[] reasons = KickingReasons.values();
+			byte[][] frames = new byte[reasons.length][];
+
+			for (int i = 0; i < reasons.length; i++) {
+				String text = GetKickingReasonString(reasons[i]);
+				frames[i] = isBinary ? Protocol.EncodeKick(reasons[i], text) : ResponseWriter.EncodeFrame(text);
+			}
+			return frames;
+		}
+
+
+		// Name of a command in the event log! "0" is a bad request.
+		// Index of the command in the first word, "-1" if there is none!
+		static int FindCommand(Request request) {
+			if (request.GetTokenCount() == 0) {
+				return -1;
+			}
+
+			return AvailableCommands.Find(request.GetBytes(), request.GetTokenStart(0), request.GetTokenLength(0));
+		}
+
+		public static String GetCommandName(int opcode) {
+			if (opcode == Protocol.OP_CATALOG) {
+				return "CATALOG";	// binary only!
+			}
+
+			if (opcode <= 0 || opcode > AvailableCommands.GetCount()) {
+				return "-";
+			}
+			return AvailableCommands.GetCommand(opcode - 1).getCommand();
+		}
+
+
+
+		// With the session token! "RESUME TOKEN FEATURES DICTIONARY" gets the id back after a reconnect.
+		public void SendWelcome() {
+			SendToClient(String.format("Welcome Client! ID: %s;Session: %s", clientModel.GetClientIdentifier(), Sessions.Issue(clientModel.GetId())), false);
+		}
+
+		public void SendToClient(String data, boolean isBroadcast) {
+			Send(ResponseWriter.Acquire().Append(data), !isBroadcast);
+		}
+
+		// Pooled response! The buffer goes back to the pool once it is written.
+		public void SendResponse(ResponseWriter response) {
+			Send(response, true);
+		}
+
+		// Reply to an order! Goes out once the journal has the order with this sequence on disk.
+		private void SendDurable(ResponseWriter response, long sequence) {
+			UpdateActivity();
+			Write(Compress(response), sequence);
+		}
+
+		// Pre-encoded frame (length + payload)! It might be shared with other clients, so it only gets read.
+		public void SendFrameToClient(byte[] frame) {
+			FrameCompressor compressor = this.compressor;
+
+			if (compressor != null && frame.length - 4 >= FrameCompressor.GetThreshold()) {
+				ResponseWriter compressed = compressor.Compress(frame, frame.length);
+
+				if (compressed != null) {
+					Send(compressed, true);
+					return;
+				}
+			}
+
+			SendFrameUncompressed(frame);
+		}
+
+		// The catalog frames only get compressed once per inventory version, all clients share the same dictionary!
+		// In a cluster the menus of the other nodes have their last known portions, no GETMENUS waits for another node.
+		private void SendCatalogFrame(MenuCatalog.Format format) {
+			FrameCompressor compressor = this.compressor;
+
+			if (compressor != null) {
+				SendFrameUncompressed(tickets.GetCompressedFrame(format, compressor));
+			}
+			else {
+				SendFrameUncompressed(tickets.GetFrame(format));
+			}
+		}
+
+		private void SendFrameUncompressed(byte[] frame) {
+			if (heldCount > 0) {
+				// Has to wait behind an order!
+				UpdateActivity();
+				Write(ResponseWriter.Acquire().CopyFrame(frame), 0);
+				return;
+			}
+
+			if (reactorConnection != null) {
+				if (frame.length <= ResponseWriter.BUFFER_SIZE) {
+					// Copying a few bytes is cheaper than a new ByteBuffer for every reply!
+					UpdateActivity();
+					Write(ResponseWriter.Acquire().CopyFrame(frame), 0);
+				}
+				else {
+					UpdateActivity();
+					reactorConnection.Write(ByteBuffer.wrap(frame));
+				}
+				return;
+			}
+
+			UpdateActivity();
+			WriteBlocking(frame, frame.length);
+		}
+
+		private void Send(ResponseWriter response, boolean isActivity) {
+			if (isActivity) {
+				UpdateActivity();
+			}
+
+			Write(Compress(response), 0);
+		}
+
+		private ResponseWriter Compress(ResponseWriter response) {
+			ByteBuffer frame = response.Finish();
+			FrameCompressor compressor = this.compressor;
+
+			if (compressor != null && frame.limit() - 4 >= FrameCompressor.GetThreshold() && !response.IsCompressed()) {
+				ResponseWriter compressed = compressor.Compress(frame.array(), frame.limit());
+
+				if (compressed != null) {
+					response.Release();
+					return compressed;
+				}
+			}
+
+			return response;
+		}
+
+		// Finished frame, as it is! Waits if the journal doesn't have the order of "sequence" on disk yet or other replies wait already.
+		private void Write(ResponseWriter response, long sequence) {
+			if (sequence == 0 && heldCount == 0) {
+				WriteNow(response);
+				return;
+			}
+
+			heldLock.lock();
+
+			try {
+				// The journal sets the durable sequence before it takes this lock, so a reply can't miss its release!
+				if (heldReplies.isEmpty() && sequence <= OrderJournal.GetDurableSequence()) {
+					WriteNow(CheckSaved(response, sequence));
+					return;
+				}
+
+				heldReplies.add(new HeldReply(response, sequence));
+				heldCount = heldReplies.size();
+			}
+			finally {
+				heldLock.unlock();
+			}
+		}
+
+		// An order which the journal lost gets an error instead of its reply!
+		private ResponseWriter CheckSaved(ResponseWriter response, long sequence) {
+			if (sequence == 0 || !OrderJournal.IsLost(sequence)) {
+				return response;
+			}
+
+			response.Release();
+			return ResponseWriter.Acquire().CopyFrame(isBinary ? BINARY_NOT_SAVED_FRAME : NOT_SAVED_FRAME);
+		}
+
+		// Called by the journal after every commit!
+		public void ReleaseDurable(long durableSequence) {
+			heldLock.lock();
+
+			try {
+				DrainHeldReplies(durableSequence);
+			}
+			finally {
+				heldLock.unlock();
+			}
+		}
+
+		// A place in the order of the replies for a reply which comes later, e.g. from another node!
+		private HeldReply HoldReply() {
+			heldLock.lock();
+
+			try {
+				HeldReply slot = new HeldReply(null, 0);
+				heldReplies.add(slot);
+				heldCount = heldReplies.size();
+				return slot;
+			}
+			finally {
+				heldLock.unlock();
+			}
+		}
+
+		private void CompleteHeldReply(HeldReply slot, ResponseWriter response) {
+			response = Compress(response);
+
+			heldLock.lock();
+
+			try {
+				if (slot.isDropped) {
+					response.Release();
+					return;
+				}
+
+				slot.response = response;
+				DrainHeldReplies(OrderJournal.GetDurableSequence());
+			}
+			finally {
+				heldLock.unlock();
+			}
+		}
+
+		// Only with the held lock!
+		private void DrainHeldReplies(long durableSequence) {
+			while (!heldReplies.isEmpty() && heldReplies.peek().response != null && heldReplies.peek().sequence <= durableSequence) {
+				HeldReply reply = heldReplies.poll();
+				WriteNow(CheckSaved(reply.response, reply.sequence));
+			}
+
+			heldCount = heldReplies.size();
+
+			if (heldReplies.isEmpty()) {
+				heldDrained.signalAll();
+
+				if (isCloseHeld) {
+					reactorConnection.CloseAfterFlush();
+				}
+			}
+		}
+
+		// Reactor: the connection should close, but not before the held replies are out! Returns false if it can close right away.
+		public boolean HoldClose() {
+			heldLock.lock();
+
+			try {
+				isCloseHeld = !heldReplies.isEmpty();
+				return isCloseHeld;
+			}
+			finally {
+				heldLock.unlock();
+			}
+		}
+
+		// Blocking modes: the same, the reader thread just waits!
+		private void AwaitHeldReplies() {
+			heldLock.lock();
+
+			try {
+				while (!heldReplies.isEmpty() && isConnected) {
+					heldDrained.await(100, java.util.concurrent.TimeUnit.MILLISECONDS);
+				}
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			finally {
+				heldLock.unlock();
+			}
+		}
+
+		private void WriteNow(ResponseWriter response) {
+			ByteBuffer frame = response.Finish();
+
+			if (reactorConnection != null) {
+				// The event loop writes the frame!
+				reactorConnection.Write(response);
+				return;
+			}
+
+			try {
+				WriteBlocking(frame.array(), frame.limit());
+			}
+			finally {
+				response.Release();
+			}
+		}
+
+		private void WriteBlocking(byte[] frame, int length) {
+			writeLock.lock();
+
+			try {
+				if (!isConnected) {
+					return;		// closed, the buffer might belong to another client already!
+				}
+
+				out.write(frame, 0, length);
+				Metrics.AddBytesOut(length);
+
+				if (Thread.currentThread() != readerThread) {
+					out.flush();
+				}
+			}
+			catch (Exception e) {
+				isConnected = false;
+
+				Logger.LogError("Server: Client not reachable! Couln't send data!");
+			}
+			finally {
+				writeLock.unlock();
+			}
+		}
+
+		// Pipelining! All replies to the requests of one read go out together.
+		private void FlushBlocking() {
+			writeLock.lock();
+
+			try {
+				if (isConnected) {
+					out.flush();
+				}
+			}
+			catch (Exception e) {
+				isConnected = false;
+
+				Logger.LogError("Server: Client not reachable! Couln't send data!");
+			}
+			finally {
+				writeLock.unlock();
+			}
+		}
+
+		// Flushes the last replies and gives the buffer back, never while another thread writes into it!
+		// A write which is stuck on a full socket gets woken up by closing the socket, that reply is lost anyway.
+		private void CloseOutput() throws Exception {
+			if (!writeLock.tryLock(CLOSE_TIMEOUT_MILLIS, java.util.concurrent.TimeUnit.MILLISECONDS)) {
+				clientModel.CloseConnection();
+				writeLock.lock();
+			}
+
+			try {
+				isConnected = false;	// no write starts anymore, the buffer goes back to the pool!
+
+				if (gotDisconnected) {
+					WriteQueued();	// the kick, if the drain didn't get to it!
+				}
+
+				out.close();
+			}
+			finally {
+				writeLock.unlock();
+			}
+		}
+
+		// Only with the write lock!
+		private void WriteQueued() {
+			OutboundQueue.Frame frame;
+
+			while ((frame = outbound.Poll()) != null) {
+				try {
+					ByteBuffer buffer = frame.GetBuffer();
+					out.write(buffer.array(), buffer.position(), buffer.remaining());
+				}
+				catch (Exception e) {
+					break;		// the socket is gone, "Clear" drops the rest
+				}
+				finally {
+					outbound.Release(frame);
+				}
+			}
+		}
+
+		// Every request and send! Only a volatile read and write, the clock thread keeps the time.
+		private void UpdateActivity() {
+			lastActivityMillis = Clock.Millis();
+		}
+
+		// Never blocks! The frame gets queued and written by the event loop or the fan-out executor.
+		public void SendBroadcast(BroadcastFrame broadcast) {
+			if (isPeer) {
+				return;		// other nodes have their own console!
+			}
+
+			if (outbound.GetQueuedBytes() + broadcast.GetLength(isBinary) > ClientService.GetOutboundHighWaterMark()) {
+				broadcast.AddSlowConsumer();
+
+				switch (ClientService.GetSlowConsumerPolicy()) {
+					case DROP:
+						return;
+
+					case DISCONNECT:
+						DisconnectSlowConsumer();
+						return;
+
+					case COALESCE:
+						outbound.DropBroadcasts();
+						break;
+				}
+			}
+
+			broadcast.AddReceiver();
+			outbound.Add(broadcast.NewBuffer(isBinary), broadcast);
+
+			if (reactorConnection != null) {
+				reactorConnection.ScheduleFlush();
+			}
+			else if (outbound.TryStartDrain()) {
+				ClientService.GetFanOutExecutor().execute(() -> DrainBroadcasts());
+			}
+		}
+
+		// Blocking clients only! Runs on the fan-out executor, one drain per client at a time.
+		private void DrainBroadcasts() {
+			do {
+				OutboundQueue.Frame frame;
+
+				while ((frame = outbound.Poll()) != null) {
+					if (!isConnected) {
+						// Nobody reads it anymore!
+						outbound.Release(frame);
+						continue;
+					}
+
+					writeLock.lock();
+
+					try {
+						if (!isConnected) {
+							continue;	// closed while it waited for the lock!
+						}
+
+						ByteBuffer buffer = frame.GetBuffer();
+						out.write(buffer.array(), buffer.position(), buffer.remaining());
+						out.flush();
+					}
+					catch (Exception e) {
+						isConnected = false;
+
+						Logger.LogError("Server: Client not reachable! Couln't send data!");
+					}
+					finally {
+						writeLock.unlock();
+						outbound.Release(frame);
+					}
+				}
+
+				outbound.StopDrain();
+			} while (!outbound.IsEmpty() && outbound.TryStartDrain());
+		}
+
+		// No goodbye message! It would just end up in the full queue.
+		private void DisconnectSlowConsumer() {
+			if (gotDisconnected) {
+				return;
+			}
+
+			Metrics.Evicted(KickingReasons.SLOW_CONSUMER);
+			SetDisconnectReason(GetKickingReasonString(KickingReasons.SLOW_CONSUMER));
+			gotDisconnected = true;
+
+			if (reactorConnection != null) {
+				reactorConnection.Close();
+			}
+			else {
+				// Also wakes up a write which is stuck on the full socket!
+				clientModel.CloseConnection();
+			}
+		}
+
+		public void DisconnectClient(KickingReasons reason) {
+			Metrics.Evicted(reason);
+			SetDisconnectReason(GetKickingReasonString(reason));
+			Kick(isBinary ? BINARY_KICK_FRAMES[reason.ordinal()] : KICK_FRAMES[reason.ordinal()]);
+		}
+
+		public void DisconnectClient(String message) {
+			String newMessage = String.format("You got kicked for this reason: %s", message);
+
+			Metrics.Evicted(KickingReasons.OTHER);
+			SetDisconnectReason(newMessage);
+			Kick(isBinary ? Protocol.EncodeKick(KickingReasons.OTHER, newMessage) : ResponseWriter.EncodeFrame(newMessage));
+		}
+
+		// Called by the timer wheel or the console, neither of them may wait for the socket of one client!
+		private void Kick(byte[] frame) {
+			if (reactorConnection != null) {
+				SendFrameToClient(frame);
+				gotDisconnected = true;
+				reactorConnection.CloseAfterFlush();
+				return;
+			}
+
+			// Blocking clients: the fan-out executor writes the kick like a broadcast, the reader thread sends what is left when it closes.
+			gotDisconnected = true;
+			outbound.Add(ByteBuffer.wrap(frame), null);
+
+			if (outbound.TryStartDrain()) {
+				ClientService.GetFanOutExecutor().execute(() -> DrainBroadcasts());
+			}
+
+			// A client which doesn't read would keep that write stuck for good!
+			closeTimeout = ClientService.Schedule(CLOSE_TIMEOUT_MILLIS, () -> clientModel.CloseConnection());
+			ShutdownInput();
+		}
+
+		private static String GetKickingReasonString(KickingReasons reason) {
+			switch (reason) {
+				case INACTIVITY:
+					return "You got kicked for inactivity!";
+
+				case SLOW_CONSUMER:
+					return "You got kicked for not reading your messages!";
+
+				case OTHER:
+					return "You got kicked for an unknown reason!";
+
+				default:
+					return null;
+			}
+		}
+
+		public boolean GetConnectionState() {
+			return isConnected;
+		}
+
+		public long GetConnectionMillis() {
+			return connectionMillis;
+		}
+
+		public long GetLastActivityMillis() {
+			return lastActivityMillis;
+		}
+
+		public boolean IsPeer() {
+			return isPeer;
+		}
+
+		public void SetInactivityTimeout(TimerWheel.Timeout timeout) {
+			inactivityTimeout = timeout;
+		}
+
+
+		public void SetDisconnectReason(String disconnectReason) {
+			this.disconnectReason = disconnectReason;
+		}
+
+		private String GetDisconnectReason() {
+			return disconnectReason;
+		}
+
+		public void StopClient() {
+			isStopped = true;
+
+			if (reactorConnection != null) {
+				reactorConnection.Close();
+			}
+			else {
+				// Wakes up the blocking read of the client thread!
+				clientModel.CloseConnection();
+			}
+		}
+
+		// Lets the blocking "readLine()" return, after the last message got sent!
+		private void ShutdownInput() {
+			try {
+				clientModel.GetSocket().shutdownInput();
+			}
+			catch (Exception e) {
+				// allready closed!
+			}
+		}
+
+		public ClientModel GetClient() {
+			return clientModel;
+		}
+
+
+
+		// Every complete request in the bytes, text lines or binary requests! Returns where the unhandled rest starts or "-1" if the connection should be closed.
+		public int HandleInput(byte[] bytes, int offset, int end) {
+			int position = offset;
+
+			if (isExiting) {
+				return -1;	// only waits for the last replies, nothing gets handled anymore!
+			}
+
+			while (!isProtocolChosen && position < end) {
+				if ((bytes[position] & Protocol.HANDSHAKE_MASK) == Protocol.HANDSHAKE) {
+					isProtocolChosen = true;
+					Handshake(bytes[position] & ~Protocol.HANDSHAKE_MASK);
+					position++;
+				}
+				else {
+					int lineEnd = FindResume(bytes, position, end);
+
+					if (lineEnd == RESUME_UNDECIDED) {
+						return position;	// waits for the whole first line!
+					}
+
+					if (lineEnd >= 0) {
+						// A failed resume leaves the choice open, a handshake can still follow!
+						int length = lineEnd - position;
+						isProtocolChosen = Resume(bytes, position, length > 0 && bytes[lineEnd - 1] == '\r' ? length - 1 : length);
+						position = lineEnd + 1;
+					}
+					else {
+						isProtocolChosen = true;
+					}
+				}
+			}
+
+			long now = rateLimit != null ? System.nanoTime() : 0;	// once per read, the requests of one read come in together anyway
+
+			if (isBinary) {
+				BinaryRequest binaryRequest = binaryRequests.get();
+
+				while (position < end && !IsInputStopped()) {
+					int length = binaryRequest.Parse(bytes, position, end);
+
+					if (length == 0) {
+						break;	// waits for the rest!
+					}
+
+					if (length < 0) {
+						// Unknown opcode! The rest can't be split into requests anymore.
+						SendFrameToClient(BINARY_BAD_REQUEST_FRAME);
+						return -1;
+					}
+
+					position += length;
+
+					if (IsOverRateLimit(now)) {
+						Shed();
+					}
+					else if (!HandleBinaryRequest(binaryRequest)) {
+						return -1;
+					}
+
+					if (gotDisconnected || !isConnected) {
+						return -1;
+					}
+				}
+				return position;
+			}
+
+			for (int i = position; i < end; i++) {
+				if (bytes[i] != '\n') {
+					continue;
+				}
+
+				if (IsInputStopped()) {
+					break;	// the rest waits in the connection!
+				}
+
+				int length = i - position;
+
+				if (length > 0 && bytes[i - 1] == '\r') {
+					length--;
+				}
+
+				if (IsOverRateLimit(now)) {
+					Shed();
+				}
+				else if (!HandleRequest(bytes, position, length)) {
+					return -1;
+				}
+
+				if (gotDisconnected || !isConnected) {
+					return -1;
+				}
+
+				position = i + 1;
+			}
+			return position;
+		}
+
+		// Reactor: the client doesn't read its replies! They would pile up in the queue, so the requests wait.
+		private boolean IsInputStopped() {
+			return reactorConnection != null && reactorConnection.StopInputIfFull();
+		}
+
+		private boolean IsOverRateLimit(long now) {
+			return rateLimit != null && !rateLimit.TryTake(now);
+		}
+
+		// Over the rate limit! Not parsed and not dispatched, but still answered, so every reply stays with its request.
+		private void Shed() {
+			Metrics.RequestRejected();
+			SendFrameToClient(isBinary ? BINARY_RATE_LIMITED_FRAME : RATE_LIMITED_FRAME);
+		}
+
+		// End of the first line if it is a "RESUME", "-1" if it isn't one, RESUME_UNDECIDED if there are too few bytes to tell!
+		private static int FindResume(byte[] bytes, int offset, int end) {
+			for (int i = 0; i < RESUME_PREFIX.length; i++) {
+				if (offset + i >= end) {
+					return RESUME_UNDECIDED;
+				}
+
+				if (Character.toUpperCase(bytes[offset + i]) != RESUME_PREFIX[i]) {
+					return -1;
+				}
+			}
+
+			for (int i = offset + RESUME_PREFIX.length; i < end; i++) {
+				if (bytes[i] == '\n') {
+					return i;
+				}
+			}
+
+			return end - offset > MAX_RESUME_LENGTH ? -1 : RESUME_UNDECIDED;
+		}
+
+		// Instead of the handshake, one round trip! The token proves the id, the features get switched on like with a handshake.
+		// Compression only if the client still has the same dictionary, it doesn't get sent again. Replies "Features: N" with what got switched on.
+		private boolean Resume(byte[] bytes, int offset, int length) {
+			Request request = requests.get().Parse(bytes, offset, length);
+
+			int id = request.GetTokenCount() == 4 ? Sessions.Verify(request.GetToken(1)) : -1;
+			int features = request.GetTokenCount() == 4 ? request.ParseNumber(2) : -1;
+
+			if (id < 0 || features < 0) {
+				// The client stays the new one from the welcome!
+				SendFrameToClient(SESSION_EXPIRED_FRAME);
+				Logger.LogInfo(String.format("Server: Client %s couldn't resume its session!", clientModel.GetClientIdentifier()));
+				return false;
+			}
+
+			features &= Protocol.FEATURE_BINARY | Protocol.FEATURE_COMPRESSION;
+
+			if (!request.GetToken(3).equalsIgnoreCase(Long.toHexString(DICTIONARY_CRC))) {
+				features &= ~Protocol.FEATURE_COMPRESSION;
+			}
+
+			int newId = clientModel.GetId();
+			ClientService.Reclaim(this, id);
+
+			SendToClient(String.format("Resumed! ID: %s;Session: %s;Features: %s", clientModel.GetClientIdentifier(), Sessions.Issue(id), features), false);
+
+			isBinary = (features & Protocol.FEATURE_BINARY) != 0;
+
+			if ((features & Protocol.FEATURE_COMPRESSION) != 0) {
+				compressor = new FrameCompressor(COMPRESSION_DICTIONARY);
+			}
+
+			Metrics.SessionResumed();
+			Logger.LogInfo(String.format("Server: Client-%s resumed the session of %s with the %s protocol%s!", newId, clientModel.GetClientIdentifier(), isBinary ? "binary" : "text", compressor != null ? " with compression" : ""));
+			return true;
+		}
+
+		// Only the features the server knows get switched on! The reply starts with one byte "10xxxxxx", which can't be mistaken for text.
+		// With compression the preset dictionary follows, the client needs it to inflate.
+		private void Handshake(int requested) {
+			int features = requested & Protocol.SUPPORTED_FEATURES;
+
+			if (!Cluster.IsEnabled()) {
+				features &= ~Protocol.FEATURE_PEER;
+			}
+
+			isPeer = (features & Protocol.FEATURE_PEER) != 0;
+
+			if (isPeer) {
+				rateLimit = null;	// carries the orders of many clients!
+			}
+
+			ResponseWriter ack = ResponseWriter.Acquire().AppendByte(Protocol.HANDSHAKE | features);
+
+			isBinary = (features & Protocol.FEATURE_BINARY) != 0;
+
+			if ((features & Protocol.FEATURE_COMPRESSION) != 0) {
+				ack.Append(COMPRESSION_DICTIONARY, 0, COMPRESSION_DICTIONARY.length);
+			}
+
+			SendResponse(ack);	// never compressed, the compressor comes after it!
+
+			if ((features & Protocol.FEATURE_COMPRESSION) != 0) {
+				compressor = new FrameCompressor(COMPRESSION_DICTIONARY);
+			}
+
+			Logger.LogInfo(String.format("Server: Client %s uses the %s protocol%s%s!", clientModel.GetClientIdentifier(), isBinary ? "binary" : "text", compressor != null ? " with compression" : "", isPeer ? " as a node link" : ""));
+		}
+
+		// Returns false if the client wants to close the connection!
+		private boolean HandleBinaryRequest(BinaryRequest request) {
+			long startNanos = System.nanoTime();
+			EventLog.Message result = EventLog.Message.OK;
+
+			switch (request.GetOpcode()) {
+				case Protocol.OP_GETMENUS:
+					SendCatalogFrame(MenuCatalog.Format.BINARY_MENUS);
+					break;
+
+				case Protocol.OP_GETMENU:
+					result = BinaryOrder(request.GetArgument(0), request.GetArgument(1));
+					break;
+
+				case Protocol.OP_EXIT:
+					SendFrameToClient(BINARY_GOODBYE_FRAME);
+					isExiting = true;
+					break;
+
+				case Protocol.OP_HELP:
+					SendFrameToClient(BINARY_HELP_FRAME);
+					break;
+
+				case Protocol.OP_CATALOG:
+					SendCatalogFrame(MenuCatalog.Format.BINARY_CATALOG);
+					break;
+			}
+
+			long latencyNanos = System.nanoTime() - startNanos;
+
+			Metrics.RecordRequest(request.GetOpcode(), latencyNanos);
+
+			if (isExiting) {
+				return false;
+			}
+
+			if (EventLog.IsEnabled()) {
+				EventLog.Append(Logger.Type.INFO, clientModel.GetId(), request.GetOpcode(), latencyNanos, result);
+			}
+			else {
+				Logger.LogInfo(String.format("Client %s: %s", clientModel.GetConnectionString(), request.toString()));
+			}
+
+			return true;
+		}
+
+		// GETMENU by id! The reply has the numbers, the client knows the names from the catalog.
+		private EventLog.Message BinaryOrder(int id, int portions) {
+			if (portions <= 0) {
+				SendFrameToClient(BINARY_WRONG_USAGE_FRAME);
+				return EventLog.Message.WRONG_USAGE;
+			}
+
+			MenuModel model = tickets.Get(id);
+
+			if (model == null) {
+				SendFrameToClient(BINARY_NOT_FOUND_FRAME);
+				return EventLog.Message.NOT_FOUND;
+			}
+
+			if (!isPeer && !Cluster.IsLocal(model.getSlot())) {
+				ForwardOrder(model, portions);
+				return EventLog.Message.OK;
+			}
+
+			int availablePortions = model.TryOrder(portions);
+
+			if (availablePortions < 0) {
+				SendFrameToClient(BINARY_SOLD_OUT_FRAME);
+				return EventLog.Message.SOLD_OUT;
+			}
+
+			long sequence = OrderJournal.Append(model.getSlot(), portions, this);
+
+			ResponseWriter response = ResponseWriter.Acquire()
+				.AppendByte(Protocol.TYPE_ORDER)
+				.AppendByte(EventLog.Message.OK.ordinal())
+				.AppendVarint(id)
+				.AppendVarint(portions)
+				.AppendVarint(availablePortions)
+				.AppendVarint(model.GetPriceCents() * portions);
+
+			SendDurable(response, sequence);
+			return EventLog.Message.OK;
+		}
+
+
+		// Handles one request line of the client, straight from the read bytes! Returns false if the client wants to close the connection.
+		public boolean HandleRequest(byte[] bytes, int offset, int length) {
+			long startNanos = System.nanoTime();
+			Request request = requests.get().Parse(bytes, offset, length);
+
+			int index = FindCommand(request);
+
+			EventLog.Message result = index >= 0 ? AvailableCommands.GetHandler(index).Handle(this, request) : SendBadRequest();
+
+			int opcode = result == EventLog.Message.BAD_REQUEST ? 0 : index + 1;	// "0" for a bad request
+			long latencyNanos = System.nanoTime() - startNanos;
+
+			Metrics.RecordRequest(opcode, latencyNanos);
+
+			if (isExiting) {
+				return false;
+			}
+
+			if (EventLog.IsEnabled()) {
+				// No text formatting on the request path!
+				EventLog.Append(Logger.Type.INFO, clientModel.GetId(), opcode, latencyNanos, result);
+			}
+			else {
+				Logger.LogInfo(String.format("Client %s: %s", clientModel.GetConnectionString(), request.GetText()));
+			}
+
+			return true;
+		}
+
+
+		// ************************
+		// *                      *
+		// *  Request commands!   *
+		// *                      *
+		// ************************
+
+		// The menu belongs to another node! The reply gets its place right away, so it keeps its order among the other replies.
+		private void ForwardOrder(MenuModel model, int portions) {
+			HeldReply slot = HoldReply();
+			boolean isBinaryReply = isBinary;
+
+			Cluster.ForwardOrder(model.getSlot(), portions, reply -> CompleteHeldReply(slot, ForwardedReply(reply, model, portions, isBinaryReply)));
+		}
+
+		// The owner answers with the binary order reply, text clients get it as text!
+		private static ResponseWriter ForwardedReply(byte[] reply, MenuModel model, int portions, boolean isBinaryReply) {
+			if (reply == null || reply.length < 2 || reply[0] != Protocol.TYPE_ORDER) {
+				return isBinaryReply ? ResponseWriter.Acquire().CopyFrame(BINARY_UNREACHABLE_FRAME) : ResponseWriter.Acquire().CopyFrame(UNREACHABLE_FRAME);
+			}
+
+			if (isBinaryReply) {
+				return ResponseWriter.Acquire().Append(reply, 0, reply.length);
+			}
+
+			if (reply[1] == EventLog.Message.SOLD_OUT.ordinal()) {
+				return ResponseWriter.Acquire().CopyFrame(SOLD_OUT_FRAME);
+			}
+
+			if (reply[1] != EventLog.Message.OK.ordinal()) {
+				return ResponseWriter.Acquire().Append("No menu found with name: ").Append(model.getName());
+			}
+
+			BinaryReader reader = new BinaryReader(reply, 2);
+			reader.ReadVarint();	// id
+			reader.ReadVarint();	// ordered portions
+			int availablePortions = (int)reader.ReadVarint();
+
+			ResponseWriter response = ResponseWriter.Acquire();
+			WriteOrder(response, model, portions, availablePortions);
+			return response;
+		}
+
+		private EventLog.Message HandleGetMenus(Request request) {
+			if (request.GetTokenCount() != 1) {
+				return SendBadRequest();
+			}
+
+			SendCatalogFrame(MenuCatalog.Format.TEXT_MENUS);
+			return EventLog.Message.OK;
+		}
+
+		// GETMENU NAME COUNT
+		private EventLog.Message HandleGetMenu(Request request) {
+			if (request.GetTokenCount() < 3) {
+				SendFrameToClient(WRONG_USAGE_FRAME);
+				return EventLog.Message.WRONG_USAGE;
+			}
+
+			int portions = request.ParseNumber(2);
+
+			if (portions <= 0) {
+				SendFrameToClient(NOT_A_NUMBER_FRAME);
+				return EventLog.Message.WRONG_USAGE;
+			}
+
+			MenuModel model = tickets.Find(request.GetBytes(), request.GetTokenStart(1), request.GetTokenLength(1));
+
+			if (model == null) {
+				SendResponse(ResponseWriter.Acquire().Append("No menu found with name: ").Append(request.GetBytes(), request.GetTokenStart(1), request.GetTokenLength(1)));
+				return EventLog.Message.NOT_FOUND;
+			}
+
+			if (!isPeer && !Cluster.IsLocal(model.getSlot())) {
+				ForwardOrder(model, portions);
+				return EventLog.Message.OK;
+			}
+
+			// Atomic! Concurrent orders can never sell more than there is.
+			int availablePortions = model.TryOrder(portions);
+
+			if (availablePortions < 0) {
+				SendFrameToClient(SOLD_OUT_FRAME);
+				return EventLog.Message.SOLD_OUT;
+			}
+
+			long sequence = OrderJournal.Append(model.getSlot(), portions, this);
+
+			ResponseWriter response = ResponseWriter.Acquire();
+			WriteOrder(response, model, portions, availablePortions);
+			SendDurable(response, sequence);
+			return EventLog.Message.OK;
+		}
+
+		private EventLog.Message HandleExit(Request request) {
+			if (request.GetTokenCount() != 1) {
+				return SendBadRequest();
+			}
+
+			// Goodbye!
+			SendFrameToClient(GOODBYE_FRAME);
+			isExiting = true;
+			return EventLog.Message.OK;
+		}
+
+		private EventLog.Message HandleHelp(Request request) {
+			if (request.GetTokenCount() != 1) {
+				return SendBadRequest();
+			}
+
+			SendFrameToClient(HELP_FRAME);
+			return EventLog.Message.OK;
+		}
+
+		private EventLog.Message SendBadRequest() {
+			SendFrameToClient(BAD_REQUEST_FRAME);
+			return EventLog.Message.BAD_REQUEST;
+		}
+
+
+		// "Selected menu:##NAME;;Available portions:#N;Ordered portions:#N;_;New portions:##N;;Total price:##PRICE,-"
+		public static void WriteOrder(ResponseWriter response, MenuModel model, int portions, int availablePortions) {
+			response.Append("Selected menu:##").Append(model.getName())
+				.Append(";;Available portions:#").Append(availablePortions + portions)
+				.Append(";Ordered portions:#").Append(portions)
+				.Append(";_;New portions:##").Append(availablePortions)
+				.Append(";;Total price:##").AppendPrice(model.GetPriceCents() * portions).Append(Constants.PriceTag);
+		}
+
+
+		private void DropHeldReplies() {
+			heldLock.lock();
+
+			try {
+				while (!heldReplies.isEmpty()) {
+					HeldReply slot = heldReplies.poll();
+					slot.isDropped = true;
+
+					if (slot.response != null) {
+						slot.response.Release();
+					}
+				}
+
+				heldCount = 0;
+				isCloseHeld = false;
+				heldDrained.signalAll();
+			}
+			finally {
+				heldLock.unlock();
+			}
+		}
+
+		// Called once the connection is gone, no matter which side closed it!
+		public void ConnectionClosed() {
+			if (gotDisconnected) { // Check if client got disconnected by the server!
+				Logger.LogInfo(String.format("Server: Client got disconnected by the server! Reason: %s", GetDisconnectReason()));
+			}
+
+			Logger.LogInfo(String.format("Server: Goodbye Client: %s", clientModel.GetConnectionString()));
+
+			try {
+				if (out != null) CloseOutput();
+				if (in != null) in.Close();
+
+				if (!clientModel.CloseConnection())
+					throw new Exception("Couln't close connection!");
+			}
+			catch (Exception e) {
+				Logger.LogError("Server: Couldn't close connection!");
+			}
+
+			isConnected = false;
+
+			// Nobody will write them anymore!
+			outbound.Clear();
+
+			if (inactivityTimeout != null) {
+				inactivityTimeout.Cancel();
+			}
+
+			if (closeTimeout != null) {
+				closeTimeout.Cancel();
+			}
+
+			if (compressor != null) {
+				compressor.End();
+			}
+
+			DropHeldReplies();
+
+			ClientService.RemoveClient(this);
+			ClientService.Release();
+		}
+
+
+
+		@Override
+		public void run()
+		{
+			readerThread = Thread.currentThread();
+
+			// Own thread! The acceptor is back at "accept()" already.
+			SendWelcome();
+			FlushBlocking();
+
+			// Client connected!
+			Logger.LogInfo(String.format("New client connected: %s, ID: %s", clientModel.GetConnectionString(), clientModel.GetClientIdentifier()));
+
+			try {
+				boolean error = false;
+
+				while(!error && !gotDisconnected && isConnected && !isStopped) {
+					try {
+						// Blocks until the client sends something! Kicks and stops wake it up by closing the input.
+						int read = in.Fill();
+
+						if (gotDisconnected || isStopped) {
+							break;
+						}
+
+						if (read < 0) {
+							// Client closed the connection!
+							Logger.LogWarning("Server: Client disconnected or error happend!");
+							break;
+						}
+
+						Metrics.AddBytesIn(read);
+
+						int next = HandleInput(in.GetBuffer(), in.GetStart(), in.GetEnd());
+
+						if (next < 0) {
+							AwaitHeldReplies();	// e.g. an order right before EXIT
+							return;
+						}
+
+						in.Consume(next);
+
+						// Every complete request got its answer, all of them go out together!
+						FlushBlocking();
+					}
+					catch (Exception e) {
+						error = true;
+
+						// Maybe disconnected!
+						Logger.LogWarning("Server: Client disconnected or error happend!");
+					}
+				}
+			}
+			catch (Exception e) {
+				// Error happend!
+				Logger.LogError(e.getMessage());
+			}
+			finally {
+				ConnectionClosed();
+			}
+		}
+	}
+
+
+
+	static class ReactorLoop implements Runnable {
+		private static ReactorLoop[] loops = null;
+		private static final AtomicInteger nextLoop = new AtomicInteger(0);
+
+		private Selector selector;
+		private ConcurrentLinkedQueue<Runnable> tasks;
+		private Thread thread = null;
+		private volatile boolean isStopped = false;
+
+
+		private ReactorLoop() throws IOException {
+			this.selector = Selector.open();
+			this.tasks = new ConcurrentLinkedQueue<Runnable>();
+		}
+
+
+		public static void StartLoops(int count) throws IOException {
+			loops = new ReactorLoop[Math.max(1, count)];
+
+			for (int i = 0; i < loops.length; i++) {
+				loops[i] = new ReactorLoop();
+				loops[i].thread = new Thread(loops[i], String.format("ReactorLoop-%s", i));
+				loops[i].thread.start();
+			}
+		}
+
+		public static void StopLoops() {
+			if (loops == null) {
+				return;
+			}
+
+			for (ReactorLoop loop : loops) {
+				loop.isStopped = true;
+				loop.selector.wakeup();
+			}
+		}
+
+		// Round robin! Called by all acceptors.
+		public static ReactorLoop Next() {
+			return loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+		}
+
+
+		public void Register(SocketChannel channel) {
+			Execute(() -> {
+				ReactorConnection connection = new ReactorConnection(this, channel);
+
+				try {
+					connection.Open(selector);
+				}
+				catch (Exception e) {
+					Logger.LogError("Server: Couldn't register client!");
+					connection.Close();
+				}
+			});
+		}
+
+		public void Execute(Runnable task) {
+			tasks.add(task);
+
+			if (!InLoop()) {
+				selector.wakeup();
+			}
+		}
+
+		public boolean InLoop() {
+			return Thread.currentThread() == thread;
+		}
+
+
+		private void RunTasks() {
+			Runnable task;
+
+			while ((task = tasks.poll()) != null) {
+				try {
+					task.run();
+				}
+				catch (Exception e) {
+					Logger.LogError(e.getMessage());
+				}
+			}
+		}
+
+
+		@Override
+		public void run() {
+			try {
+				while (!isStopped) {
+					selector.select();
+
+					RunTasks();
+
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+
+						ReactorConnection connection = (ReactorConnection)key.attachment();
+
+						if (key.isValid() && key.isReadable()) {
+							connection.OnReadable();
+						}
+
+						if (key.isValid() && key.isWritable()) {
+							connection.OnWritable();
+						}
+					}
+				}
+			}
+			catch (Exception e) {
+				e.printStackTrace();
+			}
+			finally {
+				RunTasks();
+
+				for (SelectionKey key : selector.keys()) {
+					((ReactorConnection)key.attachment()).Close();
+				}
+
+				try {
+					selector.close();
+				}
+				catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+
+
+	static class ReactorConnection {
+		private static final int READ_BUFFER_SIZE = 4096;
+		private static final int MAX_BATCH_BYTES = 64 * 1024;
+
+		private ReactorLoop loop;
+		private SocketChannel channel;
+		private SelectionKey key = null;
+		private ClientHandler handler = null;
+
+		// Both leased from the pool! The read buffer only for one read, the pending one while a started request waits for the rest.
+		private ByteBuffer pending = null;
+		private int pendingLength = 0;
+
+		private OutboundQueue outbound = null;
+		private OutboundQueue.Frame currentFrame = null;	// the frame which is written right now, not in the queue anymore!
+		private boolean closeAfterFlush = false;
+		private boolean isClosed = false;
+
+		private ResponseWriter batch = null;	// replies to the requests of one read! Written together once all are handled.
+		private boolean isReading = false;
+
+		// Backpressure! Over the high-water mark the client doesn't read its replies, its requests wait and nothing more gets read.
+		private boolean isInputStopped = false;		// complete requests wait in "pending"
+		private boolean isReadPaused = false;		// no OP_READ until the queue is under the low-water mark
+		private boolean isResuming = false;
+
+
+		public ReactorConnection(ReactorLoop loop, SocketChannel channel) {
+			this.loop = loop;
+			this.channel = channel;
+		}
+
+
+		public void Open(Selector selector) throws IOException {
+			channel.configureBlocking(false);
+			key = channel.register(selector, SelectionKey.OP_READ, this);
+
+			// Adding client to service!
+			handler = ClientService.AddClient(this);
+
+			// Send welcome message!
+			handler.SendWelcome();
+
+			// Client connected!
+			Logger.LogInfo(String.format("New client connected: %s, ID: %s", handler.GetClient().GetConnectionString(), handler.GetClient().GetClientIdentifier()));
+		}
+
+		public SocketChannel GetChannel() {
+			return channel;
+		}
+
+		public void SetOutbound(OutboundQueue outbound) {
+			this.outbound = outbound;
+		}
+
+
+		public void OnReadable() {
+			ByteBuffer readBuffer = BufferPool.Acquire(READ_BUFFER_SIZE);
+			int read = 0;
+
+			try {
+				read = channel.read(readBuffer);
+			}
+			catch (Exception e) {
+				read = -1;
+			}
+
+			if (read < 0) {
+				BufferPool.Release(readBuffer);
+
+				// Maybe disconnected!
+				Logger.LogWarning("Server: Client disconnected or error happend!");
+				Close();
+				return;
+			}
+
+			Metrics.AddBytesIn(read);
+
+			byte[] bytes = readBuffer.array();
+			int end = readBuffer.position();
+
+			isReading = true;
+
+			try {
+				HandleInput(bytes, end);
+			}
+			catch (Exception e) {
+				// Maybe disconnected!
+				Logger.LogWarning("Server: Client disconnected or error happend!");
+				Close();
+			}
+			finally {
+				isReading = false;
+				WriteBatch();
+			}
+
+			// Nothing points into it anymore, the rest of a started request got copied!
+			BufferPool.Release(readBuffer);
+
+			if (isClosed) {
+				ReleasePending();
+			}
+			else {
+				CheckBackpressure();
+			}
+		}
+
+		// Called by the handler before every request! Stops the input while the client has too many replies queued.
+		public boolean StopInputIfFull() {
+			if (outbound.GetQueuedBytes() > ClientService.GetOutboundHighWaterMark()) {
+				isInputStopped = true;
+			}
+			return isInputStopped;
+		}
+
+		// Only on the loop! After a read and after every flush while the input is stopped.
+		private void CheckBackpressure() {
+			if (isResuming) {
+				return;		// the loop below checks again
+			}
+
+			isResuming = true;
+
+			try {
+				while (!isClosed) {
+					long queued = outbound.GetQueuedBytes();
+					boolean isStopped = isReadPaused || isInputStopped;
+
+					if (queued > ClientService.GetOutboundHighWaterMark() || (isStopped && queued > ClientService.GetOutboundHighWaterMark() / 2)) {
+						if (!isReadPaused) {
+							isReadPaused = true;
+							key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+						}
+						return;
+					}
+
+					if (isReadPaused) {
+						// Under the low-water mark!
+						isReadPaused = false;
+						key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+					}
+
+					if (!isInputStopped) {
+						return;
+					}
+
+					// The requests which waited! They might fill the queue again.
+					isInputStopped = false;
+					ResumeInput();
+				}
+			}
+			finally {
+				isResuming = false;
+			}
+		}
+
+		private void ResumeInput() {
+			if (pendingLength == 0) {
+				return;
+			}
+
+			isReading = true;
+
+			try {
+				HandlePending();
+			}
+			catch (Exception e) {
+				// Maybe disconnected!
+				Logger.LogWarning("Server: Client disconnected or error happend!");
+				Close();
+			}
+			finally {
+				isReading = false;
+				WriteBatch();
+			}
+
+			if (isClosed) {
+				ReleasePending();
+			}
+		}
+
+		// Every complete request of the read, in order! A started one waits for the rest.
+		private void HandleInput(byte[] bytes, int end) {
+			if (pendingLength == 0) {
+				// Nothing left from the last read! The requests get parsed right in the read buffer, no copy.
+				int next = handler.HandleInput(bytes, 0, end);
+
+				if (next >= 0 && next < end && !AppendPending(bytes, next, end - next)) {
+					return;
+				}
+
+				InputHandled(next);
+			}
+			else if (AppendPending(bytes, 0, end)) {
+				HandlePending();
+			}
+		}
+
+		private void HandlePending() {
+			int next = handler.HandleInput(pending.array(), 0, pendingLength);
+
+			if (next >= 0) {
+				System.arraycopy(pending.array(), next, pending.array(), 0, pendingLength - next);
+				pendingLength -= next;
+			}
+
+			InputHandled(next);
+		}
+
+		private void InputHandled(int next) {
+			if (next < 0) {
+				pendingLength = 0;
+			}
+
+			if (pendingLength == 0) {
+				ReleasePending();	// every request is complete!
+			}
+
+			if (next < 0) {
+				if (!handler.HoldClose()) {
+					CloseAfterFlush();
+				}
+			}
+		}
+
+		private boolean AppendPending(byte[] bytes, int offset, int length) {
+			if (pending == null || pendingLength + length > pending.capacity()) {
+				if (pendingLength + length > RequestReader.MAX_LINE_LENGTH) {
+					Logger.LogWarning(String.format("Server: Request of client %s is too long!", handler.GetClient().GetConnectionString()));
+					Close();
+					return false;
+				}
+
+				// The next size class!
+				ByteBuffer grown = BufferPool.Acquire(pendingLength + length);
+
+				if (pending != null) {
+					System.arraycopy(pending.array(), 0, grown.array(), 0, pendingLength);
+					BufferPool.Release(pending);
+				}
+
+				pending = grown;
+			}
+
+			System.arraycopy(bytes, offset, pending.array(), pendingLength, length);
+			pendingLength += length;
+			return true;
+		}
+
+		private void ReleasePending() {
+			if (pending != null) {
+				BufferPool.Release(pending);
+				pending = null;
+			}
+		}
+
+		public void OnWritable() {
+			Flush();
+		}
+
+
+		public void Write(ByteBuffer frame) {
+			if (loop.InLoop()) {
+				if (isReading && frame.remaining() <= ResponseWriter.BUFFER_SIZE) {
+					AddToBatch(frame);
+					return;
+				}
+
+				WriteBatch();	// the replies have to stay in order!
+
+				if (TryWriteNow(frame)) {
+					return;
+				}
+			}
+
+			outbound.Add(frame, null);
+
+			if (loop.InLoop()) {
+				Flush();
+			}
+			else {
+				ScheduleFlush();
+			}
+		}
+
+		// The buffer goes back to the pool once it is written!
+		public void Write(ResponseWriter response) {
+			if (loop.InLoop()) {
+				if (isReading) {
+					AddToBatch(response.Finish());
+					response.Release();
+					return;
+				}
+
+				WriteBatch();
+
+				if (TryWriteNow(response.GetBuffer())) {
+					response.Release();
+					return;
+				}
+			}
+
+			outbound.Add(response);
+
+			if (loop.InLoop()) {
+				Flush();
+			}
+			else {
+				ScheduleFlush();
+			}
+		}
+
+		// Only on the loop!
+		private void AddToBatch(ByteBuffer frame) {
+			if (batch == null) {
+				batch = ResponseWriter.AcquireBatch();
+			}
+
+			batch.AppendFrame(frame);
+
+			if (batch.GetLength() >= MAX_BATCH_BYTES) {
+				// Lots of requests in one read! No need to wait for the rest.
+				WriteBatch();
+			}
+		}
+
+		private void WriteBatch() {
+			if (batch == null) {
+				return;
+			}
+
+			ResponseWriter response = batch;
+			batch = null;
+
+			if (TryWriteNow(response.Finish())) {
+				response.Release();
+				return;
+			}
+
+			outbound.Add(response);
+			Flush();
+		}
+
+		// Only on the loop! Nothing queued in front of the frame, so it skips the queue. True if the frame is done with.
+		private boolean TryWriteNow(ByteBuffer frame) {
+			if (isClosed) {
+				return true;
+			}
+
+			if (currentFrame != null || !outbound.IsEmpty()) {
+				return false;
+			}
+
+			try {
+				Metrics.AddBytesOut(channel.write(frame));
+			}
+			catch (Exception e) {
+				Logger.LogError("Server: Client not reachable! Couln't send data!");
+				Close();
+				return true;
+			}
+
+			return !frame.hasRemaining();	// the rest gets queued
+		}
+
+		// Thread safe! Lets the loop flush the queue, once no matter how many frames got queued.
+		public void ScheduleFlush() {
+			if (outbound.TryStartDrain()) {
+				loop.Execute(() -> {
+					outbound.StopDrain();
+					Flush();
+				});
+			}
+		}
+
+		private void Flush() {
+			if (isClosed) {
+				return;
+			}
+
+			try {
+				while (true) {
+					if (currentFrame == null) {
+						currentFrame = outbound.Poll();
+
+						if (currentFrame == null) {
+							break;
+						}
+					}
+
+					Metrics.AddBytesOut(channel.write(currentFrame.GetBuffer()));
+
+					if (currentFrame.GetBuffer().hasRemaining()) {
+						// Socket buffer is full! Wait until the client reads.
+						key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+
+						if (isReadPaused && !isReading) {
+							CheckBackpressure();	// maybe under the low-water mark already
+						}
+						return;
+					}
+
+					outbound.Release(currentFrame);
+					currentFrame = null;
+				}
+
+				key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+
+				if (closeAfterFlush) {
+					Close();
+				}
+				else if ((isReadPaused || isInputStopped) && !isReading) {
+					CheckBackpressure();
+				}
+			}
+			catch (Exception e) {
+				Logger.LogError("Server: Client not reachable! Couln't send data!");
+				Close();
+			}
+		}
+
+
+		// Sends everything which is still queued and closes the connection afterwards!
+		public void CloseAfterFlush() {
+			if (!loop.InLoop()) {
+				loop.Execute(() -> CloseAfterFlush());
+				return;
+			}
+
+			closeAfterFlush = true;
+			WriteBatch();	// the goodbye might still be in there!
+
+			if (currentFrame == null && outbound.IsEmpty()) {
+				Close();
+			}
+		}
+
+		public void Close() {
+			if (!loop.InLoop()) {
+				loop.Execute(() -> Close());
+				return;
+			}
+
+			if (isClosed) {
+				return;
+			}
+
+			isClosed = true;
+
+			if (batch != null) {
+				batch.Release();
+				batch = null;
+			}
+
+			if (currentFrame != null) {
+				outbound.Release(currentFrame);
+				currentFrame = null;
+			}
+
+			outbound.Clear();
+
+			if (!isReading) {
+				ReleasePending();	// else the read still parses in it, it goes back after the read!
+			}
+
+			if (key != null) {
+				key.cancel();
+			}
+
+			if (handler != null) {
+				handler.ConnectionClosed();
+			}
+			else {
+				ClientService.Release();	// the registration failed, no handler releases it
+
+				try {
+					channel.close();
+				}
+				catch (Exception e) {
+					Logger.LogError("Server: Couldn't close connection!");
+				}
+			}
+		}
+	}
+
+
+
+	static class OutboundQueue {
+		public static class Frame {
+			private ByteBuffer buffer;
+			private int length;
+			private BroadcastFrame broadcast;	// "null" for everything which isn't a broadcast!
+			private ResponseWriter response;	// pooled responses only!
+
+
+			private Frame(ByteBuffer buffer, BroadcastFrame broadcast, ResponseWriter response) {
+				this.buffer = buffer;
+				this.length = buffer.remaining();
+				this.broadcast = broadcast;
+				this.response = response;
+			}
+
+
+			public ByteBuffer GetBuffer() {
+				return buffer;
+			}
+		}
+
+
+		private ConcurrentLinkedQueue<Frame> frames = new ConcurrentLinkedQueue<Frame>();
+		private AtomicLong queuedBytes = new AtomicLong(0);		// including the frame which is written right now!
+		private AtomicBoolean isDraining = new AtomicBoolean(false);
+
+
+		// Any thread!
+		public void Add(ByteBuffer buffer, BroadcastFrame broadcast) {
+			Add(new Frame(buffer, broadcast, null));
+		}
+
+		public void Add(ResponseWriter response) {
+			Add(new Frame(response.GetBuffer(), null, response));
+		}
+
+		private void Add(Frame frame) {
+			queuedBytes.addAndGet(frame.length);
+			frames.add(frame);
+		}
+
+		// Only the writer! The frame still counts as queued until "Release".
+		public Frame Poll() {
+			return frames.poll();
+		}
+
+		// Written or dropped!
+		public void Release(Frame frame) {
+			queuedBytes.addAndGet(-frame.length);
+
+			if (frame.broadcast != null) {
+				frame.broadcast.Done();
+			}
+
+			if (frame.response != null) {
+				frame.response.Release();
+			}
+		}
+
+		// Coalescing! Drops every broadcast which isn't written yet.
+		public void DropBroadcasts() {
+			Iterator<Frame> it = frames.iterator();
+
+			while (it.hasNext()) {
+				Frame frame = it.next();
+
+				if (frame.broadcast != null && frames.remove(frame)) {
+					Release(frame);
+				}
+			}
+		}
+
+		public void Clear() {
+			Frame frame;
+
+			while ((frame = frames.poll()) != null) {
+				Release(frame);
+			}
+		}
+
+		public boolean TryStartDrain() {
+			return isDraining.compareAndSet(false, true);
+		}
+
+		public void StopDrain() {
+			isDraining.set(false);
+		}
+
+		public boolean IsEmpty() {
+			return frames.isEmpty();
+		}
+
+		public long GetQueuedBytes() {
+			return queuedBytes.get();
+		}
+	}
+
+
+
+	static class BroadcastFrame {
+		private String message;
+		private byte[] frame;		// length + payload! Shared by all clients, never changed after encoding.
+		private byte[] binaryFrame;	// the same for clients which use the binary protocol
+		private long startNanos;
+		private AtomicInteger pending = new AtomicInteger(1);	// the sender holds one until all clients got it
+		private AtomicInteger receivers = new AtomicInteger(0);
+		private AtomicInteger slowConsumers = new AtomicInteger(0);
+
+
+		public BroadcastFrame(String message, String data) {
+			this.message = message;
+			this.frame = ResponseWriter.EncodeFrame(data);
+			this.binaryFrame = Protocol.EncodeText(Protocol.TYPE_BROADCAST, message);
+			this.startNanos = System.nanoTime();
+		}
+
+
+		// Every client gets its own position and limit, the bytes are the same!
+		public ByteBuffer NewBuffer(boolean isBinary) {
+			return ByteBuffer.wrap(isBinary ? binaryFrame : frame);
+		}
+
+		public int GetLength(boolean isBinary) {
+			return isBinary ? binaryFrame.length : frame.length;
+		}
+
+		public void AddReceiver() {
+			pending.incrementAndGet();
+			receivers.incrementAndGet();
+		}
+
+		public void AddSlowConsumer() {
+			slowConsumers.incrementAndGet();
+		}
+
+		// Called once for every receiver when its frame got written or dropped!
+		public void Done() {
+			if (pending.decrementAndGet() == 0) {
+				long nanos = System.nanoTime() - startNanos;
+				double millis = nanos / 1000000.0;
+
+				Metrics.RecordBroadcast(nanos);
+
+				Logger.LogInfo(String.format("Server-Broadcast: \"%s\" completed for %s clients in %.2f ms! Slow consumers: %s", message, receivers.get(), millis, slowConsumers.get()));
+			}
+		}
+	}
+
+
+
+	static class BufferPool {
+		// Heap buffers in a few size classes, leased only while a connection reads or writes! An idle connection holds none.
+		private static final int[] SIZES = { 1024, 4 * 1024, 16 * 1024, 64 * 1024 };
+		private static final int SLOTS = 256;	// per size class, power of two!
+		private static final int PROBES = 8;
+
+		private static final AtomicReferenceArray<ByteBuffer> pool = new AtomicReferenceArray<ByteBuffer>(SIZES.length * SLOTS);
+
+
+		// Lock-free like the response writers! A cleared buffer with at least "size" bytes.
+		public static ByteBuffer Acquire(int size) {
+			int sizeClass = GetSizeClass(size);
+
+			if (sizeClass < 0) {
+				return ByteBuffer.allocate(size);	// too big to keep around
+			}
+
+			int start = System.identityHashCode(Thread.currentThread());
+
+			for (int i = 0; i < PROBES; i++) {
+				int index = sizeClass * SLOTS + ((start + i) & (SLOTS - 1));
+				ByteBuffer buffer = pool.get(index);
+
+				if (buffer != null && pool.compareAndSet(index, buffer, null)) {
+					buffer.clear();
+					return buffer;
+				}
+			}
+
+			return ByteBuffer.allocate(SIZES[sizeClass]);
+		}
+
+		// Exactly once for every "Acquire", nothing may use the buffer afterwards!
+		public static void Release(ByteBuffer buffer) {
+			int sizeClass = GetSizeClass(buffer.capacity());
+
+			if (sizeClass < 0 || SIZES[sizeClass] != buffer.capacity()) {
+				return;
+			}
+
+			int start = System.identityHashCode(Thread.currentThread());
+
+			for (int i = 0; i < PROBES; i++) {
+				int index = sizeClass * SLOTS + ((start + i) & (SLOTS - 1));
+
+				if (pool.get(index) == null && pool.compareAndSet(index, null, buffer)) {
+					return;
+				}
+			}
+			// Pool is full, the garbage collector gets it!
+		}
+
+		private static int GetSizeClass(int size) {
+			for (int i = 0; i < SIZES.length; i++) {
+				if (size <= SIZES[i]) {
+					return i;
+				}
+			}
+			return -1;
+		}
+	}
+
+
+
+	public static class ResponseWriter {
+		public static final int BUFFER_SIZE = 4096;
+		private static final int MAX_POOLED_SIZE = 64 * 1024;	// a grown buffer above this doesn't go back, one huge reply shouldn't stay around
+		private static final int POOL_SIZE = 1024;				// power of two!
+		private static final int POOL_PROBES = 8;
+
+		private static final AtomicReferenceArray<ResponseWriter> pool = new AtomicReferenceArray<ResponseWriter>(POOL_SIZE);
+
+		private ByteBuffer buffer;
+		private boolean isPooled;
+		private boolean isFinished = false;
+		private boolean isBatch = false;		// no length of its own, just finished frames one after another
+		private boolean isCompressed = false;	// sets the flag in the length
+
+
+		private ResponseWriter(int capacity, boolean isPooled) {
+			this.buffer = ByteBuffer.allocate(capacity);
+			this.isPooled = isPooled;
+		}
+
+
+		// Lock-free! Every thread starts at another slot, so they rarely fight over the same writers.
+		public static ResponseWriter Acquire() {
+			int start = System.identityHashCode(Thread.currentThread());
+
+			for (int i = 0; i < POOL_PROBES; i++) {
+				int index = (start + i) & (POOL_SIZE - 1);
+				ResponseWriter writer = pool.get(index);
+
+				if (writer != null && pool.compareAndSet(index, writer, null)) {
+					return writer.Begin();
+				}
+			}
+
+			return new ResponseWriter(BUFFER_SIZE, true).Begin();
+		}
+
+		// Collects finished frames, which get written with one call!
+		public static ResponseWriter AcquireBatch() {
+			ResponseWriter writer = Acquire();
+			writer.buffer.position(0);
+			writer.isBatch = true;
+			return writer;
+		}
+
+		// Not pooled! For frames which are kept, like the GETMENUS snapshot.
+		public static ResponseWriter Allocate(int capacity) {
+			return new ResponseWriter(Math.max(capacity, 8), false).Begin();
+		}
+
+		// Same framing for every reply: 4 byte length + UTF-8 payload!
+		public static byte[] EncodeFrame(String text) {
+			return Allocate(4 + text.length() * 3).Append(text).ToFrame();
+		}
+
+		// Exactly once for every "Acquire", after the bytes got written or dropped!
+		public void Release() {
+			if (!isPooled || buffer.capacity() > MAX_POOLED_SIZE) {
+				return;
+			}
+
+			int start = System.identityHashCode(Thread.currentThread());
+
+			for (int i = 0; i < POOL_PROBES; i++) {
+				int index = (start + i) & (POOL_SIZE - 1);
+
+				if (pool.get(index) == null && pool.compareAndSet(index, null, this)) {
+					return;
+				}
+			}
+			// Pool is full, the garbage collector gets it!
+		}
+
+
+		private ResponseWriter Begin() {
+			buffer.clear();
+			buffer.position(4);		// the length gets written in place by "Finish"!
+			isFinished = false;
+			isBatch = false;
+			isCompressed = false;
+			return this;
+		}
+
+		// UTF-8 without a byte array in between!
+		public ResponseWriter Append(String text) {
+			int length = text.length();
+			EnsureCapacity(length * 3);
+
+			for (int i = 0; i < length; i++) {
+				char c = text.charAt(i);
+
+				if (c < 0x80) {
+					buffer.put((byte)c);
+				}
+				else if (c < 0x800) {
+					buffer.put((byte)(0xC0 | (c >> 6)));
+					buffer.put((byte)(0x80 | (c & 0x3F)));
+				}
+				else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+					int codePoint = Character.toCodePoint(c, text.charAt(++i));
+					buffer.put((byte)(0xF0 | (codePoint >> 18)));
+					buffer.put((byte)(0x80 | ((codePoint >> 12) & 0x3F)));
+					buffer.put((byte)(0x80 | ((codePoint >> 6) & 0x3F)));
+					buffer.put((byte)(0x80 | (codePoint & 0x3F)));
+				}
+				else if (Character.isSurrogate(c)) {
+					buffer.put((byte)'?');		// broken pair, same as "getBytes" does
+				}
+				else {
+					buffer.put((byte)(0xE0 | (c >> 12)));
+					buffer.put((byte)(0x80 | ((c >> 6) & 0x3F)));
+					buffer.put((byte)(0x80 | (c & 0x3F)));
+				}
+			}
+			return this;
+		}
+
+		public ResponseWriter AppendInt(int value) {
+			EnsureCapacity(4);
+			buffer.putInt(value);
+			return this;
+		}
+
+		// Everything the deflater has left, straight into the buffer! Marks the frame as compressed.
+		public ResponseWriter AppendDeflated(Deflater deflater) {
+			isCompressed = true;
+
+			while (!deflater.finished()) {
+				EnsureCapacity(256);
+				int written = deflater.deflate(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+				buffer.position(buffer.position() + written);
+			}
+			return this;
+		}
+
+		public ResponseWriter AppendByte(int value) {
+			EnsureCapacity(1);
+			buffer.put((byte)value);
+			return this;
+		}
+
+		// Unsigned LEB128: 7 bits per byte, the highest bit says another one follows!
+		public ResponseWriter AppendVarint(long value) {
+			EnsureCapacity(10);
+
+			while ((value & ~0x7FL) != 0) {
+				buffer.put((byte)((value & 0x7F) | 0x80));
+				value >>>= 7;
+			}
+			buffer.put((byte)value);
+			return this;
+		}
+
+		// Binary protocol text: varint length of the UTF-8 bytes, then the bytes!
+		public ResponseWriter AppendText(String text) {
+			return AppendVarint(Utf8Length(text)).Append(text);
+		}
+
+		private static int Utf8Length(String text) {
+			int length = 0;
+
+			for (int i = 0; i < text.length(); i++) {
+				char c = text.charAt(i);
+
+				if (c < 0x80) {
+					length += 1;
+				}
+				else if (c < 0x800) {
+					length += 2;
+				}
+				else if (Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))) {
+					length += 4;
+					i++;
+				}
+				else if (Character.isSurrogate(c)) {
+					length += 1;
+				}
+				else {
+					length += 3;
+				}
+			}
+			return length;
+		}
+
+		// Raw bytes, e.g. a part of the request!
+		public ResponseWriter Append(byte[] bytes, int offset, int length) {
+			EnsureCapacity(length);
+			buffer.put(bytes, offset, length);
+			return this;
+		}
+
+		public ResponseWriter Append(char c) {
+			if (c >= 0x80) {
+				return Append(String.valueOf(c));
+			}
+
+			EnsureCapacity(1);
+			buffer.put((byte)c);
+			return this;
+		}
+
+		// Digits are written from the back, no "Long.toString"!
+		public ResponseWriter Append(long value) {
+			if (value == Long.MIN_VALUE) {
+				return Append("-9223372036854775808");
+			}
+
+			EnsureCapacity(20);
+
+			if (value < 0) {
+				buffer.put((byte)'-');
+				value = -value;
+			}
+
+			int digits = 1;
+			for (long rest = value / 10; rest > 0; rest /= 10) {
+				digits++;
+			}
+
+			int end = buffer.position() + digits;
+			for (int i = end - 1; i >= buffer.position(); i--) {
+				buffer.put(i, (byte)('0' + value % 10));
+				value /= 10;
+			}
+			buffer.position(end);
+			return this;
+		}
+
+		// "9.0", "8.5", "12.35" -> like the float used to be printed, just without the rounding noise!
+		public ResponseWriter AppendPrice(long cents) {
+			if (cents < 0) {
+				Append('-');
+				cents = -cents;
+			}
+
+			Append(cents / 100).Append('.');
+
+			long rest = cents % 100;
+			if (rest % 10 == 0) {
+				return Append(rest / 10);
+			}
+
+			if (rest < 10) {
+				Append('0');
+			}
+			return Append(rest);
+		}
+
+		// Another finished frame! Its position stays where it is.
+		public ResponseWriter AppendFrame(ByteBuffer frame) {
+			return Append(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+		}
+
+		public ResponseWriter CopyFrame(byte[] frame) {
+			buffer.clear();
+			EnsureCapacity(frame.length);
+			buffer.put(frame);
+			buffer.flip();
+			isFinished = true;
+			return this;
+		}
+
+		// Writes the length in front of the payload! The buffer is ready to be written after that.
+		public ByteBuffer Finish() {
+			if (!isFinished) {
+				if (!isBatch) {
+					buffer.putInt(0, (buffer.position() - 4) | (isCompressed ? FrameCompressor.FLAG : 0));
+				}
+				buffer.flip();
+				isFinished = true;
+			}
+			return buffer;
+		}
+
+		public ByteBuffer GetBuffer() {
+			return buffer;
+		}
+
+		public boolean IsCompressed() {
+			return isCompressed;
+		}
+
+		// Bytes written so far!
+		public int GetLength() {
+			return isFinished ? buffer.limit() : buffer.position();
+		}
+
+		// A copy of the finished frame, which can be kept!
+		public byte[] ToFrame() {
+			ByteBuffer frame = Finish();
+			return Arrays.copyOf(frame.array(), frame.limit());
+		}
+
+		private void EnsureCapacity(int bytes) {
+			if (buffer.remaining() >= bytes) {
+				return;
+			}
+
+			ByteBuffer bigger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+			buffer.flip();
+			bigger.put(buffer);
+			buffer = bigger;
+		}
+	}
+
+
+
+	public static class FrameCompressor {
+		// Highest bit of the length: the payload is the original length (4 bytes) + raw deflate data, made with the preset dictionary!
+		public static final int FLAG = 0x80000000;
+		public static final int MAX_DICTIONARY_SIZE = 32 * 1024;	// deflate can't look further back
+
+		private static volatile int threshold = 512;
+
+		private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);	// reused for every frame of the connection!
+		private final byte[] dictionary;
+		private boolean isEnded = false;
+
+
+		public FrameCompressor(byte[] dictionary) {
+			this.dictionary = dictionary;
+		}
+
+
+		public static void SetThreshold(int bytes) {
+			if (bytes < 0) {
+				return;
+			}
+
+			threshold = bytes;
+		}
+
+		public static int GetThreshold() {
+			return threshold;
+		}
+
+
+		// A pooled, finished frame with the compressed payload of "frame"! "null" if it doesn't get smaller.
+		// Every frame is compressed on its own, so frames can be dropped or reordered by the queues without breaking the stream.
+		public synchronized ResponseWriter Compress(byte[] frame, int length) {
+			if (isEnded) {
+				return null;
+			}
+
+			deflater.reset();
+
+			if (dictionary.length > 0) {
+				deflater.setDictionary(dictionary);
+			}
+
+			deflater.setInput(frame, 4, length - 4);
+			deflater.finish();
+
+			ResponseWriter compressed = ResponseWriter.Acquire().AppendInt(length - 4).AppendDeflated(deflater);
+
+			if (compressed.GetLength() >= length) {
+				compressed.Release();
+				return null;
+			}
+
+			compressed.Finish();
+			return compressed;
+		}
+
+		// A copy which can be kept, or the frame itself if it doesn't get smaller!
+		public byte[] CompressFrame(byte[] frame) {
+			ResponseWriter compressed = Compress(frame, frame.length);
+
+			if (compressed == null) {
+				return frame;
+			}
+
+			try {
+				return compressed.ToFrame();
+			}
+			finally {
+				compressed.Release();
+			}
+		}
+
+		// Frees the native memory of the deflater right away instead of waiting for the garbage collector!
+		public synchronized void End() {
+			isEnded = true;
+			deflater.end();
+		}
+	}
+
+
+
+	public static class TimerWheel {
+		// Hierarchical timing wheel! 4 levels with 64 slots each, every level is 64 times coarser than the one below.
+		// Scheduling and cancelling are O(1), a tick only touches the timeouts which are due (or move down a level).
+		private static final int SLOT_BITS = 6;
+		private static final int SLOT_COUNT = 1 << SLOT_BITS;
+		private static final int SLOT_MASK = SLOT_COUNT - 1;
+		private static final int LEVEL_COUNT = 4;
+		private static final long MAX_TICKS = (1L << (SLOT_BITS * LEVEL_COUNT)) - 1;
+
+
+		public static class Timeout {
+			private long deadlineNanos;
+			private long deadlineTick;
+			private Runnable task;
+			private volatile boolean isCancelled = false;
+
+			private Timeout next = null;	// next timeout in the same slot!
+
+
+			private Timeout(long deadlineNanos, Runnable task) {
+				this.deadlineNanos = deadlineNanos;
+				this.task = task;
+			}
+
+
+			// The wheel drops cancelled timeouts the next time it touches them.
+			public void Cancel() {
+				isCancelled = true;
+			}
+
+			public boolean GetIsCancelled() {
+				return isCancelled;
+			}
+		}
+
+
+		private long tickNanos;
+		private long startNanos;
+		private long currentTick = 0;
+		private Timeout[][] slots = new Timeout[LEVEL_COUNT][SLOT_COUNT];
+		private ConcurrentLinkedQueue<Timeout> pending = new ConcurrentLinkedQueue<Timeout>();	// scheduled, but not in a slot yet!
+
+
+		public TimerWheel(long tickMillis) {
+			this.tickNanos = Math.max(1, tickMillis) * 1000000L;
+			this.startNanos = System.nanoTime();
+		}
+
+
+		// Thread safe! The timeout gets into the wheel with the next "AdvanceTo".
+		public Timeout Schedule(long delayMillis, Runnable task) {
+			Timeout timeout = new Timeout(System.nanoTime() + Math.max(0, delayMillis) * 1000000L, task);
+			pending.add(timeout);
+			return timeout;
+		}
+
+		// Only called by one thread! Runs all timeouts which are due until "nowNanos".
+		public void AdvanceTo(long nowNanos) {
+			Timeout timeout;
+
+			while ((timeout = pending.poll()) != null) {
+				if (!timeout.isCancelled) {
+					// Rounded up, so a timeout never runs early!
+					timeout.deadlineTick = (timeout.deadlineNanos - startNanos + tickNanos - 1) / tickNanos;
+					Insert(timeout);
+				}
+			}
+
+			long targetTick = (nowNanos - startNanos) / tickNanos;
+
+			while (currentTick < targetTick) {
+				currentTick++;
+
+				// Moves the timeouts of the coarser levels down, when the level below wrapped around!
+				for (int level = 1; level < LEVEL_COUNT; level++) {
+					if ((currentTick & ((1L << (SLOT_BITS * level)) - 1)) != 0) {
+						break;
+					}
+
+					Cascade(level, (int)((currentTick >> (SLOT_BITS * level)) & SLOT_MASK));
+				}
+
+				Expire((int)(currentTick & SLOT_MASK));
+			}
+		}
+
+
+		private void Insert(Timeout timeout) {
+			long deadlineTick = Math.max(timeout.deadlineTick, currentTick + 1);
+			long ticks = deadlineTick - currentTick;
+
+			if (ticks > MAX_TICKS) {
+				// Too far away! Parks it in the last level, it gets inserted again when the slot comes up.
+				deadlineTick = currentTick + MAX_TICKS;
+				ticks = MAX_TICKS;
+			}
+
+			int level = 0;
+
+			while ((ticks >> (SLOT_BITS * (level + 1))) != 0) {
+				level++;
+			}
+
+			int slot = (int)((deadlineTick >> (SLOT_BITS * level)) & SLOT_MASK);
+
+			timeout.next = slots[level][slot];
+			slots[level][slot] = timeout;
+		}
+
+		private void Cascade(int level, int slot) {
+			Timeout timeout = slots[level][slot];
+			slots[level][slot] = null;
+
+			while (timeout != null) {
+				Timeout next = timeout.next;
+
+				if (!timeout.isCancelled) {
+					Insert(timeout);
+				}
+
+				timeout = next;
+			}
+		}
+
+		private void Expire(int slot) {
+			Timeout timeout = slots[0][slot];
+			slots[0][slot] = null;
+
+			while (timeout != null) {
+				Timeout next = timeout.next;
+
+				if (timeout.isCancelled) {
+					// Dropped!
+				}
+				else if (timeout.deadlineTick > currentTick) {
+					Insert(timeout);	// was parked, deadline is still to come!
+				}
+				else {
+					try {
+						timeout.task.run();
+					}
+					catch (Exception e) {
+						Logger.LogError(e.getMessage());
+					}
+				}
+
+				timeout = next;
+			}
+		}
+	}
+
+
+
+	public static class Clock {
+		// One thread keeps the time for everybody! Reading it is a volatile read, no system call and no allocation.
+		// Coarse: up to one tick old. Good for inactivity and log lines, not for latencies, those keep "System.nanoTime".
+		private static final int TICK_MILLIS = 10;
+
+		// Thread safe, unlike "SimpleDateFormat"! Same format for the log lines and the name of the log file.
+		private static final DateTimeFormatter dateFormat = DateTimeFormatter.ofPattern("dd-MM-yyyy HH-mm-ss").withZone(ZoneId.systemDefault());
+
+		// The formatted second and its text together, so readers never see a text of another second!
+		private static class Timestamp {
+			private final long second;
+			private final String text;
+
+			private Timestamp(long second, String text) {
+				this.second = second;
+				this.text = text;
+			}
+		}
+
+
+		private static final long startNanos = System.nanoTime();
+		private static volatile long millis = 0;
+		private static volatile long wallMillis = System.currentTimeMillis();
+		private static volatile Timestamp timestamp = Format(wallMillis);
+
+
+		static {
+			Thread ticker = new Thread(() -> {
+				while (true) {
+					Tick();
+					LockSupport.parkNanos(TICK_MILLIS * 1000000L);
+				}
+			}, "Clock");
+
+			ticker.setDaemon(true);
+			ticker.start();
+		}
+
+
+		// Monotonic milliseconds since the start! Doesn't jump with the wall clock.
+		public static long Millis() {
+			return millis;
+		}
+
+		// "System.currentTimeMillis" of the last tick!
+		public static long WallMillis() {
+			return wallMillis;
+		}
+
+		// "dd-MM-yyyy HH-mm-ss" of now! Formatted once per second by the clock thread.
+		public static String GetTimestamp() {
+			return timestamp.text;
+		}
+
+		// Same format for any time! Only formats if it isn't the cached second, e.g. a line from the second before.
+		public static String FormatTimestamp(long wallMillis) {
+			Timestamp current = timestamp;
+
+			if (Math.floorDiv(wallMillis, 1000) == current.second) {
+				return current.text;
+			}
+
+			return Format(wallMillis).text;
+		}
+
+
+		// Clock thread only!
+		private static void Tick() {
+			long now = System.currentTimeMillis();
+
+			millis = (System.nanoTime() - startNanos) / 1000000L;
+			wallMillis = now;
+
+			if (Math.floorDiv(now, 1000) != timestamp.second) {
+				timestamp = Format(now);
+			}
+		}
+
+		private static Timestamp Format(long wallMillis) {
+			return new Timestamp(Math.floorDiv(wallMillis, 1000), dateFormat.format(Instant.ofEpochMilli(wallMillis)));
+		}
+	}
+
+
+
+	public static class Logger {
+		private static String startOfServer = "";
+		private static String folder = "Logs";
+
+
+		public enum Type {
+			START,
+			INFO,
+			WARNING,
+			ERROR
+		}
+
+		// What a logging thread does when the ring buffer is full!
+		public enum OverflowPolicy {
+			BLOCK,		// waits until the writer made room
+			DROP,		// drops the line
+			SAMPLE,		// keeps every 16th info line once the ring is 3/4 full, drops the line if it is full
+		}
+
+
+		private static final int RING_SIZE = 8192;	// power of two!
+		private static final int RING_MASK = RING_SIZE - 1;
+		private static final int SAMPLE_RATE = 16;
+
+		// Lock-free ring buffer! Producers claim a slot on "tail", the writer thread reads from "head".
+		// A slot is readable when its sequence is "position + 1" and writable again when it is "position + RING_SIZE".
+		private static final AtomicLongArray sequences = new AtomicLongArray(RING_SIZE);
+		private static final long[] times = new long[RING_SIZE];
+		private static final Type[] types = new Type[RING_SIZE];
+		private static final String[] texts = new String[RING_SIZE];
+		private static final AtomicLong tail = new AtomicLong(0);
+		private static volatile long head = 0;
+
+		private static final AtomicLong droppedLines = new AtomicLong(0);
+		private static final AtomicLong sampleCounter = new AtomicLong(0);
+
+		private static OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+		private static int flushBytes = 64 * 1024;	// writes the batch once it got that big...
+		private static int flushMillis = 50;		// ...or that old!
+
+		private static final AtomicBoolean isWriterStarted = new AtomicBoolean(false);
+		private static volatile Thread writer = null;
+		private static volatile boolean isWriterParked = false;	// the producers only wake it up if it sleeps!
+		private static final ReentrantLock writerLock = new ReentrantLock();	// the writer thread and the shutdown hook!
+
+		// Only touched while holding "writerLock"!
+		private static FileChannel logFile = null;
+		private static StringBuilder fileBatch = new StringBuilder();
+		private static StringBuilder outBatch = new StringBuilder();
+		private static StringBuilder errBatch = new StringBuilder();
+		private static long lastFlushNanos = System.nanoTime();
+
+
+		static {
+			for (int i = 0; i < RING_SIZE; i++) {
+				sequences.set(i, i);
+			}
+		}
+
+
+		public static void SetOverflowPolicy(OverflowPolicy _overflowPolicy) {
+			if (_overflowPolicy == null) {
+				return;
+			}
+
+			overflowPolicy = _overflowPolicy;
+		}
+
+		public static void SetFlushThresholds(int bytes, int millis) {
+			if (bytes > 0) flushBytes = bytes;
+			if (millis > 0) flushMillis = millis;
+		}
+
+		// Before the first line gets written!
+		public static void SetFolder(String _folder) {
+			if (_folder == null || _folder.isEmpty()) {
+				return;
+			}
+
+			folder = _folder;
+		}
+
+		public static long GetDroppedLines() {
+			return droppedLines.get();
+		}
+
+
+		private static String GetFilename() {
+			return folder + "/" + String.format("%s-Logfile.log", startOfServer);
+		}
+
+
+		private static void Append(Type type, String text) {
+			StartWriter();
+
+			if (overflowPolicy == OverflowPolicy.SAMPLE && type == Type.INFO && tail.get() - head > RING_SIZE * 3 / 4) {
+				if (sampleCounter.incrementAndGet() % SAMPLE_RATE != 0) {
+					droppedLines.incrementAndGet();
+					return;
+				}
+			}
+
+			while (!TryAppend(type, text)) {
+				if (overflowPolicy != OverflowPolicy.BLOCK) {
+					droppedLines.incrementAndGet();
+					return;
+				}
+
+				LockSupport.parkNanos(10000);
+			}
+
+			// The ring isn't empty anymore! Read after the slot got published, so the writer can't miss it.
+			if (isWriterParked) {
+				LockSupport.unpark(writer);
+			}
+		}
+
+		private static boolean TryAppend(Type type, String text) {
+			long position = tail.get();
+
+			while (true) {
+				int index = (int)(position & RING_MASK);
+				long diff = sequences.get(index) - position;
+
+				if (diff == 0) {
+					if (tail.compareAndSet(position, position + 1)) {
+						times[index] = Clock.WallMillis();
+						types[index] = type;
+						texts[index] = text;
+						sequences.set(index, position + 1);		// publishes the slot!
+						return true;
+					}
+
+					position = tail.get();
+				}
+				else if (diff < 0) {
+					return false;	// full!
+				}
+				else {
+					position = tail.get();	// someone else got this slot!
+				}
+			}
+		}
+
+
+		private static void StartWriter() {
+			if (!isWriterStarted.compareAndSet(false, true)) {
+				return;
+			}
+
+			writer = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					while (true) {
+						int count = 0;
+						long flushInNanos = 0;	// "0" if nothing waits for the time threshold
+
+						writerLock.lock();
+
+						try {
+							count = Drain();
+
+							long batchSize = fileBatch.length();
+
+							if (batchSize >= flushBytes || (batchSize > 0 && System.nanoTime() - lastFlushNanos >= flushMillis * 1000000L)) {
+								Flush();
+							}
+							else if (batchSize > 0) {
+								flushInNanos = Math.max(1, lastFlushNanos + flushMillis * 1000000L - System.nanoTime());
+							}
+						}
+						finally {
+							writerLock.unlock();
+						}
+
+						if (count == 0) {
+							Park(flushInNanos);
+						}
+					}
+				}
+			}, "Logger");
+
+			writer.setDaemon(true);
+			writer.start();
+
+			// Nothing gets lost when the server stops!
+			Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+				writerLock.lock();
+
+				try {
+					Drain();
+					Flush();
+
+					if (logFile != null) {
+						logFile.close();
+					}
+				}
+				catch (Exception e) {
+					e.printStackTrace();
+				}
+				finally {
+					writerLock.unlock();
+				}
+			}));
+		}
+
+		// Writer only! Sleeps until a producer publishes a line, an idle server doesn't wake it. A started batch still gets written in time.
+		private static void Park(long flushInNanos) {
+			isWriterParked = true;
+
+			// A line which got published before the flag was set wouldn't wake it!
+			if (sequences.get((int)(head & RING_MASK)) == head + 1) {
+				isWriterParked = false;
+				return;
+			}
+
+			if (flushInNanos > 0) {
+				LockSupport.parkNanos(flushInNanos);
+			}
+			else {
+				LockSupport.park();
+			}
+
+			isWriterParked = false;
+		}
+
+		// Writer only! Formats every published line into the batches.
+		private static int Drain() {
+			int count = 0;
+			long position = head;
+
+			while (count < RING_SIZE) {
+				int index = (int)(position & RING_MASK);
+
+				if (sequences.get(index) != position + 1) {
+					break;	// empty!
+				}
+
+				Type type = types[index];
+				String line = GetText(times[index], type, texts[index]);
+				texts[index] = null;
+				sequences.set(index, position + RING_SIZE);		// free for the producers again!
+
+				position++;
+				head = position;
+				count++;
+
+				fileBatch.append(line);
+
+				if (type == Type.ERROR) {
+					errBatch.append(line);
+				}
+				else {
+					outBatch.append(line);
+				}
+			}
+
+			long dropped = droppedLines.getAndSet(0);
+
+			if (dropped > 0) {
+				String line = GetText(Clock.WallMillis(), Type.WARNING, String.format("Logger: Dropped %s lines!", dropped));
+				fileBatch.append(line);
+				outBatch.append(line);
+			}
+
+			return count;
+		}
+
+		// Writer only! The log file stays open.
+		private static void Flush() {
+			lastFlushNanos = System.nanoTime();
+
+			if (outBatch.length() > 0) {
+				System.out.print(outBatch);
+				outBatch.setLength(0);
+			}
+
+			if (errBatch.length() > 0) {
+				System.err.print(errBatch);
+				errBatch.setLength(0);
+			}
+
+			if (fileBatch.length() == 0) {
+				return;
+			}
+
+			try {
+				if (logFile == null) {
+					Path pathToFile = Paths.get(GetFilename());
+					Files.createDirectories(pathToFile.getParent());
+
+					logFile = FileChannel.open(pathToFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+				}
+
+				ByteBuffer bytes = ByteBuffer.wrap(fileBatch.toString().getBytes(StandardCharsets.UTF_8));
+
+				while (bytes.hasRemaining()) {
+					logFile.write(bytes);
+				}
+			}
+			catch (Exception e) {
+				e.printStackTrace();
+			}
+			finally {
+				fileBatch.setLength(0);
+			}
+		}
+
+		private static String GetText(long time, Type type, String text) {
+			return String.format("%s %s: %s\n", Clock.FormatTimestamp(time), StringUtils.Capitalize(type.toString()), text);
+		}
+
+
+		public static void StartLog(String text) {
+			if (startOfServer.length() == 0) {
+				startOfServer = Clock.GetTimestamp();
+			}
+
+			Append(Type.START, text);
+		}
+
+		public static void LogInfo(String text) {
+			Append(Type.INFO, text);
+		}
+
+		public static void LogWarning(String text) {
+			Append(Type.WARNING, text);
+		}
+
+		public static void LogError(String text) {
+			Append(Type.ERROR, text);
+		}
+	}
+
+
+
+	static class EventLog {
+		// Binary log of fixed size records in memory-mapped segment files!
+		// Segment: 32 byte header (magic, version, created millis, record size) followed by the records.
+		// Record:  timestamp millis (8) | latency nanos (8) | client id (4) | message (4) | level (1) | opcode (1) | reserved (5) | committed (1)
+		public static final int MAGIC = 0x4A534556;		// "JSEV"
+		public static final int VERSION = 1;
+		public static final int HEADER_SIZE = 32;
+		public static final int RECORD_SIZE = 32;
+		public static final String FILE_ENDING = ".events";
+
+
+		public enum Message {
+			OK("ok"),
+			BAD_REQUEST("bad request"),
+			WRONG_USAGE("wrong usage"),
+			NOT_FOUND("no menu found"),
+			SOLD_OUT("sold out"),
+			UNREACHABLE("node unreachable"),
+			RATE_LIMITED("rate limited"),
+			NOT_SAVED("not saved");
+
+
+			private String text;
+
+
+			private Message(String text) {
+				this.text = text;
+			}
+
+
+			public String GetText() {
+				return text;
+			}
+		}
+
+
+		private static class Segment {
+			private MappedByteBuffer buffer;
+			private AtomicInteger position = new AtomicInteger(HEADER_SIZE);	// next free record!
+			private long createdMillis;
+		}
+
+
+		private static final DateTimeFormatter fileDateFormat = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss-SSS").withZone(ZoneId.systemDefault());
+
+		private static volatile Segment segment = null;		// "null" while disabled!
+		private static ReentrantLock rotateLock = new ReentrantLock();
+		private static String directory;
+		private static int segmentSize;
+		private static long rotateMillis;
+		private static int keptSegments;
+		private static int segmentCounter = 0;
+
+
+		public static void Open(String _directory, int _segmentSize, long _rotateMillis, int _keptSegments) {
+			directory = _directory;
+			segmentSize = Math.max(HEADER_SIZE + RECORD_SIZE, _segmentSize);
+			rotateMillis = _rotateMillis;
+			keptSegments = Math.max(1, _keptSegments);
+
+			try {
+				Files.createDirectories(Paths.get(directory));
+				segment = NewSegment();
+			}
+			catch (Exception e) {
+				Logger.LogError(String.format("EventLog: Couldn't open the event log! %s", e.getMessage()));
+			}
+		}
+
+		public static boolean IsEnabled() {
+			return segment != null;
+		}
+
+
+		// Lock-free as long as the segment has room! Every thread claims its own record.
+		public static void Append(Logger.Type level, int clientId, int opcode, long latencyNanos, Message message) {
+			long now = Clock.WallMillis();
+
+			while (true) {
+				Segment current = segment;
+
+				if (current == null) {
+					return;
+				}
+
+				if (rotateMillis <= 0 || now - current.createdMillis < rotateMillis) {
+					int offset = current.position.getAndAdd(RECORD_SIZE);
+
+					if (offset + RECORD_SIZE <= segmentSize) {
+						MappedByteBuffer buffer = current.buffer;
+						buffer.putLong(offset, now);
+						buffer.putLong(offset + 8, latencyNanos);
+						buffer.putInt(offset + 16, clientId);
+						buffer.putInt(offset + 20, message.ordinal());
+						buffer.put(offset + 24, (byte)level.ordinal());
+						buffer.put(offset + 25, (byte)opcode);
+						buffer.put(offset + RECORD_SIZE - 1, (byte)1);		// committed! Written last.
+						return;
+					}
+				}
+
+				Rotate(current);
+			}
+		}
+
+
+		private static void Rotate(Segment full) {
+			rotateLock.lock();
+
+			try {
+				if (segment != full) {
+					return;		// someone else rotated allready!
+				}
+
+				segment = NewSegment();
+				DeleteOldSegments();
+			}
+			catch (Exception e) {
+				segment = null;
+				Logger.LogError(String.format("EventLog: Couldn't rotate the event log! Disabled. %s", e.getMessage()));
+			}
+			finally {
+				rotateLock.unlock();
+			}
+		}
+
+		private static Segment NewSegment() throws IOException {
+			Segment newSegment = new Segment();
+			newSegment.createdMillis = System.currentTimeMillis();
+
+			String name = String.format("events-%s-%06d%s", fileDateFormat.format(Instant.ofEpochMilli(newSegment.createdMillis)), segmentCounter++, FILE_ENDING);
+
+			// The mapping stays valid after the channel is closed!
+			try (FileChannel channel = FileChannel.open(Paths.get(directory, name), StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+				newSegment.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+			}
+
+			newSegment.buffer.putInt(0, MAGIC);
+			newSegment.buffer.putInt(4, VERSION);
+			newSegment.buffer.putLong(8, newSegment.createdMillis);
+			newSegment.buffer.putInt(16, RECORD_SIZE);
+
+			return newSegment;
+		}
+
+		private static void DeleteOldSegments() throws IOException {
+			List<Path> segments = ListSegments(Paths.get(directory));
+
+			for (int i = 0; i < segments.size() - keptSegments; i++) {
+				Files.deleteIfExists(segments.get(i));
+			}
+		}
+
+		// Oldest first! The names sort by time.
+		public static List<Path> ListSegments(Path folder) throws IOException {
+			List<Path> segments = new ArrayList<Path>();
+
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(folder, "*" + FILE_ENDING)) {
+				for (Path path : stream) {
+					segments.add(path);
+				}
+			}
+
+			Collections.sort(segments);
+			return segments;
+		}
+	}
+
+
+
+	static class EventLogReader {
+		// Usage: --read-events [--client ID] [--command NAME] [--level LEVEL] [FOLDER OR FILES...]
+		public static void Run(String[] args) {
+			int client = -1;
+			String command = null;
+			String level = null;
+			List<Path> paths = new ArrayList<Path>();
+
+			try {
+				for (int i = 0; i < args.length; i++) {
+					if (args[i].equals("--client")) {
+						client = Integer.parseInt(args[++i]);
+					}
+					else if (args[i].equals("--command")) {
+						command = args[++i];
+					}
+					else if (args[i].equals("--level")) {
+						level = args[++i];
+					}
+					else {
+						paths.add(Paths.get(args[i]));
+					}
+				}
+
+				if (paths.size() == 0) {
+					paths.add(Paths.get("Logs/Events"));
+				}
+
+				for (Path path : paths) {
+					List<Path> segments = new ArrayList<Path>();
+
+					if (Files.isDirectory(path)) {
+						segments = EventLog.ListSegments(path);
+					}
+					else {
+						segments.add(path);
+					}
+
+					for (Path segment : segments) {
+						ReadSegment(segment, client, command, level);
+					}
+				}
+			}
+			catch (Exception e) {
+				System.err.println(String.format("Error: Couldn't read the event log! %s", e.getMessage()));
+				System.err.println("Usage: --read-events [--client ID] [--command NAME] [--level LEVEL] [FOLDER OR FILES...]");
+			}
+		}
+
+		private static void ReadSegment(Path path, int client, String command, String level) throws IOException {
+			MappedByteBuffer buffer;
+
+			try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+				buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			}
+
+			if (buffer.capacity() < EventLog.HEADER_SIZE || buffer.getInt(0) != EventLog.MAGIC || buffer.getInt(4) != EventLog.VERSION) {
+				System.err.println(String.format("Error: \"%s\" is not an event log!", path));
+				return;
+			}
+
+			int recordSize = buffer.getInt(16);
+			Logger.Type[] levels = Logger.Type.values();
+			EventLog.Message[] messages = EventLog.Message.values();
+
+			for (int offset = EventLog.HEADER_SIZE; offset + recordSize <= buffer.capacity(); offset += recordSize) {
+				if (buffer.get(offset + recordSize - 1) != 1) {
+					continue;	// never written or not committed!
+				}
+
+				long time = buffer.getLong(offset);
+				long latencyNanos = buffer.getLong(offset + 8);
+				int clientId = buffer.getInt(offset + 16);
+				int message = buffer.getInt(offset + 20);
+				int levelIndex = buffer.get(offset + 24);
+				int opcode = buffer.get(offset + 25) & 0xFF;
+
+				String levelName = levelIndex >= 0 && levelIndex < levels.length ? StringUtils.Capitalize(levels[levelIndex].toString()) : "?";
+				String commandName = ClientHandler.GetCommandName(opcode);
+				String messageText = message >= 0 && message < messages.length ? messages[message].GetText() : "?";
+
+				if (client >= 0 && client != clientId) continue;
+				if (command != null && !command.equalsIgnoreCase(commandName)) continue;
+				if (level != null && !level.equalsIgnoreCase(levelName)) continue;
+
+				System.out.println(String.format("%s %s: Client-%s: %s -> %s (%.3f ms)", Clock.FormatTimestamp(time), levelName, clientId, commandName, messageText, latencyNanos / 1000000.0));
+			}
+		}
+	}
+
+
+
+	public static class OrderJournal {
+		// Append-only journal of the sold portions! A reply to an order only goes out after its record is on disk.
+		// Journal: 16 byte header (magic, version, catalog hash, reserved) followed by the records, named after the sequence of the first one.
+		// Record:   sequence (8) | menu id (4) | portions (4) | CRC32 of the 16 bytes before (4)
+		// Snapshot: magic (4) | version (4) | last sequence (8) | catalog hash (4) | count (4) | count * portions (4) | CRC32 of everything before (4)
+		public static final int MAGIC = 0x4A534A4E;				// "JSJN"
+		public static final int SNAPSHOT_MAGIC = 0x4A53534E;	// "JSSN"
+		public static final int VERSION = 1;
+		public static final int HEADER_SIZE = 16;
+		public static final int RECORD_SIZE = 20;
+		public static final String FILE_ENDING = ".journal";
+		private static final String SNAPSHOT_NAME = "inventory.snapshot";
+
+
+		// The orders of one group commit!
+		private static class Batch {
+			private int count = 0;
+			private int[] menuIds = new int[256];
+			private int[] portions = new int[256];
+			private ClientHandler[] waiters = new ClientHandler[256];
+			private long firstNanos;
+
+			private void Add(int menuId, int portions, ClientHandler waiter) {
+				if (count == menuIds.length) {
+					this.menuIds = Arrays.copyOf(this.menuIds, count * 2);
+					this.portions = Arrays.copyOf(this.portions, count * 2);
+					this.waiters = Arrays.copyOf(this.waiters, count * 2);
+				}
+
+				this.menuIds[count] = menuId;
+				this.portions[count] = portions;
+				this.waiters[count] = waiter;
+				count++;
+			}
+
+			private void Clear() {
+				Arrays.fill(waiters, 0, count, null);	// no closed clients kept alive!
+				count = 0;
+			}
+		}
+
+
+		private static volatile boolean isOpen = false;
+		private static String directory;
+		private static MenuCatalog catalog;
+		private static int catalogHash;
+		private static long commitNanos;
+		private static int commitRecords;
+		private static long snapshotRecords;
+
+		private static ReentrantLock lock = new ReentrantLock();
+		private static Condition hasRecords = lock.newCondition();
+		private static Batch pending = new Batch();		// filled by the clients, under the lock
+		private static Batch writing = new Batch();		// only the writer thread
+		private static long lastSequence = 0;			// under the lock
+		private static boolean isStopping = false;		// under the lock
+		private static volatile long durableSequence = 0;	// every order up to it is on disk or lost
+		private static final ConcurrentSkipListMap<Long, Long> lostOrders = new ConcurrentSkipListMap<Long, Long>();	// first -> last sequence of every batch which never got on disk
+
+		// Only the writer thread!
+		private static FileChannel channel;
+		private static ByteBuffer records = ByteBuffer.allocate(RECORD_SIZE * 256);
+		private static CRC32 crc = new CRC32();
+		private static int[] durablePortions;		// the portions after every record on disk, the snapshots are written from them
+		private static long recordsSinceSnapshot = 0;
+		private static boolean isFailed = false;	// the journal file is broken, the next batch starts a new one after a snapshot
+		private static Thread writer;
+
+
+		// Recovers the portions of the catalog from the last snapshot and the journal after it, before the server takes clients!
+		public static void Open(String _directory, MenuCatalog _catalog, long _commitMillis, int _commitBytes, long _snapshotRecords) {
+			directory = _directory;
+			catalog = _catalog;
+			catalogHash = HashCatalog(_catalog);
+			commitNanos = Math.max(0, _commitMillis) * 1000000L;
+			commitRecords = Math.max(1, _commitBytes / RECORD_SIZE);
+			snapshotRecords = Math.max(1, _snapshotRecords);
+			isStopping = false;
+			isFailed = false;
+
+			try {
+				Files.createDirectories(Paths.get(directory));
+
+				long startNanos = System.nanoTime();
+				Recover();
+
+				Logger.LogInfo(String.format("OrderJournal: Recovered up to order %s in %.1f ms!", lastSequence, (System.nanoTime() - startNanos) / 1000000.0));
+
+				// A fresh snapshot right away, the next start only needs it and what comes after!
+				WriteSnapshot(lastSequence);
+
+				isOpen = true;
+
+				writer = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						WriteLoop();
+					}
+				}, "OrderJournal");
+				writer.start();
+			}
+			catch (Exception e) {
+				Logger.LogError(String.format("OrderJournal: Couldn't open the journal! Orders won't survive a restart. %s", e.getMessage()));
+			}
+		}
+
+		public static boolean IsEnabled() {
+			return isOpen;
+		}
+
+		// Everything up to this sequence is decided, on disk or lost!
+		public static long GetDurableSequence() {
+			return durableSequence;
+		}
+
+		// The order couldn't be written! Its portions are back and its reply has to say so. Only for decided sequences.
+		public static boolean IsLost(long sequence) {
+			if (lostOrders.isEmpty()) {
+				return false;
+			}
+
+			Map.Entry<Long, Long> batch = lostOrders.floorEntry(sequence);
+			return batch != null && sequence <= batch.getValue();
+		}
+
+
+		// Returns the sequence of the order, the waiter (can be "null") gets released once it is on disk. "0" if there is no journal.
+		public static long Append(int menuId, int portions, ClientHandler waiter) {
+			if (!isOpen) {
+				return 0;
+			}
+
+			lock.lock();
+
+			try {
+				pending.Add(menuId, portions, waiter);
+
+				if (pending.count == 1) {
+					pending.firstNanos = System.nanoTime();
+					hasRecords.signal();	// starts the commit timer
+				}
+				else if (pending.count == commitRecords) {
+					hasRecords.signal();	// full, no need to wait any longer
+				}
+
+				return ++lastSequence;
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+
+		// Commits what is left and writes a last snapshot!
+		public static void Close() {
+			if (!isOpen) {
+				return;
+			}
+
+			lock.lock();
+
+			try {
+				isStopping = true;
+				hasRecords.signal();
+			}
+			finally {
+				lock.unlock();
+			}
+
+			try {
+				writer.join();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+
+			isOpen = false;
+		}
+
+
+		private static void WriteLoop() {
+			while (true) {
+				long batchSequence;
+
+				lock.lock();
+
+				try {
+					while (pending.count == 0 && !isStopping) {
+						hasRecords.awaitUninterruptibly();
+					}
+
+					if (pending.count == 0) {
+						break;	// stopping and nothing left!
+					}
+
+					// Group commit: waits for more orders until the batch is full or the first one waited long enough.
+					while (pending.count < commitRecords && !isStopping) {
+						long left = pending.firstNanos + commitNanos - System.nanoTime();
+
+						if (left <= 0) {
+							break;
+						}
+
+						try {
+							hasRecords.awaitNanos(left);
+						}
+						catch (InterruptedException e) {
+							break;
+						}
+					}
+
+					Batch full = pending;
+					pending = writing;
+					writing = full;
+					batchSequence = lastSequence;
+				}
+				finally {
+					lock.unlock();
+				}
+
+				Commit(writing, batchSequence);
+			}
+
+			try {
+				WriteSnapshot(durableSequence);
+				channel.close();
+				channel = null;
+			}
+			catch (Exception e) {
+				Logger.LogError(String.format("OrderJournal: Couldn't write the last snapshot! %s", e.getMessage()));
+			}
+		}
+
+		// One write and one fsync for the whole batch! The sequences of a batch have no gaps, the last one is "batchSequence".
+		// If it fails, a snapshot and a new journal file get a second try. A batch which still doesn't make it is lost, its orders get an error.
+		private static void Commit(Batch batch, long batchSequence) {
+			long firstSequence = batchSequence - batch.count + 1;
+			boolean isWritten = false;
+
+			for (int attempt = 0; attempt < 2 && !isWritten; attempt++) {
+				try {
+					if (isFailed) {
+						// The new journal starts right after the snapshot, the broken end of the old one gets deleted with it!
+						WriteSnapshot(firstSequence - 1);
+						isFailed = false;
+					}
+
+					WriteRecords(batch, firstSequence);
+					isWritten = true;
+				}
+				catch (Exception e) {
+					isFailed = true;
+					Logger.LogError(String.format("OrderJournal: Couldn't write the journal! %s", e.getMessage()));
+				}
+			}
+
+			if (isWritten) {
+				for (int i = 0; i < batch.count; i++) {
+					durablePortions[batch.menuIds[i]] -= batch.portions[i];
+				}
+
+				recordsSinceSnapshot += batch.count;
+			}
+			else {
+				Lose(batch, firstSequence, batchSequence);
+			}
+
+			durableSequence = batchSequence;	// before the waiters get released, see ClientHandler.Write!
+
+			ClientHandler lastWaiter = null;
+
+			for (int i = 0; i < batch.count; i++) {
+				if (batch.waiters[i] != lastWaiter && batch.waiters[i] != null) {
+					lastWaiter = batch.waiters[i];
+					lastWaiter.ReleaseDurable(batchSequence);
+				}
+			}
+
+			batch.Clear();
+
+			if (recordsSinceSnapshot >= snapshotRecords && !isFailed) {
+				try {
+					WriteSnapshot(batchSequence);
+				}
+				catch (Exception e) {
+					isFailed = true;	// the journal file might be closed already
+					Logger.LogError(String.format("OrderJournal: Couldn't write a snapshot! %s", e.getMessage()));
+				}
+			}
+		}
+
+		private static void WriteRecords(Batch batch, long firstSequence) throws IOException {
+			if (records.capacity() < batch.count * RECORD_SIZE) {
+				records = ByteBuffer.allocate(batch.count * RECORD_SIZE);
+			}
+
+			records.clear();
+
+			for (int i = 0; i < batch.count; i++) {
+				int start = records.position();
+
+				records.putLong(firstSequence + i);
+				records.putInt(batch.menuIds[i]);
+				records.putInt(batch.portions[i]);
+
+				crc.reset();
+				crc.update(records.array(), start, 16);
+				records.putInt((int)crc.getValue());
+			}
+
+			records.flip();
+
+			while (records.hasRemaining()) {
+				channel.write(records);
+			}
+
+			channel.force(false);
+		}
+
+		// Not sold after all! The portions go back, the replies become errors. Lost batches in a row share one entry.
+		private static void Lose(Batch batch, long firstSequence, long batchSequence) {
+			Map.Entry<Long, Long> last = lostOrders.lastEntry();
+
+			if (last != null && last.getValue() == firstSequence - 1) {
+				lostOrders.put(last.getKey(), batchSequence);
+			}
+			else {
+				lostOrders.put(firstSequence, batchSequence);
+			}
+
+			MenuModel[] menus = catalog.GetMenus();
+
+			for (int i = 0; i < batch.count; i++) {
+				menus[batch.menuIds[i]].CancelOrder(batch.portions[i]);
+			}
+
+			Logger.LogError(String.format("OrderJournal: Orders %s to %s are lost, their clients get an error!", firstSequence, batchSequence));
+		}
+
+
+		// Written next to the old one and then moved over it, so there is always a complete snapshot!
+		// Then a new journal starts and the older ones get deleted, the snapshot has all of their orders.
+		private static void WriteSnapshot(long sequence) throws IOException {
+			ByteBuffer snapshot = ByteBuffer.allocate(28 + durablePortions.length * 4);
+			snapshot.putInt(SNAPSHOT_MAGIC);
+			snapshot.putInt(VERSION);
+			snapshot.putLong(sequence);
+			snapshot.putInt(catalogHash);
+			snapshot.putInt(durablePortions.length);
+
+			for (int portions : durablePortions) {
+				snapshot.putInt(portions);
+			}
+
+			crc.reset();
+			crc.update(snapshot.array(), 0, snapshot.position());
+			snapshot.putInt((int)crc.getValue());
+			snapshot.flip();
+
+			Path temporary = Paths.get(directory, SNAPSHOT_NAME + ".tmp");
+
+			try (FileChannel file = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+				while (snapshot.hasRemaining()) {
+					file.write(snapshot);
+				}
+				file.force(true);
+			}
+
+			Files.move(temporary, Paths.get(directory, SNAPSHOT_NAME), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+			if (channel != null) {
+				channel.close();
+			}
+
+			Path journal = Paths.get(directory, JournalName(sequence + 1));
+			channel = FileChannel.open(journal, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putInt(MAGIC);
+			header.putInt(VERSION);
+			header.putInt(catalogHash);
+			header.putInt(0);	// reserved
+			header.flip();
+
+			while (header.hasRemaining()) {
+				channel.write(header);
+			}
+			channel.force(true);
+
+			for (Path old : ListJournals()) {
+				if (!old.equals(journal)) {
+					Files.deleteIfExists(old);
+				}
+			}
+
+			recordsSinceSnapshot = 0;
+		}
+
+		// Snapshot first, then every intact record after it. Only the records since the last snapshot get replayed, so the time doesn't grow with the history!
+		private static void Recover() throws IOException {
+			int count = catalog.GetCount();
+			durablePortions = new int[count];
+
+			MenuModel[] menus = catalog.GetMenus();
+			for (int i = 0; i < count; i++) {
+				durablePortions[i] = menus[i].getAvailablePortions();	// the start values, if there is nothing on disk
+			}
+
+			long sequence = 0;
+			Path snapshotPath = Paths.get(directory, SNAPSHOT_NAME);
+
+			if (Files.exists(snapshotPath)) {
+				ByteBuffer snapshot = ByteBuffer.wrap(Files.readAllBytes(snapshotPath));
+
+				if (snapshot.limit() < 28 || snapshot.getInt(0) != SNAPSHOT_MAGIC || snapshot.getInt(20) != count || snapshot.limit() != 28 + count * 4) {
+					Logger.LogWarning("OrderJournal: Snapshot is broken or from another catalog, starting with the default portions!");
+					ApplyPortions();
+					return;
+				}
+
+				crc.reset();
+				crc.update(snapshot.array(), 0, snapshot.limit() - 4);
+
+				if ((int)crc.getValue() != snapshot.getInt(snapshot.limit() - 4) || snapshot.getInt(16) != catalogHash) {
+					Logger.LogWarning("OrderJournal: Snapshot is broken or from another catalog, starting with the default portions!");
+					ApplyPortions();
+					return;
+				}
+
+				sequence = snapshot.getLong(8);
+
+				for (int i = 0; i < count; i++) {
+					durablePortions[i] = snapshot.getInt(24 + i * 4);
+				}
+			}
+
+			long replayed = 0;
+
+			for (Path journal : ListJournals()) {
+				ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(journal));
+
+				if (bytes.limit() < HEADER_SIZE || bytes.getInt(0) != MAGIC || bytes.getInt(8) != catalogHash) {
+					Logger.LogWarning(String.format("OrderJournal: Skipped %s, broken or from another catalog!", journal.getFileName()));
+					continue;
+				}
+
+				for (int offset = HEADER_SIZE; offset + RECORD_SIZE <= bytes.limit(); offset += RECORD_SIZE) {
+					crc.reset();
+					crc.update(bytes.array(), offset, 16);
+
+					if ((int)crc.getValue() != bytes.getInt(offset + 16)) {
+						break;	// torn write of the last batch, it never got confirmed!
+					}
+
+					long recordSequence = bytes.getLong(offset);
+					int menuId = bytes.getInt(offset + 8);
+
+					if (recordSequence <= sequence) {
+						continue;	// in the snapshot already
+					}
+
+					if (recordSequence != sequence + 1 || menuId < 0 || menuId >= count) {
+						break;
+					}
+
+					durablePortions[menuId] -= bytes.getInt(offset + 12);
+					sequence = recordSequence;
+					replayed++;
+				}
+			}
+
+			ApplyPortions();
+
+			lastSequence = sequence;
+			durableSequence = sequence;
+
+			Logger.LogInfo(String.format("OrderJournal: Replayed %s orders after the snapshot!", replayed));
+		}
+
+		private static void ApplyPortions() {
+			MenuModel[] menus = catalog.GetMenus();
+
+			for (int i = 0; i < menus.length; i++) {
+				menus[i].setAvailablePortions(durablePortions[i]);
+			}
+		}
+
+		// Oldest first! The names sort by their first sequence.
+		private static List<Path> ListJournals() throws IOException {
+			List<Path> journals = new ArrayList<Path>();
+
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(Paths.get(directory), "*" + FILE_ENDING)) {
+				for (Path path : stream) {
+					journals.add(path);
+				}
+			}
+
+			Collections.sort(journals);
+			return journals;
+		}
+
+		private static String JournalName(long firstSequence) {
+			return String.format("orders-%020d%s", firstSequence, FILE_ENDING);
+		}
+
+		// Menu ids are the positions in the catalog, a journal of another catalog would sell the wrong menus!
+		private static int HashCatalog(MenuCatalog catalog) {
+			int hash = 1;
+
+			for (MenuModel menu : catalog.GetMenus()) {
+				hash = 31 * hash + menu.getName().hashCode();
+			}
+			return hash;
+		}
+	}
+
+
+
+	static class Sessions {
+		// Resumable sessions without any state per session! A token is "client id (4) | expiry seconds (8) | HMAC-SHA256 of both (first 16)", Base64 (no "_" or "#", the client formats those).
+		// The file holds the key and the first id which was never given out, so tokens survive a restart and new clients never get an old id.
+		// Ids get reserved in blocks, the file is written once per block.
+		private static final int KEY_LENGTH = 32;
+		private static final int MAC_LENGTH = 16;
+		private static final int TOKEN_LENGTH = 4 + 8 + MAC_LENGTH;
+		private static final int ID_BLOCK = 4096;
+
+		private static volatile byte[] key = NewKey();	// without a file, tokens only live as long as the process
+		private static volatile ThreadLocal<Mac> macs = NewMacs(key);	// one per thread, set up once! A new key gets new ones.
+		private static long ttlSeconds = 60 * 60;
+		private static final AtomicInteger nextId = new AtomicInteger(0);
+		private static volatile int reservedIds = Integer.MAX_VALUE;	// ids below are covered by the file!
+		private static Path file = null;
+
+
+		private static byte[] NewKey() {
+			byte[] bytes = new byte[KEY_LENGTH];
+			new SecureRandom().nextBytes(bytes);
+			return bytes;
+		}
+
+		private static ThreadLocal<Mac> NewMacs(byte[] macKey) {
+			return ThreadLocal.withInitial(() -> {
+				try {
+					Mac mac = Mac.getInstance("HmacSHA256");
+					mac.init(new SecretKeySpec(macKey, "HmacSHA256"));
+					return mac;
+				}
+				catch (Exception e) {
+					throw new IllegalStateException("HmacSHA256 is missing!", e);
+				}
+			});
+		}
+
+		// Before the first client! Creates the file if there is none.
+		public static synchronized void Open(String path, long _ttlSeconds) {
+			ttlSeconds = _ttlSeconds;
+
+			try {
+				file = Paths.get(path);
+
+				if (Files.exists(file)) {
+					ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(file));
+					byte[] storedKey = new byte[KEY_LENGTH];
+					data.get(storedKey);
+
+					key = storedKey;
+					macs = NewMacs(storedKey);
+					nextId.set(data.getInt());	// some of the ids below might still be out there!
+				}
+
+				reservedIds = nextId.get();
+				Reserve(nextId.get());
+
+				Logger.LogInfo(String.format("Sessions: New clients start at id %s!", nextId.get()));
+			}
+			catch (Exception e) {
+				Logger.LogError(String.format("Sessions: Couldn't open %s, tokens only last until a restart! %s", path, e.getMessage()));
+				file = null;
+				reservedIds = Integer.MAX_VALUE;
+			}
+		}
+
+		public static int NextId() {
+			int id = nextId.getAndIncrement();
+
+			if (id >= reservedIds) {
+				Reserve(id);
+			}
+			return id;
+		}
+
+		private static synchronized void Reserve(int id) {
+			if (file == null || id < reservedIds) {
+				return;
+			}
+
+			int reserved = reservedIds;
+
+			while (id >= reserved) {
+				reserved += ID_BLOCK;
+			}
+
+			try {
+				Path temporary = Paths.get(file.toString() + ".tmp");
+				ByteBuffer data = ByteBuffer.allocate(KEY_LENGTH + 4).put(key).putInt(reserved);
+
+				if (file.getParent() != null) {
+					Files.createDirectories(file.getParent());
+				}
+
+				Files.write(temporary, data.array());
+				Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			}
+			catch (Exception e) {
+				Logger.LogError(String.format("Sessions: Couldn't reserve ids! %s", e.getMessage()));
+			}
+
+			reservedIds = reserved;	// even if it failed, it gets tried again once per block only
+		}
+
+
+		public static String Issue(int id) {
+			ByteBuffer token = ByteBuffer.allocate(TOKEN_LENGTH);
+			token.putInt(id).putLong(System.currentTimeMillis() / 1000 + ttlSeconds);
+			token.put(Sign(token.array(), 12), 0, MAC_LENGTH);
+
+			return Base64.getEncoder().withoutPadding().encodeToString(token.array());
+		}
+
+		// The id of the token, "-1" if it is broken, forged or expired!
+		public static int Verify(String text) {
+			byte[] token;
+
+			try {
+				token = Base64.getDecoder().decode(text);
+			}
+			catch (IllegalArgumentException e) {
+				return -1;
+			}
+
+			if (token.length != TOKEN_LENGTH || !MessageDigest.isEqual(Arrays.copyOf(Sign(token, 12), MAC_LENGTH), Arrays.copyOfRange(token, 12, TOKEN_LENGTH))) {
+				return -1;
+			}
+
+			ByteBuffer data = ByteBuffer.wrap(token);
+			int id = data.getInt();
+			long expirySeconds = data.getLong();
+
+			return expirySeconds >= System.currentTimeMillis() / 1000 ? id : -1;
+		}
+
+		// doFinal resets the mac, it keeps the key for the next token!
+		private static byte[] Sign(byte[] bytes, int length) {
+			Mac mac = macs.get();
+			mac.update(bytes, 0, length);
+			return mac.doFinal();
+		}
+	}
+
+
+
+	public static class TokenBucket {
+		// Refills "requestsPerSecond" tokens a second up to "burst", every request takes one! Not thread safe, every client has its own.
+		private final double tokensPerNano;
+		private final double burst;
+		private double tokens;
+		private long lastNanos;
+
+
+		public TokenBucket(int requestsPerSecond, int burst) {
+			this.tokensPerNano = requestsPerSecond / 1e9;
+			this.burst = burst;
+			this.tokens = burst;
+			this.lastNanos = System.nanoTime();
+		}
+
+
+		// No timer, the tokens since the last request get added on the way!
+		public boolean TryTake(long nowNanos) {
+			if (nowNanos > lastNanos) {
+				tokens = Math.min(burst, tokens + (nowNanos - lastNanos) * tokensPerNano);
+				lastNanos = nowNanos;
+			}
+
+			if (tokens < 1) {
+				return false;
+			}
+
+			tokens--;
+			return true;
+		}
+	}
+
+
+
+	public static class Histogram {
+		// HDR-style: 16 linear sub-buckets for every power of two, so a value is kept within 1/16 of itself. Nanos up to ~73 minutes (2^42 - 1).
+		// Lock-free! Every thread counts into one of a few stripes, so cores rarely fight over the same bucket.
+		private static final int SUB_BITS = 4;
+		private static final int SUB_COUNT = 1 << SUB_BITS;
+		private static final int MAX_BITS = 41;
+		private static final long MAX_VALUE = (1L << (MAX_BITS + 1)) - 1;
+		private static final int BUCKET_COUNT = (MAX_BITS - SUB_BITS + 2) * SUB_COUNT;
+		private static final int STRIPES = Math.min(8, Integer.highestOneBit(Runtime.getRuntime().availableProcessors()));
+
+		private final AtomicLongArray[] stripes = new AtomicLongArray[STRIPES];
+		private final LongAdder sum = new LongAdder();
+
+
+		public Histogram() {
+			for (int i = 0; i < STRIPES; i++) {
+				stripes[i] = new AtomicLongArray(BUCKET_COUNT);
+			}
+		}
+
+
+		public void Record(long value) {
+			value = Math.max(0, Math.min(value, MAX_VALUE));
+
+			stripes[(int)Thread.currentThread().getId() & (STRIPES - 1)].getAndIncrement(Index(value));
+			sum.add(value);
+		}
+
+		private static int Index(long value) {
+			if (value < SUB_COUNT) {
+				return (int)value;
+			}
+
+			int magnitude = 63 - Long.numberOfLeadingZeros(value);
+			return (magnitude - SUB_BITS + 1) * SUB_COUNT + (int)((value >>> (magnitude - SUB_BITS)) & (SUB_COUNT - 1));
+		}
+
+		// Highest value which lands in the bucket!
+		private static long UpperBound(int index) {
+			if (index < SUB_COUNT) {
+				return index;
+			}
+
+			int magnitude = index / SUB_COUNT + SUB_BITS - 1;
+			long lower = (long)(SUB_COUNT + index % SUB_COUNT) << (magnitude - SUB_BITS);
+			return lower + (1L << (magnitude - SUB_BITS)) - 1;
+		}
+
+
+		// All stripes added up! Not atomic, a few values recorded meanwhile might be missing.
+		public long[] GetCounts() {
+			long[] counts = new long[BUCKET_COUNT];
+
+			for (AtomicLongArray stripe : stripes) {
+				for (int i = 0; i < BUCKET_COUNT; i++) {
+					counts[i] += stripe.get(i);
+				}
+			}
+			return counts;
+		}
+
+		public long GetSum() {
+			return sum.sum();
+		}
+
+		public static long GetCount(long[] counts) {
+			long count = 0;
+
+			for (long c : counts) {
+				count += c;
+			}
+			return count;
+		}
+
+		// "0" if nothing was recorded!
+		public static long GetQuantile(long[] counts, double quantile) {
+			long total = GetCount(counts);
+
+			if (total == 0) {
+				return 0;
+			}
+
+			long rank = Math.max(1, (long)Math.ceil(total * quantile));
+			long seen = 0;
+
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+
+				if (seen >= rank) {
+					return UpperBound(i);
+				}
+			}
+			return MAX_VALUE;
+		}
+	}
+
+
+
+	public static class Metrics {
+		// Counters are LongAdders and latencies go into striped histograms, recording never takes a lock!
+		// Read by the STATS console command, the JMX MBean "JavaSockets:type=Metrics" and the optional plain text endpoint.
+		public static final int OPCODE_COUNT = Protocol.OP_CATALOG + 1;	// event log opcodes, "0" is a bad request
+		private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+		private static final LongAdder[] requests = NewAdders(OPCODE_COUNT);
+		private static final Histogram[] latencies = NewHistograms(OPCODE_COUNT);
+		private static final LongAdder bytesIn = new LongAdder();
+		private static final LongAdder bytesOut = new LongAdder();
+		private static final LongAdder accepted = new LongAdder();
+		private static final LongAdder[] evictions = NewAdders(ClientHandler.KickingReasons.values().length);
+		private static final Histogram broadcasts = new Histogram();
+		private static final LongAdder resumed = new LongAdder();
+		private static final LongAdder rejectedConnections = new LongAdder();
+		private static final LongAdder rejectedRequests = new LongAdder();
+		private static final long startNanos = System.nanoTime();
+
+		// Accept rate, sampled whenever somebody reads the metrics but at most once a second!
+		private static long sampleNanos = System.nanoTime();
+		private static long sampleAccepted = 0;
+		private static double acceptRate = 0;
+
+		private static HttpServer scrapeServer = null;
+
+
+		private static LongAdder[] NewAdders(int count) {
+			LongAdder[] adders = new LongAdder[count];
+
+			for (int i = 0; i < count; i++) {
+				adders[i] = new LongAdder();
+			}
+			return adders;
+		}
+
+		private static Histogram[] NewHistograms(int count) {
+			Histogram[] histograms = new Histogram[count];
+
+			for (int i = 0; i < count; i++) {
+				histograms[i] = new Histogram();
+			}
+			return histograms;
+		}
+
+
+		public static void RecordRequest(int opcode, long latencyNanos) {
+			if (opcode < 0 || opcode >= OPCODE_COUNT) {
+				return;
+			}
+
+			requests[opcode].increment();
+			latencies[opcode].Record(latencyNanos);
+		}
+
+		public static void AddBytesIn(long bytes) {
+			bytesIn.add(bytes);
+		}
+
+		public static void AddBytesOut(long bytes) {
+			bytesOut.add(bytes);
+		}
+
+		public static void ConnectionAccepted() {
+			accepted.increment();
+		}
+
+		public static void Evicted(ClientHandler.KickingReasons reason) {
+			evictions[reason.ordinal()].increment();
+		}
+
+		public static void RecordBroadcast(long nanos) {
+			broadcasts.Record(nanos);
+		}
+
+		public static void SessionResumed() {
+			resumed.increment();
+		}
+
+		public static void ConnectionRejected() {
+			rejectedConnections.increment();
+		}
+
+		public static void RequestRejected() {
+			rejectedRequests.increment();
+		}
+
+
+		private static String GetCommandName(int opcode) {
+			return opcode == 0 ? "BAD_REQUEST" : ClientHandler.GetCommandName(opcode);
+		}
+
+		private static synchronized double GetAcceptRate() {
+			long now = System.nanoTime();
+
+			if (now - sampleNanos >= 1000000000L) {
+				long count = accepted.sum();
+				acceptRate = (count - sampleAccepted) / ((now - sampleNanos) / 1000000000.0);
+				sampleAccepted = count;
+				sampleNanos = now;
+			}
+			return acceptRate;
+		}
+
+		// Every metric with its name in the plain text format, e.g. "javasockets_requests_total{command="GETMENU"}"! The names never change.
+		public static Map<String, Double> Collect() {
+			Map<String, Double> metrics = new LinkedHashMap<String, Double>();
+
+			metrics.put("javasockets_uptime_seconds", (System.nanoTime() - startNanos) / 1e9);
+			metrics.put("javasockets_connections_active", (double)ClientService.GetClientCount());
+			metrics.put("javasockets_connections_accepted_total", (double)accepted.sum());
+			metrics.put("javasockets_connections_accepted_per_second", GetAcceptRate());
+			metrics.put("javasockets_connections_rejected_total", (double)rejectedConnections.sum());
+			metrics.put("javasockets_sessions_resumed_total", (double)resumed.sum());
+			metrics.put("javasockets_requests_rejected_total", (double)rejectedRequests.sum());
+			metrics.put("javasockets_bytes_in_total", (double)bytesIn.sum());
+			metrics.put("javasockets_bytes_out_total", (double)bytesOut.sum());
+
+			for (int opcode = 0; opcode < OPCODE_COUNT; opcode++) {
+				String command = GetCommandName(opcode);
+				long[] counts = latencies[opcode].GetCounts();
+
+				metrics.put(String.format("javasockets_requests_total{command=\"%s\"}", command), (double)requests[opcode].sum());
+				metrics.put(String.format("javasockets_request_latency_seconds_sum{command=\"%s\"}", command), latencies[opcode].GetSum() / 1e9);
+
+				for (double quantile : QUANTILES) {
+					metrics.put(String.format("javasockets_request_latency_seconds{command=\"%s\",quantile=\"%s\"}", command, quantile), Histogram.GetQuantile(counts, quantile) / 1e9);
+				}
+			}
+
+			long[] counts = broadcasts.GetCounts();
+			metrics.put("javasockets_broadcasts_total", (double)Histogram.GetCount(counts));
+
+			for (double quantile : QUANTILES) {
+				metrics.put(String.format("javasockets_broadcast_fanout_seconds{quantile=\"%s\"}", quantile), Histogram.GetQuantile(counts, quantile) / 1e9);
+			}
+
+			for (ClientHandler.KickingReasons reason : ClientHandler.KickingReasons.values()) {
+				metrics.put(String.format("javasockets_evictions_total{reason=\"%s\"}", reason), (double)evictions[reason.ordinal()].sum());
+			}
+
+			return metrics;
+		}
+
+		// For the console!
+		public static String Render() {
+			StringBuilder text = new StringBuilder();
+
+			text.append(String.format("--- stats (up %.0f s) ---%n", (System.nanoTime() - startNanos) / 1e9));
+			text.append(String.format("Connections: %s active, %s accepted, %.1f/s, %s rejected, %s sessions resumed%n", ClientService.GetClientCount(), accepted.sum(), GetAcceptRate(), rejectedConnections.sum(), resumed.sum()));
+			text.append(String.format("Traffic: %s bytes in, %s bytes out%n", bytesIn.sum(), bytesOut.sum()));
+			text.append(String.format("%-12s %10s %10s %10s %10s %10s%n", "Command", "Requests", "p50 us", "p90 us", "p99 us", "p99.9 us"));
+
+			for (int opcode = 0; opcode < OPCODE_COUNT; opcode++) {
+				long[] counts = latencies[opcode].GetCounts();
+
+				text.append(String.format("%-12s %10s", GetCommandName(opcode), requests[opcode].sum()));
+
+				for (double quantile : QUANTILES) {
+					text.append(String.format(" %10.1f", Histogram.GetQuantile(counts, quantile) / 1000.0));
+				}
+				text.append(String.format("%n"));
+			}
+
+			text.append(String.format("Rate limited: %s requests%n", rejectedRequests.sum()));
+
+			long[] counts = broadcasts.GetCounts();
+			text.append(String.format("Broadcasts: %s, fan-out p50 %.2f ms, p99 %.2f ms%n", Histogram.GetCount(counts), Histogram.GetQuantile(counts, 0.5) / 1e6, Histogram.GetQuantile(counts, 0.99) / 1e6));
+
+			text.append("Evictions:");
+			for (ClientHandler.KickingReasons reason : ClientHandler.KickingReasons.values()) {
+				text.append(String.format(" %s %s", reason, evictions[reason.ordinal()].sum()));
+			}
+			text.append(String.format("%n"));
+
+			return text.toString();
+		}
+
+		public static String RenderPlainText() {
+			StringBuilder text = new StringBuilder();
+
+			for (Map.Entry<String, Double> metric : Collect().entrySet()) {
+				text.append(metric.getKey()).append(' ').append(metric.getValue()).append('\n');
+			}
+			return text.toString();
+		}
+
+
+		public static void RegisterMBean() {
+			try {
+				ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(), new ObjectName("JavaSockets:type=Metrics"));
+			}
+			catch (Exception e) {
+				Logger.LogWarning(String.format("Metrics: Couldn't register the MBean! %s", e.getMessage()));
+			}
+		}
+
+		// Only on the loopback! GET /metrics returns the plain text format.
+		public static void StartScrapeEndpoint(int port) {
+			try {
+				scrapeServer = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+
+				scrapeServer.createContext("/metrics", exchange -> {
+					byte[] body = RenderPlainText().getBytes(StandardCharsets.UTF_8);
+
+					exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+					exchange.sendResponseHeaders(200, body.length);
+
+					try (java.io.OutputStream stream = exchange.getResponseBody()) {
+						stream.write(body);
+					}
+				});
+
+				scrapeServer.start();
+
+				Logger.LogInfo(String.format("Metrics: Plain text metrics on http://127.0.0.1:%s/metrics", port));
+			}
+			catch (Exception e) {
+				Logger.LogError(String.format("Metrics: Couldn't start the endpoint on port %s! %s", port, e.getMessage()));
+			}
+		}
+
+		public static void StopScrapeEndpoint() {
+			if (scrapeServer != null) {
+				scrapeServer.stop(0);
+				scrapeServer = null;
+			}
+		}
+	}
+
+
+
+	// Every metric as a read-only attribute, named like in the plain text format but without the braces and quotes!
+	static class MetricsMBean implements DynamicMBean {
+		private final Map<String, String> names = new LinkedHashMap<String, String>();	// attribute -> metric
+
+
+		public MetricsMBean() {
+			for (String metric : Metrics.Collect().keySet()) {
+				names.put(GetAttributeName(metric), metric);
+			}
+		}
+
+
+		// "javasockets_requests_total{command="GETMENU"}" -> "requests_total_command_GETMENU"
+		private static String GetAttributeName(String metric) {
+			return metric.replace("javasockets_", "").replaceAll("[{},=\"]+", "_").replaceAll("_$", "");
+		}
+
+		@Override
+		public Object getAttribute(String attribute) throws AttributeNotFoundException {
+			String metric = names.get(attribute);
+
+			if (metric == null) {
+				throw new AttributeNotFoundException(attribute);
+			}
+			return Metrics.Collect().get(metric);
+		}
+
+		@Override
+		public AttributeList getAttributes(String[] attributes) {
+			Map<String, Double> metrics = Metrics.Collect();
+			AttributeList list = new AttributeList();
+
+			for (String attribute : attributes) {
+				String metric = names.get(attribute);
+
+				if (metric != null) {
+					list.add(new Attribute(attribute, metrics.get(metric)));
+				}
+			}
+			return list;
+		}
+
+		@Override
+		public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+			throw new AttributeNotFoundException("Metrics are read-only!");
+		}
+
+		@Override
+		public AttributeList setAttributes(AttributeList attributes) {
+			return new AttributeList();
+		}
+
+		@Override
+		public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+			throw new ReflectionException(new UnsupportedOperationException(actionName));
+		}
+
+		@Override
+		public MBeanInfo getMBeanInfo() {
+			MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[names.size()];
+			int i = 0;
+
+			for (Map.Entry<String, String> name : names.entrySet()) {
+				attributes[i++] = new MBeanAttributeInfo(name.getKey(), "java.lang.Double", name.getValue(), true, false, false);
+			}
+
+			return new MBeanInfo(Metrics.class.getName(), "Request counts, latencies, traffic and connections of the server", attributes, null, new MBeanOperationInfo[0], null);
+		}
+	}
+
+
+
+	static class Cluster {
+		// Consistent hashing: every node has many points on a ring of 64 bit hashes, a menu belongs to the first point after the hash of its name.
+		// Adding a node only moves the menus between its points and the ones before them.
+		private static final int VIRTUAL_NODES = 128;
+		private static final byte[] GETMENUS_REQUEST = { (byte)Protocol.OP_GETMENUS };
+		private static final int REFRESH_MILLIS = 250;	// how old the portions of the other nodes in a GETMENUS can get
+
+		private static String host;
+		private static int[] ports = null;		// "null" while there is no cluster!
+		private static int self;
+		private static int[] owners;			// node of every menu slot
+		private static PeerLink[] links;		// "null" for the own node
+		private static AtomicIntegerArray isRefreshing;	// of every node, one pull at a time!
+		private static Inventory inventory;		// the slots of the other nodes hold their last known portions
+		private static volatile boolean isStopped = false;
+
+
+		public static void Configure(String _host, int[] _ports, int _self) {
+			if (_ports.length < 2 || _self < 0 || _self >= _ports.length) {
+				Logger.LogError("Cluster: Needs at least 2 ports and the index of the own one!");
+				return;
+			}
+
+			host = _host;
+			ports = _ports;
+			self = _self;
+		}
+
+		public static boolean IsEnabled() {
+			return ports != null;
+		}
+
+		public static void Start(MenuCatalog catalog) {
+			if (!IsEnabled()) {
+				return;
+			}
+
+			long[] ringHashes = new long[ports.length * VIRTUAL_NODES];
+			int[] ringNodes = new int[ringHashes.length];
+			long[][] points = new long[ringHashes.length][];
+
+			for (int node = 0; node < ports.length; node++) {
+				for (int v = 0; v < VIRTUAL_NODES; v++) {
+					points[node * VIRTUAL_NODES + v] = new long[] { Hash(String.format("node-%s#%s", ports[node], v)), node };
+				}
+			}
+
+			Arrays.sort(points, (a, b) -> Long.compare(a[0], b[0]));
+
+			for (int i = 0; i < points.length; i++) {
+				ringHashes[i] = points[i][0];
+				ringNodes[i] = (int)points[i][1];
+			}
+
+			MenuModel[] menus = catalog.GetMenus();
+			owners = new int[menus.length];
+			inventory = catalog.GetInventory();
+			int owned = 0;
+
+			for (int i = 0; i < menus.length; i++) {
+				int point = Arrays.binarySearch(ringHashes, Hash(menus[i].getName().toUpperCase()));
+
+				if (point < 0) {
+					point = -point - 1;		// the next point clockwise
+				}
+
+				owners[i] = ringNodes[point % ringHashes.length];
+
+				if (owners[i] == self) {
+					owned++;
+				}
+			}
+
+			links = new PeerLink[ports.length];
+
+			for (int node = 0; node < ports.length; node++) {
+				if (node != self) {
+					links[node] = new PeerLink(node, host, ports[node]);
+					links[node].Start();
+				}
+			}
+
+			isRefreshing = new AtomicIntegerArray(ports.length);
+
+			Thread refresher = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					while (!isStopped) {
+						Refresh();
+
+						try {
+							Thread.sleep(REFRESH_MILLIS);
+						}
+						catch (InterruptedException e) {
+							return;
+						}
+					}
+				}
+			}, "Cluster");
+
+			refresher.setDaemon(true);
+			refresher.start();
+
+			Logger.LogInfo(String.format("Cluster: Node %s of %s owns %s of %s menus!", self, ports.length, owned, menus.length));
+		}
+
+		public static void Stop() {
+			if (links == null) {
+				return;
+			}
+
+			isStopped = true;
+
+			for (PeerLink link : links) {
+				if (link != null) {
+					link.Stop();
+				}
+			}
+		}
+
+
+		// True if the portions of the menu live on this node! Always without a cluster.
+		public static boolean IsLocal(int slot) {
+			return owners == null || owners[slot] == self;
+		}
+
+		// Over the link to the owner! "done" gets its binary order reply, or "null" if the owner isn't reachable.
+		public static void ForwardOrder(int slot, int portions, PeerLink.Callback done) {
+			ResponseWriter request = ResponseWriter.Allocate(16).AppendByte(Protocol.OP_GETMENU).AppendVarint(slot).AppendVarint(portions);
+			ByteBuffer bytes = request.GetBuffer();
+
+			byte[] payload = Arrays.copyOfRange(bytes.array(), 4, bytes.position());	// without a length, requests have none!
+
+			PeerLink.Callback remember = reply -> {
+				if (reply != null && reply.length > 2 && reply[0] == Protocol.TYPE_ORDER && reply[1] == EventLog.Message.OK.ordinal()) {
+					BinaryReader reader = new BinaryReader(reply, 2);
+					reader.ReadVarint();
+					reader.ReadVarint();
+					SetLastKnown(slot, (int)reader.ReadVarint());
+				}
+
+				done.Done(reply);
+			};
+
+			if (!links[owners[slot]].Send(payload, remember)) {
+				done.Done(null);
+			}
+		}
+
+		// Pulls the portions of every other node, one request per node and not per GETMENUS! A GETMENUS gets answered from the own catalog,
+		// its pre-encoded snapshot only changes if a pull or a forwarded order brought new portions.
+		private static void Refresh() {
+			for (int node = 0; node < ports.length; node++) {
+				if (node == self || !isRefreshing.compareAndSet(node, 0, 1)) {
+					continue;	// the last pull of a slow node isn't answered yet
+				}
+
+				int owner = node;
+				PeerLink.Callback merge = reply -> {
+					if (reply != null && reply.length > 1 && reply[0] == Protocol.TYPE_MENUS) {
+						BinaryReader reader = new BinaryReader(reply, 1);
+						long count = reader.ReadVarint();
+
+						for (long i = 0; i < count; i++) {
+							int id = (int)reader.ReadVarint();
+							reader.ReadVarint();	// price
+							int available = (int)reader.ReadVarint();
+
+							if (id < owners.length && owners[id] == owner) {
+								SetLastKnown(id, available);
+							}
+						}
+					}
+
+					isRefreshing.set(owner, 0);
+				};
+
+				if (!links[node].Send(GETMENUS_REQUEST, merge)) {
+					isRefreshing.set(owner, 0);		// not reachable, the last known portions stay
+				}
+			}
+		}
+
+		// Replies of one node come in order on its link, so a newer value never gets overwritten by an older one!
+		private static void SetLastKnown(int slot, int portions) {
+			if (inventory.Get(slot) != portions) {
+				inventory.Set(slot, portions);	// a new version, the snapshots get encoded again
+			}
+		}
+
+
+		// FNV-1a and a final mix! String.hashCode spreads similar names too little for a ring.
+		private static long Hash(String text) {
+			long hash = 0xcbf29ce484222325L;
+
+			for (int i = 0; i < text.length(); i++) {
+				hash ^= text.charAt(i);
+				hash *= 0x100000001b3L;
+			}
+
+			hash ^= hash >>> 33;
+			hash *= 0xff51afd7ed558ccdL;
+			hash ^= hash >>> 33;
+			return hash;
+		}
+	}
+
+
+
+	static class PeerLink {
+		// Persistent connection to another node, talking the binary protocol! Requests are pipelined, the node answers them in order.
+		public interface Callback {
+			void Done(byte[] reply);	// "null" if the node isn't reachable
+		}
+
+		private static final int RECONNECT_MILLIS = 1000;
+		private static final int MAX_QUEUED = 4096;	// requests! A node which doesn't read them counts as not reachable.
+
+		private final int node;
+		private final String host;
+		private final int port;
+
+		private final ReentrantLock lock = new ReentrantLock();
+		private final ArrayDeque<Callback> waiting = new ArrayDeque<Callback>();	// under the lock, in the order of the requests
+		private final ArrayDeque<byte[]> outgoing = new ArrayDeque<byte[]>();	// under the lock, not written yet
+		private final Condition hasOutgoing = lock.newCondition();
+		private DataOutputStream out = null;	// under the lock, "null" while not connected! Only the writer thread writes to it.
+		private Socket socket = null;
+		private volatile boolean isStopped = false;
+
+
+		public PeerLink(int node, String host, int port) {
+			this.node = node;
+			this.host = host;
+			this.port = port;
+		}
+
+
+		public void Start() {
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					Run();
+				}
+			}, String.format("PeerLink-%s", node));
+
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		public void Stop() {
+			isStopped = true;
+			CloseSocket();
+		}
+
+
+		// Never blocks on the socket, event loops call this! Only queues the request for the writer thread of the link.
+		// Returns false if the node isn't connected or doesn't keep up, the callback never runs then!
+		public boolean Send(byte[] request, Callback callback) {
+			lock.lock();
+
+			try {
+				if (out == null || outgoing.size() >= MAX_QUEUED) {
+					return false;
+				}
+
+				waiting.add(callback);
+				outgoing.add(request);
+				hasOutgoing.signal();
+				return true;
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+
+		// Writes everything queued with one flush, until the connection is gone! A stalled node only blocks this thread.
+		private void Write(DataOutputStream output) {
+			ArrayDeque<byte[]> batch = new ArrayDeque<byte[]>();
+
+			try {
+				while (true) {
+					lock.lock();
+
+					try {
+						while (out == output && outgoing.isEmpty()) {
+							hasOutgoing.await();
+						}
+
+						if (out != output) {
+							return;		// disconnected
+						}
+
+						batch.addAll(outgoing);
+						outgoing.clear();
+					}
+					finally {
+						lock.unlock();
+					}
+
+					for (byte[] request : batch) {
+						output.write(request);
+					}
+
+					output.flush();
+					batch.clear();
+				}
+			}
+			catch (IOException | InterruptedException e) {
+				// The reader notices the broken connection and fails everything waiting!
+				CloseSocket();
+			}
+		}
+
+
+		private void Run() {
+			boolean wasConnected = false;
+
+			while (!isStopped) {
+				try (Socket connection = new Socket()) {
+					connection.connect(new InetSocketAddress(host, port), RECONNECT_MILLIS);
+					connection.setTcpNoDelay(true);
+
+					DataInputStream in = new DataInputStream(new BufferedInputStream(connection.getInputStream()));
+					DataOutputStream output = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream()));
+
+					ReadFrame(in);	// welcome
+
+					output.write(Protocol.HANDSHAKE | Protocol.FEATURE_BINARY | Protocol.FEATURE_PEER);
+					output.flush();
+
+					byte[] ack = ReadFrame(in);
+
+					if ((ack[0] & Protocol.FEATURE_PEER) == 0) {
+						throw new IOException("Not a node of this cluster!");
+					}
+
+					lock.lock();
+
+					try {
+						socket = connection;
+						out = output;
+					}
+					finally {
+						lock.unlock();
+					}
+
+					Thread writer = new Thread(() -> Write(output), String.format("PeerLink-%s-Writer", node));
+					writer.setDaemon(true);
+					writer.start();
+
+					wasConnected = true;
+					Logger.LogInfo(String.format("Cluster: Connected to node %s (port %s)!", node, port));
+
+					while (!isStopped) {
+						byte[] reply = ReadFrame(in);
+
+						if (reply[0] == Protocol.TYPE_KICK) {
+							throw new IOException("Got kicked!");
+						}
+
+						Callback callback;
+
+						lock.lock();
+
+						try {
+							callback = waiting.poll();
+						}
+						finally {
+							lock.unlock();
+						}
+
+						if (callback != null) {
+							callback.Done(reply);
+						}
+					}
+				}
+				catch (Exception e) {
+					if (wasConnected && !isStopped) {
+						Logger.LogWarning(String.format("Cluster: Lost node %s (port %s)! %s", node, port, e.getMessage() != null ? e.getMessage() : "Connection closed"));
+					}
+					wasConnected = false;
+				}
+
+				FailWaiting();
+
+				if (!isStopped) {
+					try {
+						Thread.sleep(RECONNECT_MILLIS);
+					}
+					catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+		}
+
+		private static byte[] ReadFrame(DataInputStream in) throws IOException {
+			int length = in.readInt();
+
+			if (length <= 0) {
+				throw new IOException("Wrong frame!");
+			}
+
+			byte[] frame = new byte[length];
+			in.readFully(frame);
+			return frame;
+		}
+
+		private void FailWaiting() {
+			ArrayDeque<Callback> failed;
+
+			lock.lock();
+
+			try {
+				out = null;
+				socket = null;
+				failed = new ArrayDeque<Callback>(waiting);
+				waiting.clear();
+				outgoing.clear();
+				hasOutgoing.signalAll();	// the writer thread ends
+			}
+			finally {
+				lock.unlock();
+			}
+
+			for (Callback callback : failed) {
+				callback.Done(null);
+			}
+		}
+
+		private void CloseSocket() {
+			lock.lock();
+
+			try {
+				if (socket != null) {
+					socket.close();
+				}
+			}
+			catch (IOException e) {
+				// closed anyway!
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+	}
+
+
+
+	public static class MenuModel {
+		private String name;
+		private volatile float price;
+		private Inventory inventory;	// the portions live in the shared inventory!
+		private int slot;
+	
+	
+		public MenuModel(String name, float price, Inventory inventory, int slot) {
+			this.name = name;
+			this.price = price;
+			this.inventory = inventory;
+			this.slot = slot;
+		}
+
+
+		public String getName() {
+			return name;
+		}
+
+		// Careful: the catalog index still finds the menu under its old name!
+		public void setName(String name) {
+			this.name = name;
+		}
+
+		public float getPrice() {
+			return price;
+		}
+
+		public void setPrice(float price) {
+			this.price = price;
+			inventory.MarkChanged();	// the GETMENUS snapshot shows the price too!
+		}
+
+		public long GetPriceCents() {
+			return Math.round(price * 100.0);
+		}
+
+		public int getAvailablePortions() {
+			return inventory.Get(slot);
+		}
+
+		public void setAvailablePortions(int availablePortions) {
+			inventory.Set(slot, availablePortions);
+		}
+
+		public int getSlot() {
+			return slot;
+		}
+
+		// Returns the portions which are left after the order or "-1" if there aren't enough!
+		public int TryOrder(int portions) {
+			return inventory.TryReserve(slot, portions);
+		}
+
+		// The order didn't go through after all, e.g. the journal couldn't write it!
+		public void CancelOrder(int portions) {
+			inventory.Add(slot, portions);
+		}
+
+		// "NAME##PRICE,-##PORTIONS"
+		public void WriteTo(ResponseWriter response) {
+			WriteTo(response, getAvailablePortions());
+		}
+
+		public void WriteTo(ResponseWriter response, int availablePortions) {
+			response.Append(getName()).Append("##").AppendPrice(GetPriceCents()).Append(Constants.PriceTag).Append("##").Append(availablePortions);
+		}
+
+	
+		@Override
+		public String toString() {
+			return String.format("%s##%s%s##%s", getName(), getPrice(), Constants.PriceTag, getAvailablePortions());
+		}
 	}
 
-	public static boolean GetIsRunning() {
-		return isRunning;
+
+
+	public static class MenuCatalog {
+		private static final String MENUS_HEADER = "Menu name##Price##Portions";
+
+		// Every format gets its own snapshot!
+		public enum Format {
+			TEXT_MENUS,			// GETMENUS of the text protocol
+			BINARY_MENUS,		// id, price cents, portions
+			BINARY_CATALOG,		// id, name, price cents
+		}
+
+		// Immutable! A new one replaces the old one once the inventory changed.
+		private static class Snapshot {
+			private final long version;
+			private final byte[] frame;	// length + payload, ready to be written!
+			private volatile byte[] compressedFrame = null;	// made by the first client which wants it
+
+			private Snapshot(long version, byte[] frame) {
+				this.version = version;
+				this.frame = frame;
+			}
+		}
+
+		private MenuModel[] menus;
+		private int count = 0;
+		private Inventory inventory;
+
+		private MenuModel[] index;	// open addressing with linear probing, at most half full!
+		private int indexMask;
+
+		private AtomicReferenceArray<Snapshot> snapshots = new AtomicReferenceArray<Snapshot>(Format.values().length);
+
+
+		public MenuCatalog(int capacity) {
+			this.menus = new MenuModel[capacity];
+			this.inventory = new Inventory(capacity);
+
+			int indexSize = 2;
+			while (indexSize < capacity * 2) {
+				indexSize <<= 1;
+			}
+
+			this.index = new MenuModel[indexSize];
+			this.indexMask = indexSize - 1;
+		}
+
+
+		// Only while building the catalog! It doesn't change after that, only the portions do.
+		public MenuModel Add(String name, float price, int availablePortions) {
+			if (Find(name) != null) {
+				throw new IllegalArgumentException(String.format("Menu already exists: %s", name));
+			}
+
+			MenuModel model = new MenuModel(name, price, inventory, count);
+			inventory.Set(count, availablePortions);
+
+			int i = Hash(name) & indexMask;
+			while (index[i] != null) {
+				i = (i + 1) & indexMask;
+			}
+			index[i] = model;
+
+			menus[count++] = model;
+			return model;
+		}
+
+		// Case-insensitive and without a lowercase copy of the name! "null" if there is no such menu.
+		public MenuModel Find(String name) {
+			int i = Hash(name) & indexMask;
+
+			MenuModel model;
+			while ((model = index[i]) != null) {
+				if (model.getName().equalsIgnoreCase(name)) {
+					return model;
+				}
+				i = (i + 1) & indexMask;
+			}
+
+			return null;
+		}
+
+		// Straight from the request bytes! Names with other than ASCII characters take the slow way.
+		public MenuModel Find(byte[] bytes, int offset, int length) {
+			int hash = 0;
+
+			for (int i = offset; i < offset + length; i++) {
+				if (bytes[i] < 0) {
+					return Find(new String(bytes, offset, length, StandardCharsets.UTF_8));
+				}
+				hash = 31 * hash + ToLowerAscii(bytes[i]);
+			}
+
+			int i = (hash ^ (hash >>> 16)) & indexMask;
+
+			MenuModel model;
+			while ((model = index[i]) != null) {
+				if (NameEquals(model.getName(), bytes, offset, length)) {
+					return model;
+				}
+				i = (i + 1) & indexMask;
+			}
+
+			return null;
+		}
+
+		private static boolean NameEquals(String name, byte[] bytes, int offset, int length) {
+			if (name.length() != length) {
+				return false;
+			}
+
+			for (int i = 0; i < length; i++) {
+				if (Character.toLowerCase(Character.toUpperCase(name.charAt(i))) != ToLowerAscii(bytes[offset + i])) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private static int ToLowerAscii(byte b) {
+			return (b >= 'A' && b <= 'Z') ? b + 32 : b;
+		}
+
+		// The same as "equalsIgnoreCase" compares: upper, then lower case!
+		private static int Hash(String name) {
+			int hash = 0;
+
+			for (int i = 0; i < name.length(); i++) {
+				hash = 31 * hash + Character.toLowerCase(Character.toUpperCase(name.charAt(i)));
+			}
+
+			return hash ^ (hash >>> 16);
+		}
+
+
+		// The whole GETMENUS response as a frame!
+		public byte[] GetMenusFrame() {
+			return GetFrame(Format.TEXT_MENUS);
+		}
+
+		public byte[] GetFrame(Format format) {
+			return GetSnapshot(format).frame;
+		}
+
+		// All compressing clients use the same dictionary, so the compressed frame can be shared too!
+		public byte[] GetCompressedFrame(Format format, FrameCompressor compressor) {
+			Snapshot current = GetSnapshot(format);
+			byte[] compressed = current.compressedFrame;
+
+			if (compressed == null) {
+				if (current.frame.length - 4 < FrameCompressor.GetThreshold()) {
+					return current.frame;
+				}
+
+				compressed = compressor.CompressFrame(current.frame);
+				current.compressedFrame = compressed;	// two clients might both compress it, same bytes
+			}
+
+			return compressed;
+		}
+
+		// Only gets encoded again if the inventory changed since the last one!
+		private Snapshot GetSnapshot(Format format) {
+			int slot = format.ordinal();
+			Snapshot current = snapshots.get(slot);
+			long version = inventory.GetVersion();	// before reading the portions, a change while encoding means a newer version
+
+			if (current != null && current.version == version) {
+				return current;
+			}
+
+			Snapshot next = new Snapshot(version, Encode(format));
+
+			// Never put back an older snapshot than the one another thread just published!
+			while (current == null || current.version < version) {
+				if (snapshots.compareAndSet(slot, current, next)) {
+					break;
+				}
+				current = snapshots.get(slot);
+			}
+
+			return next;
+		}
+
+		private byte[] Encode(Format format) {
+			return WriteMenus(ResponseWriter.Allocate(64 + count * 48), format).ToFrame();
+		}
+
+		private ResponseWriter WriteMenus(ResponseWriter response, Format format) {
+			switch (format) {
+				case TEXT_MENUS:
+					response.Append(MENUS_HEADER);
+
+					for (int i = 0; i < count; i++) {
+						response.Append(';');
+						menus[i].WriteTo(response, menus[i].getAvailablePortions());
+					}
+					break;
+
+				case BINARY_MENUS:
+					response.AppendByte(Protocol.TYPE_MENUS).AppendVarint(count);
+
+					for (int i = 0; i < count; i++) {
+						response.AppendVarint(i).AppendVarint(menus[i].GetPriceCents()).AppendVarint(Math.max(0, menus[i].getAvailablePortions()));
+					}
+					break;
+
+				case BINARY_CATALOG:
+					response.AppendByte(Protocol.TYPE_CATALOG).AppendVarint(count);
+
+					for (int i = 0; i < count; i++) {
+						response.AppendVarint(i).AppendText(menus[i].getName()).AppendVarint(menus[i].GetPriceCents());
+					}
+					break;
+			}
+
+			return response;
+		}
+
+
+		public MenuModel[] GetMenus() {
+			return Arrays.copyOf(menus, count);
+		}
+
+		// Header and menu names, for the compression dictionary!
+		public String GetVocabulary() {
+			StringBuilder vocabulary = new StringBuilder(MENUS_HEADER);
+
+			for (int i = 0; i < count; i++) {
+				vocabulary.append(';').append(menus[i].getName()).append("##");
+			}
+			return vocabulary.toString();
+		}
+
+		// By id, which is the index in the catalog! "null" if there is no such menu.
+		public MenuModel Get(int id) {
+			return (id >= 0 && id < count) ? menus[id] : null;
+		}
+
+		public int GetCount() {
+			return count;
+		}
+
+		public Inventory GetInventory() {
+			return inventory;
+		}
 	}
 
-	public static void SetIsRunning(boolean _isRunning) {
-		isRunning = _isRunning;
+
+
+	public static class Inventory {
+		private static final int STRIDE = 16;	// ints! Every slot gets its own 64 byte cache line, no false sharing between menus.
+
+		private AtomicIntegerArray portions;
+		private LongAdder changes = new LongAdder();	// not an AtomicLong, that would put every order on the same cache line again!
+
+
+		public Inventory(int size) {
+			this.portions = new AtomicIntegerArray(Math.max(1, size) * STRIDE);
+		}
+
+
+		public int Get(int slot) {
+			return portions.get(slot * STRIDE);
+		}
+
+		public void Set(int slot, int value) {
+			portions.set(slot * STRIDE, value);
+			changes.increment();
+		}
+
+		// Lock-free and linearizable! Returns the portions which are left or "-1" if there aren't enough.
+		public int TryReserve(int slot, int count) {
+			int index = slot * STRIDE;
+
+			while (true) {
+				int available = portions.get(index);
+				int left = available - count;
+
+				if (left < 0) {
+					return -1;
+				}
+
+				if (portions.compareAndSet(index, available, left)) {
+					changes.increment();	// after the change! A snapshot taken before it sees a smaller version.
+					return left;
+				}
+			}
+		}
+
+		public void Add(int slot, int count) {
+			portions.addAndGet(slot * STRIDE, count);
+			changes.increment();
+		}
+
+		public void MarkChanged() {
+			changes.increment();
+		}
+
+		// Only ever grows! Equal versions mean nothing changed in between.
+		public long GetVersion() {
+			return changes.sum();
+		}
 	}
 
-	public static boolean GetIsStopped() {
-		return isStopped;
+
+
+	public static class Protocol {
+		// The first byte of a client can be a handshake "10xxxxxx" instead of a text command! The x bits are the features it wants.
+		public static final int HANDSHAKE = 0x80;
+		public static final int HANDSHAKE_MASK = 0xC0;
+
+		public static final int FEATURE_BINARY = 0x01;
+		public static final int FEATURE_COMPRESSION = 0x02;	// big replies get deflated, see FrameCompressor
+		public static final int FEATURE_PEER = 0x04;		// link of another cluster node, see Cluster
+		public static final int SUPPORTED_FEATURES = FEATURE_BINARY | FEATURE_COMPRESSION | FEATURE_PEER;
+
+		// Binary requests: opcode + varint arguments. Same numbers as the opcodes in the event log!
+		public static final int OP_GETMENUS = 1;
+		public static final int OP_GETMENU = 2;		// id, portions
+		public static final int OP_EXIT = 3;
+		public static final int OP_HELP = 4;
+		public static final int OP_CATALOG = 5;
+
+		private static final int[] ARGUMENTS = { -1, 0, 2, 0, 0, 0 };	// per opcode, "-1" is unknown
+
+		// Binary responses: type byte + fields. Status fields are EventLog.Message ordinals, texts are a varint length + UTF-8.
+		public static final int TYPE_ERROR = 0;		// status
+		public static final int TYPE_MENUS = 1;		// count, count * (id, price cents, portions)
+		public static final int TYPE_ORDER = 2;		// status, if OK: id, ordered portions, portions left, total price cents
+		public static final int TYPE_GOODBYE = 3;
+		public static final int TYPE_HELP = 4;		// text
+		public static final int TYPE_CATALOG = 5;	// count, count * (id, name text, price cents)
+		public static final int TYPE_BROADCAST = 6;	// text
+		public static final int TYPE_KICK = 7;		// reason, text
+
+
+		public static int GetArgumentCount(int opcode) {
+			return (opcode >= 0 && opcode < ARGUMENTS.length) ? ARGUMENTS[opcode] : -1;
+		}
+
+
+		public static byte[] EncodeType(int type) {
+			return ResponseWriter.Allocate(8).AppendByte(type).ToFrame();
+		}
+
+		public static byte[] EncodeStatus(int type, EventLog.Message status) {
+			return ResponseWriter.Allocate(8).AppendByte(type).AppendByte(status.ordinal()).ToFrame();
+		}
+
+		public static byte[] EncodeText(int type, String text) {
+			return ResponseWriter.Allocate(16 + text.length() * 3).AppendByte(type).AppendText(text).ToFrame();
+		}
+
+		public static byte[] EncodeKick(ClientHandler.KickingReasons reason, String text) {
+			return ResponseWriter.Allocate(16 + text.length() * 3).AppendByte(TYPE_KICK).AppendByte(reason.ordinal()).AppendText(text).ToFrame();
+		}
 	}
 
-	public static void SetIsStopped(boolean _isStopped) {
-		isStopped = _isStopped;
-	}
 
-	public static void SetInactivityTime(int _maxInactivityTime) {
-		maxInactivityTime = _maxInactivityTime;
-	}
 
-	public static int GetInactivityTime() {
-		return maxInactivityTime;
-	}
-}
+	static class BinaryRequest {
+		private static final int MAX_ARGUMENTS = 2;
+
+		private int opcode = 0;
+		private int[] arguments = new int[MAX_ARGUMENTS];
+
+
+		// Returns the bytes of the request, "0" if it isn't complete yet or "-1" if it's broken.
+		public int Parse(byte[] bytes, int offset, int end) {
+			if (offset >= end) {
+				return 0;
+			}
+
+			opcode = bytes[offset] & 0xFF;
+
+			int count = Protocol.GetArgumentCount(opcode);
+
+			if (count < 0) {
+				return -1;
+			}
+
+			int position = offset + 1;
+
+			for (int i = 0; i < count; i++) {
+				long value = 0;
+				int shift = 0;
+
+				while (true) {
+					if (position >= end) {
+						return 0;
+					}
+
+					int b = bytes[position++] & 0xFF;
+					value |= (long)(b & 0x7F) << shift;
+
+					if ((b & 0x80) == 0) {
+						break;
+					}
+
+					shift += 7;
+
+					if (shift > 28) {
+						return -1;	// more than 5 bytes, no int!
+					}
+				}
+
+				if (value > Integer.MAX_VALUE) {
+					return -1;
+				}
 
+				arguments[i] = (int)value;
+			}
 
-class ClientHandler implements Runnable {
-	public enum KickingReasons {
-		INACTIVITY,
-		OTHER,
-	}
+			return position - offset;
+		}
 
-	private static final String BAD_REQUEST_STRING = "Bad Request!";
 
+		public int GetOpcode() {
+			return opcode;
+		}
 
-	private static Vector<MenuModel> tickets;
+		public int GetArgument(int index) {
+			return arguments[index];
+		}
 
-	private ClientModel clientModel;
 
-	private DataOutputStream out = null;
-	private BufferedReader in = null;
+		@Override
+		public String toString() {
+			String text = ClientHandler.GetCommandName(opcode);
 
-	private boolean gotDisconnected = false;
-	private boolean isConnected = true;
-	private Date connectionTime;
-	private Date lastActionToServer;
-	private String disconnectReason = "";
-	private boolean isStopped = false;
+			for (int i = 0; i < Protocol.GetArgumentCount(opcode); i++) {
+				text += " " + arguments[i];
+			}
+			return text;
+		}
+	}
 
 
-	private static final Command[] AvailableCommands = new Command[] {
-		new Command("GETMENUS", "#Returns all menus!"),
-		new Command("GETMENU", 	"#Usage: GETMENU \'Menu Titel\' \'Count\' -> Without the \"\'\".;##Returns the new Menu-Count of the selected Menu and the calculated price!"),
-		new Command("EXIT", 	"##Closes the connection to the server!"),
-		new Command("HELP", 	"##Shows this info page!"),
-	};
 
+	// Reads the fields of a binary response!
+	static class BinaryReader {
+		private byte[] bytes;
+		private int position;
 
 
-	public ClientHandler(Socket socket) {
-		if (tickets == null) {
-			tickets = InitMenus();
+		public BinaryReader(byte[] bytes, int position) {
+			this.bytes = bytes;
+			this.position = position;
 		}
 
-		clientModel = new ClientModel(socket);
 
-		try {
-			out = new DataOutputStream(clientModel.GetSocket().getOutputStream());
-			in = new BufferedReader(new InputStreamReader(clientModel.GetSocket().getInputStream()));
+		public int ReadByte() {
+			return bytes[position++] & 0xFF;
 		}
-		catch (Exception e) {
-			// error while initializing streams!
-			e.printStackTrace();
+
+		public long ReadVarint() {
+			long value = 0;
+
+			for (int shift = 0; ; shift += 7) {
+				int b = bytes[position++] & 0xFF;
+				value |= (long)(b & 0x7F) << shift;
+
+				if ((b & 0x80) == 0) {
+					return value;
+				}
+			}
 		}
 
-		connectionTime = new Date();
-		lastActionToServer = new Date();
+		public String ReadText() {
+			int length = (int)ReadVarint();
+			String text = new String(bytes, position, length, StandardCharsets.UTF_8);
+			position += length;
+			return text;
+		}
 	}
 
 
 
-	private Vector<MenuModel> InitMenus() {
-		Vector<MenuModel> models = new Vector<MenuModel>();
-		models.add(new MenuModel("Kaerntnernudel", 	9.00f,	23));
-		models.add(new MenuModel("Wienerschnitzel",	10.00f,	25));
-		models.add(new MenuModel("Fitnessteller", 	8.50f,	4));
-		models.add(new MenuModel("Kaiserschmarn", 	7.00f,	6));
-		return models;
-	}
+	static class LeasedOutputStream extends OutputStream {
+		// Like a BufferedOutputStream, but the buffer comes from the pool with the first write and goes back with the flush!
+		// Blocking clients only write while they handle requests or get a broadcast, so an idle one holds no buffer.
+		private final OutputStream out;
+		private final int size;
+		private ByteBuffer buffer = null;
+		private boolean isClosed = false;	// a write after the close would lease a buffer which never goes back!
 
 
-	private String GetCommandAt(int index) {
-		if (index < 0 || index >= AvailableCommands.length) {
-			return null;
+		public LeasedOutputStream(OutputStream out, int size) {
+			this.out = out;
+			this.size = size;
 		}
-		return AvailableCommands[index].getCommand().toLowerCase();
-	}
 
-	private Command GetCommand(int index) {
-		if (index < 0 || index >= AvailableCommands.length) {
-			return null;
-		}
-		return AvailableCommands[index];
-	}
 
-	private int GetCommandCount() {
-		return AvailableCommands.length;
-	}
+		@Override
+		public void write(int b) throws IOException {
+			CheckOpen();
 
+			if (buffer == null) {
+				buffer = BufferPool.Acquire(size);
+			}
+			else if (!buffer.hasRemaining()) {
+				WriteBuffer();
+			}
 
-	public void SendToClient(String data, boolean isBroadcast) {
-		if (!isBroadcast) {
-			lastActionToServer = Calendar.getInstance().getTime();
+			buffer.put((byte)b);
 		}
 
-		try {
-			byte[] bytes = data.getBytes(StandardCharsets.UTF_8);
-			int messageLength = bytes.length;
+		@Override
+		public void write(byte[] bytes, int offset, int length) throws IOException {
+			CheckOpen();
 
-			out.writeInt(messageLength);
-			out.write(bytes);
-			out.flush();
-		}
-		catch (Exception e) {
-			isConnected = false;
+			if (length >= size) {
+				// Bigger than the buffer, no copy!
+				WriteBuffer();
+				out.write(bytes, offset, length);
+				return;
+			}
 
-			Logger.LogError("Server: Client not reachable! Couln't send data!");
-		}
-	}
+			if (buffer == null) {
+				buffer = BufferPool.Acquire(size);
+			}
+			else if (length > buffer.remaining()) {
+				WriteBuffer();
+			}
 
-	public void DisconnectClient(KickingReasons reason) {
-		String message = GetKickingReasonString(reason);
+			buffer.put(bytes, offset, length);
+		}
 
-		SetDisconnectReason(message);
-		SendToClient(message, false);
-		
-		gotDisconnected = true;
-	}
+		@Override
+		public void flush() throws IOException {
+			try {
+				WriteBuffer();
+			}
+			finally {
+				ReleaseBuffer();
+			}
 
-	public void DisconnectClient(String message) {
-		String newMessage = String.format("You got kicked for this reason: %s", message);
+			out.flush();
+		}
 
-		SetDisconnectReason(newMessage);
-		SendToClient(newMessage, false);
-		
-		gotDisconnected = true;
-	}
+		@Override
+		public void close() throws IOException {
+			if (isClosed) {
+				return;
+			}
 
-	private String GetKickingReasonString(KickingReasons reason) {
-		switch (reason) {
-			case INACTIVITY:
-				return "You got kicked for inactivity!";
+			isClosed = true;
 
-			case OTHER:
-				return "You got kicked for an unknown reason!";
+			try {
+				flush();
+			}
+			finally {
+				ReleaseBuffer();
+				out.close();
+			}
+		}
 
-			default:
-				return null;
+		private void CheckOpen() throws IOException {
+			if (isClosed) {
+				throw new IOException("Stream closed!");
+			}
 		}
-	}
 
-	public boolean GetConnectionState() {
-		return isConnected;
-	}
+		private void WriteBuffer() throws IOException {
+			if (buffer != null && buffer.position() > 0) {
+				out.write(buffer.array(), 0, buffer.position());
+				buffer.clear();
+			}
+		}
 
-	public Date GetConnectionTime() {
-		return connectionTime;
-	}
-	
-	public Date GetLastActionToServerTime() {
-		return lastActionToServer;
+		private void ReleaseBuffer() {
+			if (buffer != null) {
+				BufferPool.Release(buffer);
+				buffer = null;
+			}
+		}
 	}
 
 
-	public void SetDisconnectReason(String disconnectReason) {
-		this.disconnectReason = disconnectReason;
-	}
 
-	private String GetDisconnectReason() {
-		return disconnectReason;
-	}
+	public static class RequestReader {
+		public static final int MAX_LINE_LENGTH = 64 * 1024;
+		private static final int BUFFER_SIZE = 4096;
+		private static final byte[] EMPTY = new byte[0];
 
-	public void StopClient() {
-		isStopped = true;
-	}
+		private InputStream in;
+		private byte[] buffer = EMPTY;		// leased from the pool while it holds bytes! An idle client holds none.
+		private ByteBuffer lease = null;
+		private int start = 0;		// first byte which isn't handled yet
+		private int end = 0;		// end of the read bytes
+		private int lineStart = 0;
 
-	public ClientModel GetClient() {
-		return clientModel;
-	}
 
+		public RequestReader(InputStream in) {
+			this.in = in;
+		}
 
 
-	@Override
-	public void run()
-	{
-		try {
-			boolean error = false;
+		// Blocks until a whole line is there! Returns its length without "\r\n" or "-1" once the stream ended.
+		public int ReadLine() throws IOException {
+			int scan = start;
 
-			while(!error && !gotDisconnected && isConnected && !isStopped) {
-				try {
-					String output_string = "";
-					String input_string = "";
+			while (true) {
+				for (; scan < end; scan++) {
+					if (buffer[scan] == '\n') {
+						int length = scan - start;
 
+						lineStart = start;
+						start = scan + 1;
 
-					boolean stop = false;
-					while (clientModel.GetSocket().getInputStream().available() <= 0) {
-						if (error || gotDisconnected || !isConnected || isStopped) {
-							stop = true;
-							break;
+						if (length > 0 && buffer[lineStart + length - 1] == '\r') {
+							length--;
 						}
-
-						Thread.sleep(20);
+						return length;
 					}
+				}
 
-					if (stop) {
-						break;
-					}
+				if (start > 0) {
+					// Moving the started line to the front, so there is room for the rest!
+					System.arraycopy(buffer, start, buffer, 0, end - start);
+					end -= start;
+					scan -= start;
+					start = 0;
+				}
+
+				if (end == buffer.length) {
+					Grow();
+				}
 
-					// Read data from client!
-					input_string = in.readLine().toLowerCase();
-					String[] subcommand = input_string.split(" ");
+				int read = in.read(buffer, end, buffer.length - end);
 
+				if (read < 0) {
+					if (end > start) {
+						// Last line without a line break!
+						int length = end - start;
 
-					if (input_string == null || subcommand == null) {
-						// ERROR!
+						lineStart = start;
+						start = end;
+						return length;
 					}
+					return -1;
+				}
 
+				end += read;
+			}
+		}
 
-					// ************************
-					// *                      *
-					// *  Checking Commands!  *
-					// *                      *
-					// ************************
+		// For callers which split the requests themselves! Blocks until more bytes are there, returns how many or "-1" once the stream ended.
+		public int Fill() throws IOException {
+			if (start == end) {
+				// Everything is handled! The buffer goes back, the wait for the next request needs none.
+				start = 0;
+				end = 0;
+				Release();
 
-					if (subcommand.length == 1 && subcommand[0].equals(GetCommandAt(0))) {				// command: getmenus
-						// Return all menus!
+				int first = in.read();
 
-						output_string = "Menu name##Price##Portions;";
+				if (first < 0) {
+					return -1;
+				}
 
-						for (MenuModel m : tickets) {
-							output_string += m.toString() + ";";
-						}
-						output_string = output_string.substring(0, output_string.lastIndexOf(';'));
-					}
-					else if (subcommand[0].equals(GetCommandAt(1))) {									// command: getmenu NAME COUNT
-						if (subcommand.length < 3) {
-							// wrong usage!
-							output_string = String.format("Wrong usage! -> Usage: %s NAME COUNT", GetCommandAt(1).toUpperCase());
-						}
-						else {
-							String name = subcommand[1];
-							int portions = 0;
+				Grow();
+				buffer[end++] = (byte)first;
 
-							boolean wrongRequest = false;
+				// Whatever else already came in, without blocking again!
+				int available = Math.min(in.available(), buffer.length - end);
 
-							try {
-								portions = Integer.parseInt(subcommand[2]);
-							} catch (Exception e) {
-								// Error: Not a number!
-								wrongRequest = true;
-							}
+				if (available > 0) {
+					int read = in.read(buffer, end, available);
 
-							if (!wrongRequest && portions > 0) {
-								boolean foundEntry = false;
-
-								for (int i = 0; i < tickets.size(); i++) {
-									if (tickets.get(i).getName().toLowerCase().equals(name)) {
-										MenuModel model = tickets.get(i);
-										
-										int newPortions = model.getAvailablePortions() - portions;
-										
-										if (newPortions >= 0) {
-											model.setAvailablePortions(newPortions);
-											tickets.set(i, model);
-											
-											String menuName = model.getName();
-											int availablePortions = model.getAvailablePortions();
-											int allPortions = availablePortions + portions;
-											float totalPrice = model.getPrice() * portions;
-
-											output_string = String.format("Selected menu:##%s;;", menuName);
-											output_string += String.format("Available portions:#%s;", allPortions);
-											output_string += String.format("Ordered portions:#%s;", portions);
-											output_string += "_;";
-											output_string += String.format("New portions:##%s;;", availablePortions);
-											output_string += String.format("Total price:##%s%s", totalPrice, Constants.PriceTag);
-										}
-										else {
-											output_string = "SOLD OUT!";
-										}
-
-										foundEntry = true;
-										
-										break;
-									}
-								}
-
-								if (!foundEntry) {
-									output_string = String.format("No menu found with name: %s", name);
-								}
-							} else {
-								// Wrong usage!
-								output_string = String.format("Not a number! -> Usage: %s NAME COUNT", GetCommandAt(1).toUpperCase());
-							}
-						}
+					if (read > 0) {
+						end += read;
 					}
-					else if (subcommand.length == 1 && subcommand[0].equals(GetCommandAt(2))) {				// command: exit
-						// Goodbye!
+				}
+				return end;
+			}
 
-						output_string = "Goodbye Client!";
+			if (end == buffer.length && start > 0) {
+				System.arraycopy(buffer, start, buffer, 0, end - start);
+				end -= start;
+				start = 0;
+			}
 
-						SendToClient(output_string, false);
-						return;
-					}
-					else if (subcommand.length == 1 && subcommand[0].equals(GetCommandAt(3))) {				// command: help
-						// HELP
-						
-						for (int i = 0; i < GetCommandCount(); i++) {
-							output_string += GetCommand(i).toString() + ";";
-						}
-					}
-					else {															// wrong command or nothing!
-						output_string = BAD_REQUEST_STRING;
-					}
+			if (end == buffer.length) {
+				Grow();
+			}
 
-					// Send response to client!
-					SendToClient(output_string, false);
+			// A started request keeps its buffer until the rest is there!
+			int read = in.read(buffer, end, buffer.length - end);
 
-					Logger.LogInfo(String.format("Client %s: %s", clientModel.GetConnectionString(), input_string));
-				}
-				catch (Exception e) {
-					error = true;
+			if (read > 0) {
+				end += read;
+			}
+			return read;
+		}
 
-					// Maybe disconnected!
-					Logger.LogWarning("Server: Client disconnected or error happend!");
-				}
+		// The next size class from the pool, the bytes up to "end" move along!
+		private void Grow() throws IOException {
+			if (buffer.length >= MAX_LINE_LENGTH) {
+				throw new IOException("Request is too long!");
 			}
 
+			ByteBuffer grown = BufferPool.Acquire(Math.max(BUFFER_SIZE, buffer.length * 2));
+			System.arraycopy(buffer, 0, grown.array(), 0, end);
 
-			//	************************
-			//	*                      *
-			//	*  Checking Commands!  *
-			//	*                      *
-			//	************************
+			Release();
+			lease = grown;
+			buffer = grown.array();
+		}
 
-			if (gotDisconnected) { // Check if client got disconnected by the server!
-				Logger.LogInfo(String.format("Server: Client got disconnected by the server! Reason: %s", GetDisconnectReason()));
+		private void Release() {
+			if (lease != null) {
+				BufferPool.Release(lease);
+				lease = null;
 			}
+
+			buffer = EMPTY;
 		}
-		catch (Exception e) {
-			// Error happend!
-			Logger.LogError(e.getMessage());
+
+		public int GetStart() {
+			return start;
 		}
-		finally {
-			Logger.LogInfo(String.format("Server: Goodbye Client: %s", clientModel.GetConnectionString()));
 
-			try {
-				if (out != null) out.close();
-				if (in != null) in.close();
+		public int GetEnd() {
+			return end;
+		}
 
-				if (!clientModel.CloseConnection())
-					throw new Exception("Couln't close connection!");
-			}
-			catch (Exception e) {
-				Logger.LogError("Server: Couldn't close connection!");
-			}
+		// Everything in front of "position" is handled!
+		public void Consume(int position) {
+			start = position;
+		}
 
-			isConnected = false;
+		// Only valid until the next "ReadLine" or "Fill"!
+		public byte[] GetBuffer() {
+			return buffer;
+		}
+
+		public int GetLineStart() {
+			return lineStart;
+		}
+
+		// Only on the thread which reads!
+		public void Close() throws IOException {
+			Release();
+			in.close();
 		}
 	}
-}
 
 
 
-class Logger {
-	private static SimpleDateFormat dateFormat = new SimpleDateFormat("dd-MM-yyyy HH-mm-ss");
-	private static String startOfServer = "";
+	public static class Request {
+		private static final int MAX_TOKENS = 16;	// more get counted, but not stored
 
+		private byte[] bytes;
+		private int offset;
+		private int length;
 
-	public enum Type {
-		START,
-		INFO,
-		WARNING,
-		ERROR
-	}
+		private int[] tokenStarts = new int[MAX_TOKENS];
+		private int[] tokenEnds = new int[MAX_TOKENS];
+		private int tokenCount = 0;
 
 
-	private static String GetTimestamp() {
-		return dateFormat.format(Calendar.getInstance().getTime());
-	}
+		// Splits the line into words! Only positions get stored, the bytes stay where they are.
+		public Request Parse(byte[] bytes, int offset, int length) {
+			this.bytes = bytes;
+			this.offset = offset;
+			this.length = length;
 
-	private static String GetFilename() {
-		return "Logs/" + String.format("%s-Logfile.log", startOfServer);
-	}
+			int end = offset + length;
+			int i = offset;
 
-	private static void CheckFolder(String filename) {
-		try {
-			Path pathToFile = Paths.get(filename);
-			Files.createDirectories(pathToFile.getParent());
+			tokenCount = 0;
+
+			while (true) {
+				while (i < end && IsSpace(bytes[i])) {
+					i++;
+				}
+
+				if (i >= end) {
+					break;
+				}
+
+				int start = i;
+
+				while (i < end && !IsSpace(bytes[i])) {
+					i++;
+				}
+
+				if (tokenCount < MAX_TOKENS) {
+					tokenStarts[tokenCount] = start;
+					tokenEnds[tokenCount] = i;
+				}
+				tokenCount++;
+			}
+
+			return this;
 		}
-		catch (Exception e) {
-			e.printStackTrace();
+
+		private static boolean IsSpace(byte b) {
+			return b == ' ' || b == '\t';
 		}
-	}
 
-	private static File CreateFile(String filename) {
-		CheckFolder(filename);
 
-		try {
-			File file = new File(filename);
+		public byte[] GetBytes() {
+			return bytes;
+		}
 
-			if (file.createNewFile()) {
-				// file created
-			} else {
-				// file allready exists
-			}
+		public int GetTokenCount() {
+			return tokenCount;
+		}
 
-			return file;
+		public int GetTokenStart(int token) {
+			return tokenStarts[token];
 		}
-		catch (Exception e) {
-			e.printStackTrace();
+
+		public int GetTokenLength(int token) {
+			return tokenEnds[token] - tokenStarts[token];
 		}
 
-		return null;
-	}
+		// Digits only! Returns the number or "-1" if the word isn't one.
+		public int ParseNumber(int token) {
+			if (token >= Math.min(tokenCount, MAX_TOKENS) || GetTokenLength(token) > 10) {
+				return -1;
+			}
 
-	private static void SaveToLog(String output, boolean append) {
-		try {
-			File file = CreateFile(GetFilename());
+			long value = 0;
 
-			if (file == null) {
-				throw new Exception("File not there!");
+			for (int i = tokenStarts[token]; i < tokenEnds[token]; i++) {
+				if (bytes[i] < '0' || bytes[i] > '9') {
+					return -1;
+				}
+				value = value * 10 + (bytes[i] - '0');
 			}
 
-			FileWriter myWriter = new FileWriter(file, append);
-			myWriter.write(output);
-			myWriter.close();
+			return value > Integer.MAX_VALUE ? -1 : (int)value;
 		}
-		catch (Exception e) {
-			e.printStackTrace();
+
+		// Strings only where they are needed, e.g. for the console or the text log!
+		public String GetToken(int token) {
+			return new String(bytes, tokenStarts[token], GetTokenLength(token), StandardCharsets.UTF_8);
+		}
+
+		// Everything from the word on, as it was sent!
+		public String GetRest(int token) {
+			return new String(bytes, tokenStarts[token], offset + length - tokenStarts[token], StandardCharsets.UTF_8);
+		}
+
+		public String GetText() {
+			return new String(bytes, offset, length, StandardCharsets.UTF_8);
 		}
 	}
 
-	private static String GetText(String text, Type type, boolean isStart) {
-		if (isStart && startOfServer.length() == 0) {
-			startOfServer = GetTimestamp();
+
+
+	static class CommandRegistry<T> {
+		// One node per character! A lookup costs the length of the name, no matter how many commands there are.
+		private static class Node {
+			private Node[] children = new Node[128];	// ASCII only
+			private int index = -1;
 		}
 
-		String output = String.format("%s %s: %s\n", GetTimestamp(), StringUtils.Capitalize(type.toString()), text);
-		SaveToLog(output, true);
+		private Node root = new Node();
+		private ArrayList<Command> commands = new ArrayList<Command>();
+		private ArrayList<T> handlers = new ArrayList<T>();
 
-		return output;
-	}
 
+		// Only while building! The index of a command is the order it got registered in.
+		public CommandRegistry<T> Register(Command command, T handler) {
+			String name = command.getCommand();
+			Node node = root;
 
-	public static void StartLog(String text) {
-		System.out.print(GetText(text, Type.START, true));
-	}
+			for (int i = 0; i < name.length(); i++) {
+				char c = name.charAt(i);
 
-	public static void LogInfo(String text) {
-		System.out.print(GetText(text, Type.INFO, false));
-	}
+				if (c >= 128) {
+					throw new IllegalArgumentException(String.format("Commands are ASCII only: %s", name));
+				}
 
-	public static void LogWarning(String text) {
-		System.out.print(GetText(text, Type.WARNING, false));
-	}
+				int key = ToLowerAscii(c);
 
-	public static void LogError(String text) {
-		System.err.print(GetText(text, Type.ERROR, false));
-	}
-}
+				if (node.children[key] == null) {
+					node.children[key] = new Node();
+				}
+				node = node.children[key];
+			}
 
+			if (node.index >= 0) {
+				throw new IllegalArgumentException(String.format("Command already exists: %s", name));
+			}
 
+			node.index = commands.size();
+			commands.add(command);
+			handlers.add(handler);
+			return this;
+		}
 
-class MenuModel {
-	private String name;
-	private float price;
-	private int availablePortions;
-	
-	
-	public MenuModel(String name, float price, int availablePortions) {
-		this.name = name;
-		this.price = price;
-		this.availablePortions = availablePortions;
-	}
+		// Case-insensitive! Returns the index of the command or "-1" if there is no such command.
+		public int Find(byte[] bytes, int offset, int length) {
+			Node node = root;
 
+			for (int i = offset; i < offset + length && node != null; i++) {
+				if (bytes[i] < 0) {
+					return -1;
+				}
+				node = node.children[ToLowerAscii(bytes[i])];
+			}
 
-	public String getName() {
-		return name;
-	}
+			return node == null ? -1 : node.index;
+		}
 
-	public void setName(String name) {
-		this.name = name;
-	}
+		public int Find(String name) {
+			Node node = root;
 
-	public float getPrice() {
-		return price;
-	}
+			for (int i = 0; i < name.length() && node != null; i++) {
+				if (name.charAt(i) >= 128) {
+					return -1;
+				}
+				node = node.children[ToLowerAscii(name.charAt(i))];
+			}
 
-	public void setPrice(float price) {
-		this.price = price;
-	}
+			return node == null ? -1 : node.index;
+		}
 
-	public int getAvailablePortions() {
-		return availablePortions;
-	}
+		private static int ToLowerAscii(int c) {
+			return (c >= 'A' && c <= 'Z') ? c + 32 : c;
+		}
 
-	public void setAvailablePortions(int availablePortions) {
-		this.availablePortions = availablePortions;
-	}
 
-	
-	@Override
-	public String toString() {
-		return String.format("%s##%s%s##%s", getName(), getPrice(), Constants.PriceTag, getAvailablePortions());
+		public Command GetCommand(int index) {
+			return commands.get(index);
+		}
+
+		public T GetHandler(int index) {
+			return handlers.get(index);
+		}
+
+		public int GetCount() {
+			return commands.size();
+		}
 	}
-}
 
 
 
-class Command {
-	private String command;
-	private String description;
+	static class Command {
+		private String command;
+		private String description;
 
 
-	public Command(String command, String description) {
-		this.command = command;
-		this.description = description;
-	}
+		public Command(String command, String description) {
+			this.command = command;
+			this.description = description;
+		}
 
 
-	public String getCommand() {
-		return command;
-	}
+		public String getCommand() {
+			return command;
+		}
 
-	public void setCommand(String command) {
-		this.command = command;
-	}
+		public void setCommand(String command) {
+			this.command = command;
+		}
 
-	public String getDescription() {
-		return description;
-	}
+		public String getDescription() {
+			return description;
+		}
 
-	public void setDescription(String description) {
-		this.description = description;
-	}
+		public void setDescription(String description) {
+			this.description = description;
+		}
 
 
-	@Override
-	public String toString() {
-		return String.format("%s %s", getCommand(), getDescription());
+		@Override
+		public String toString() {
+			return String.format("%s %s", getCommand(), getDescription());
+		}
 	}
-}
 
 
 
-class ClientModel {
-	private static int counter = 0;
-	
-	private int id;
-	private Socket clientSocket = null;
+	static class ClientModel {
+		private volatile int id;	// changes once if the client resumes a session!
+		private Socket clientSocket = null;
 
 
-	public ClientModel(Socket socket) {
-		id = counter++;
-		clientSocket = socket;
-	}
+		public ClientModel(Socket socket) {
+			id = Sessions.NextId();
+			clientSocket = socket;
+		}
 
 
-	public String GetConnectionString() {
-		return String.format("%s at %s", clientSocket.getInetAddress().getHostAddress(), clientSocket.getPort());
-	}
+		public String GetConnectionString() {
+			return String.format("%s at %s", clientSocket.getInetAddress().getHostAddress(), clientSocket.getPort());
+		}
 
-	public Socket GetSocket() {
-		return clientSocket;
-	}
+		public Socket GetSocket() {
+			return clientSocket;
+		}
 
-	public boolean CloseConnection() {
-		try {
-			clientSocket.close();
-			return true;
+		public boolean CloseConnection() {
+			try {
+				clientSocket.close();
+				return true;
+			}
+			catch (Exception e) {
+				return false;
+			}
 		}
-		catch (Exception e) {
-			return false;
+
+
+		public int GetId() {
+			return id;
 		}
-	}
 
+		public void Reclaim(int _id) {
+			id = _id;
+		}
+
+		public String GetClientIdentifier() {
+			return String.format("Client-%s", GetId());
+		}
 
-	public int GetId() {
-		return id;
-	}
 
-	public String GetClientIdentifier() {
-		return String.format("Client-%s", GetId());
+		@Override
+		public String toString() {
+			return String.format("Connection: %s, ID: %s", GetConnectionString(), GetClientIdentifier());
+		}
 	}
 
 
-	@Override
-	public String toString() {
-		return String.format("Connection: %s, ID: %s", GetConnectionString(), GetClientIdentifier());
-	}
-}
 
+	static class Constants {
+		public static final String PriceTag = ",-";
+	}
 
 
-class Constants {
-	public static final String PriceTag = ",-";
-}
+	static class ArrayUtils {
+		public static String JoinFromIndex(String[] array, String spacer, int index) {
+			if (index < 0 || index >= array.length) {
+				// wrong index!
+				return null;
+			}
 
+			String[] newArray = Arrays.copyOfRange(array, index, array.length);
 
-class ArrayUtils {
-	public static String JoinFromIndex(String[] array, String spacer, int index) {
-		if (index < 0 || index >= array.length) {
-			// wrong index!
-			return null;
+			return String.join(spacer, newArray);
 		}
+	}
 
-		String[] newArray = Arrays.copyOfRange(array, index, array.length);
 
-		return String.join(spacer, newArray);
-	}
-}
+	static class ThreadUtils {
+		private static boolean isWarned = false;
 
 
-class StringUtils {
-	public static String Capitalize(String text) {
-		if (text == null || text.length() == 0) {
-			// empty or null!
-			return null;
-		}
+		// Virtual threads are final since Java 21! Older runtimes get a cached pool of platform threads.
+		public static ExecutorService NewVirtualThreadExecutor() {
+			try {
+				Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+				return (ExecutorService)method.invoke(null);
+			}
+			catch (Exception e) {
+				if (!isWarned) {
+					isWarned = true;
+					Logger.LogWarning("Server: Virtual threads aren't available on this Java version! Using platform threads.");
+				}
 
-		return Replace(text.toLowerCase(), 0, (text.charAt(0) + "").toUpperCase().charAt(0));
+				return Executors.newCachedThreadPool();
+			}
+		}
 	}
 
-	public static String Replace(String str, int index, char replace){     
-	    if (str == null) {
-	        return str;
-	    }
-	    else if (index < 0 || index >= str.length()){
-	        return str;
-	    }
 
-	    char[] chars = str.toCharArray();
-	    chars[index] = replace;
-	    return String.valueOf(chars);       
+	static class StringUtils {
+		public static String Capitalize(String text) {
+			if (text == null || text.length() == 0) {
+				// empty or null!
+				return null;
+			}
+
+			return Replace(text.toLowerCase(), 0, (text.charAt(0) + "").toUpperCase().charAt(0));
+		}
+
+		public static String Replace(String str, int index, char replace){     
+		    if (str == null) {
+		        return str;
+		    }
+		    else if (index < 0 || index >= str.length()){
+		        return str;
+		    }
+
+		    char[] chars = str.toCharArray();
+		    chars[index] = replace;
+		    return String.valueOf(chars);       
+		}
 	}
 }
\ No newline at end of file